@@ -0,0 +1,245 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * The controller values, program, pitch bend and channel pressure last sent
+ * on each of the 16 channels, in flat primitive arrays. Values are kept
+ * with 32 bits, as given to the MidiEngine high resolution methods.
+ * Writes may come from any thread.
+ *
+ * A table can bring a device from a known state to its own one sending
+ * only the differences, and can be saved into a few bytes holding just the
+ * values that differ from the General MIDI defaults.
+ */
+public class ChannelStateTable {
+	public static final int CHANNELS = 16;
+	public static final int CONTROLLERS = 128;
+
+	private static final int CTL_BANK_MSB = 0;
+	private static final int CTL_DATA_ENTRY_MSB = 6;
+	private static final int CTL_BANK_LSB = 32;
+	private static final int CTL_DATA_ENTRY_LSB = 38;
+	private static final int CTL_DATA_INCREMENT = 96;
+	private static final int CTL_RPN_MSB = 101;
+
+	// snapshot keys after the controllers
+	private static final int KEY_PROGRAM = CHANNELS * CONTROLLERS;
+	private static final int KEY_BENDER = KEY_PROGRAM + CHANNELS;
+	private static final int KEY_PRESSURE = KEY_BENDER + CHANNELS;
+	private static final int KEYS = KEY_PRESSURE + CHANNELS;
+	private static final byte SNAPSHOT_VERSION = 1;
+
+	/** all values, indexed as the snapshot keys */
+	private final AtomicIntegerArray mValues = new AtomicIntegerArray(KEYS);
+
+	public ChannelStateTable() {
+		reset();
+	}
+
+	/**
+	 * Controllers that only make sense as part of a sequence (data entry,
+	 * parameter numbers) or that are commands (channel mode messages) are
+	 * not state, and are neither kept nor resent.
+	 */
+	public static boolean isState(int ctl) {
+		return ctl != CTL_DATA_ENTRY_MSB && ctl != CTL_DATA_ENTRY_LSB
+				&& (ctl < CTL_DATA_INCREMENT || ctl > CTL_RPN_MSB)
+				&& ctl < MidiEngine.CTL_ALL_SOUNDS_OFF;
+	}
+
+	private static int defaultValue(int key) {
+		if (key < KEY_PROGRAM) {
+			switch (key % CONTROLLERS) {
+				case MidiEngine.CTL_VOLUME:
+					return (int) UmpEncoder.scaleUp(100, 7, 32);
+				case MidiEngine.CTL_PAN:
+					return (int) UmpEncoder.scaleUp(64, 7, 32);
+				case MidiEngine.CTL_EXPRESSION:
+					return (int) UmpEncoder.scaleUp(127, 7, 32);
+				default:
+					return 0;
+			}
+		}
+		return key >= KEY_BENDER && key < KEY_PRESSURE ? 0x80000000 : 0;
+	}
+
+	/**
+	 * Back to the General MIDI power on state.
+	 */
+	public void reset() {
+		for (int key = 0; key < KEYS; ++key) {
+			mValues.set(key, defaultValue(key));
+		}
+	}
+
+	/**
+	 * The effect of a Reset All Controllers message on a channel.
+	 */
+	public void resetControllers(int channel) {
+		int base = channel * CONTROLLERS;
+		mValues.set(base + MidiEngine.CTL_MODULATION, 0);
+		mValues.set(base + MidiEngine.CTL_EXPRESSION, defaultValue(MidiEngine.CTL_EXPRESSION));
+		for (int ctl = MidiEngine.CTL_SUSTAIN; ctl <= MidiEngine.CTL_SUSTAIN + 3; ++ctl) {
+			mValues.set(base + ctl, 0);
+		}
+		mValues.set(KEY_BENDER + channel, 0x80000000);
+		mValues.set(KEY_PRESSURE + channel, 0);
+	}
+
+	public void copyFrom(ChannelStateTable other) {
+		for (int key = 0; key < KEYS; ++key) {
+			mValues.set(key, other.mValues.get(key));
+		}
+	}
+
+	public void setController(int channel, int ctl, long value) {
+		if (isState(ctl)) {
+			mValues.set(channel * CONTROLLERS + ctl, (int) value);
+		}
+	}
+
+	public long controller(int channel, int ctl) {
+		return mValues.get(channel * CONTROLLERS + ctl) & 0xFFFFFFFFL;
+	}
+
+	public int controller7(int channel, int ctl) {
+		return UmpEncoder.scaleDown(controller(channel, ctl), 32, 7);
+	}
+
+	public void setProgram(int channel, int program) {
+		mValues.set(KEY_PROGRAM + channel, program);
+	}
+
+	public int program(int channel) {
+		return mValues.get(KEY_PROGRAM + channel);
+	}
+
+	public void setBender(int channel, long value) {
+		mValues.set(KEY_BENDER + channel, (int) value);
+	}
+
+	public long bender(int channel) {
+		return mValues.get(KEY_BENDER + channel) & 0xFFFFFFFFL;
+	}
+
+	public void setPressure(int channel, long value) {
+		mValues.set(KEY_PRESSURE + channel, (int) value);
+	}
+
+	public long pressure(int channel) {
+		return mValues.get(KEY_PRESSURE + channel) & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * Sends to the engine, in one batch, what differs between the known
+	 * state of a device and this table, and updates the known state.
+	 * Bank selects go before the program change they apply to.
+	 *
+	 * @return number of messages sent
+	 */
+	public int resync(MidiEngine engine, ChannelStateTable known) {
+		int count = 0;
+		engine.beginBatch();
+		try {
+			for (int channel = 0; channel < CHANNELS; ++channel) {
+				int base = channel * CONTROLLERS;
+				boolean bank = false;
+				if (known.sync(this, base + CTL_BANK_MSB)) {
+					engine.controllerHiRes(channel, CTL_BANK_MSB, controller(channel, CTL_BANK_MSB));
+					bank = true;
+					count++;
+				}
+				if (known.sync(this, base + CTL_BANK_LSB)) {
+					engine.controllerHiRes(channel, CTL_BANK_LSB, controller(channel, CTL_BANK_LSB));
+					bank = true;
+					count++;
+				}
+				if (known.sync(this, KEY_PROGRAM + channel) || bank) {
+					engine.programChange(channel, program(channel));
+					count++;
+				}
+				for (int ctl = 0; ctl < CONTROLLERS; ++ctl) {
+					if (ctl != CTL_BANK_MSB && ctl != CTL_BANK_LSB && isState(ctl) && known.sync(this, base + ctl)) {
+						engine.controllerHiRes(channel, ctl, controller(channel, ctl));
+						count++;
+					}
+				}
+				if (known.sync(this, KEY_BENDER + channel)) {
+					engine.pitchWheelHiRes(channel, bender(channel));
+					count++;
+				}
+				if (known.sync(this, KEY_PRESSURE + channel)) {
+					engine.channelPressureHiRes(channel, pressure(channel));
+					count++;
+				}
+			}
+		} finally {
+			engine.endBatch();
+		}
+		return count;
+	}
+
+	/**
+	 * @return true if the value was different, and has been copied
+	 */
+	private boolean sync(ChannelStateTable source, int key) {
+		int value = source.mValues.get(key);
+		if (mValues.get(key) == value) {
+			return false;
+		}
+		mValues.set(key, value);
+		return true;
+	}
+
+	/**
+	 * @return the values differing from the defaults, as a version byte and
+	 *         a list of 16 bit keys and 32 bit values
+	 */
+	public byte[] snapshot() {
+		int count = 0;
+		for (int key = 0; key < KEYS; ++key) {
+			if (mValues.get(key) != defaultValue(key)) {
+				count++;
+			}
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(1 + count * 6);
+		buffer.put(SNAPSHOT_VERSION);
+		// values changing meanwhile may not fit, or leave room
+		for (int key = 0; key < KEYS && buffer.remaining() >= 6; ++key) {
+			int value = mValues.get(key);
+			if (value != defaultValue(key)) {
+				buffer.putShort((short) key);
+				buffer.putInt(value);
+			}
+		}
+		return Arrays.copyOf(buffer.array(), buffer.position());
+	}
+
+	/**
+	 * Replaces the values with a snapshot, without sending anything.
+	 *
+	 * @return false if the snapshot is not understood; the table is reset
+	 */
+	public boolean restore(byte[] snapshot) {
+		reset();
+		if (snapshot == null || snapshot.length < 1 || snapshot[0] != SNAPSHOT_VERSION
+				|| (snapshot.length - 1) % 6 != 0) {
+			return false;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(snapshot, 1, snapshot.length - 1);
+		while (buffer.hasRemaining()) {
+			int key = buffer.getShort() & 0xFFFF;
+			int value = buffer.getInt();
+			if (key < KEYS) {
+				mValues.set(key, value);
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,106 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Decides which values of a continuous controller stream are worth sending.
+ * A value is dropped when it would send the same message again, when it
+ * moved less than the deadband since the last one sent, or when it comes
+ * sooner than the maximum rate allows for that channel and controller.
+ * The extremes of the range always get through, so they stay reachable.
+ *
+ * Values are 32 bit, as given to the MidiEngine high resolution methods.
+ * Meant for one producer thread; the counters may be read from any thread.
+ */
+public class ControllerGate {
+	public static final int BENDER = 128;
+	public static final int PRESSURE = 129;
+	private static final int KEYS = 130;
+
+	private static final long MAX_VALUE = 0xFFFFFFFFL;
+	private static final long NONE = -1;
+
+	private final long[] mLastValue = new long[16 * KEYS];
+	private final long[] mLastNanos = new long[16 * KEYS];
+	private long mMinIntervalNanos = 0;
+	private long mDeadband = 0;
+
+	private volatile long mPassed = 0;
+	private volatile long mDuplicates = 0;
+	private volatile long mDeadbandDrops = 0;
+	private volatile long mRateDrops = 0;
+
+	public ControllerGate() {
+		Arrays.fill(mLastValue, NONE);
+	}
+
+	/**
+	 * @param hz highest number of messages per second for each channel and
+	 *           controller, 0 for no limit
+	 */
+	public void setMaxRate(int hz) {
+		mMinIntervalNanos = hz > 0 ? 1000000000L / hz : 0;
+	}
+
+	/**
+	 * @param fraction smallest change sent, as a fraction of the range
+	 */
+	public void setDeadband(double fraction) {
+		mDeadband = (long) (fraction * MAX_VALUE);
+	}
+
+	/**
+	 * @param key  controller number, {@link #BENDER} or {@link #PRESSURE}
+	 * @param bits resolution of the receiver: values equal once scaled down
+	 *             to it are duplicates
+	 * @return true if the value should be sent
+	 */
+	public boolean pass(int channel, int key, long value, int bits, long nanos) {
+		int i = channel * KEYS + key;
+		long last = mLastValue[i];
+		if (last != NONE) {
+			int shift = 32 - bits;
+			if (value >>> shift == last >>> shift) {
+				mDuplicates++;
+				return false;
+			}
+			boolean extreme = value == 0 || value == MAX_VALUE;
+			if (!extreme && Math.abs(value - last) < mDeadband) {
+				mDeadbandDrops++;
+				return false;
+			}
+			if (!extreme && nanos - mLastNanos[i] < mMinIntervalNanos) {
+				mRateDrops++;
+				return false;
+			}
+		}
+		mLastValue[i] = value;
+		mLastNanos[i] = nanos;
+		mPassed++;
+		return true;
+	}
+
+	/**
+	 * Forgets the last value sent, when it was changed by other means.
+	 */
+	public void forget(int channel, int key) {
+		mLastValue[channel * KEYS + key] = NONE;
+	}
+
+	public void forgetAll() {
+		Arrays.fill(mLastValue, NONE);
+	}
+
+	public long savedCount() {
+		return mDuplicates + mDeadbandDrops + mRateDrops;
+	}
+
+	public String stats() {
+		return String.format(Locale.US, "passed=%d saved=%d (duplicates=%d deadband=%d rate=%d)",
+				mPassed, savedCount(), mDuplicates, mDeadbandDrops, mRateDrops);
+	}
+}
@@ -0,0 +1,422 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+import android.app.Activity;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.content.pm.ServiceInfo;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+
+/**
+ * Hosts the output engine, so that it outlives the activities: recreating
+ * MainActivity, for a setting change or otherwise, finds the synthesizer,
+ * sockets and MIDI ports as they were, and the controller state with them.
+ *
+ * The activity binds from onStart to onStop, and also starts the service
+ * so that it survives the moments without clients. Without clients it runs
+ * in the foreground, with a notification, for IDLE_STOP_MS; then the
+ * engine is released and the service ends. Meanwhile the engine is paused,
+ * after PAUSE_DELAY_MS so that an activity being recreated does not make
+ * it close and reopen its ports, and resumed warm when a client binds
+ * again. All methods run on the UI thread.
+ *
+ * Engines are built, started and brought to the current state on a setup
+ * thread, then replace the previous one in a single step: the keyboards
+ * keep sending to the same {@link TrackingEngine} all along.
+ */
+public class EngineService extends Service {
+	private static final long IDLE_STOP_MS = 60 * 1000;
+	private static final long PAUSE_DELAY_MS = 1000;
+	private static final int NOTIFICATION_ID = 1;
+	private static final String CHANNEL_ID = "engine";
+
+	public class LocalBinder extends Binder {
+		public EngineService getService() {
+			return EngineService.this;
+		}
+	}
+
+	private final IBinder mBinder = new LocalBinder();
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final Runnable mIdleStop = this::stopSelf;
+	private final Runnable mPause = this::pause;
+	private final ChannelStateTable mState = new ChannelStateTable();
+	private final TrackingEngine mTracker = new TrackingEngine(null, mState);
+	private final NoteStateTable mIncomingNotes = new NoteStateTable();
+	private final MidiThru mThru = new MidiThru(null);
+	private SynthEngine mThruSynth = null;
+	private Activity mActivity = null;
+	private HandlerThread mSetupThread;
+	private Handler mSetupHandler;
+	/** output mode of the last engine requested, maybe still being set up */
+	private int mPendingMode = -1;
+	private boolean mThruEnabled = false;
+	private boolean mDestroyed = false;
+	private boolean mStateRestored = false;
+	private boolean mForeground = false;
+	/** no clients: the engines are stopped until the next bind */
+	private boolean mPaused = false;
+	/** a thru synthesizer is being set up */
+	private boolean mThruPending = false;
+
+	private final MidiEngine.InputListener mInputListener = new MidiEngine.InputListener() {
+		@Override
+		public void onMidiMessage(int status, int data1, int data2) {
+			mIncomingNotes.onMidiMessage(status, data1, data2);
+			mThru.onMidiMessage(status, data1, data2);
+		}
+	};
+
+	private final Settings.Listener mSettingsListener = new Settings.Listener() {
+		@Override
+		public void onSettingsChanged(Settings settings) {
+			applySettings(settings);
+		}
+	};
+
+	private final MidiEngine.ConnectionListener mConnectionListener = new MidiEngine.ConnectionListener() {
+		@Override
+		public void onMidiConnected(MidiEngine engine) {
+			int count = mState.resync(engine, new ChannelStateTable());
+			TraceRing.event(TraceRing.STATE_RESYNC, count, 0, 0);
+		}
+	};
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		Log.d("EngineService", "onCreate");
+		StartupTrace.mark(StartupTrace.SERVICE_CREATE);
+		mSetupThread = new HandlerThread("EngineSetup");
+		mSetupThread.start();
+		mSetupHandler = new Handler(mSetupThread.getLooper());
+		Settings.addListener(mSettingsListener);
+		applySettings(Settings.get(this));
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		return START_NOT_STICKY;
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		mHandler.removeCallbacks(mIdleStop);
+		resume();
+		return mBinder;
+	}
+
+	@Override
+	public void onRebind(Intent intent) {
+		Log.d("EngineService", "onRebind");
+		mHandler.removeCallbacks(mIdleStop);
+		resume();
+		if (mForeground) {
+			stopForeground(STOP_FOREGROUND_REMOVE);
+			mForeground = false;
+		}
+	}
+
+	@Override
+	public boolean onUnbind(Intent intent) {
+		Log.d("EngineService", "onUnbind");
+		detach(mActivity);
+		if (!mForeground) {
+			try {
+				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+					startForeground(NOTIFICATION_ID, buildNotification(),
+							ServiceInfo.FOREGROUND_SERVICE_TYPE_MEDIA_PLAYBACK);
+				} else {
+					startForeground(NOTIFICATION_ID, buildNotification());
+				}
+				mForeground = true;
+			} catch (IllegalStateException ex) {
+				// not allowed from the background: the engine just runs for less
+				Log.e("EngineService", "startForeground", ex);
+			}
+		}
+		mHandler.postDelayed(mPause, PAUSE_DELAY_MS);
+		mHandler.postDelayed(mIdleStop, IDLE_STOP_MS);
+		return true;
+	}
+
+	/**
+	 * Stops the engines, keeping them ready to start again quickly: the
+	 * internal synthesizer only pauses its audio stream.
+	 */
+	private void pause() {
+		if (!mPaused) {
+			Log.d("EngineService", "pause");
+			mPaused = true;
+			mTracker.stop();
+			if (mThruSynth != null) {
+				mThruSynth.stop();
+			}
+		}
+	}
+
+	private void resume() {
+		mHandler.removeCallbacks(mPause);
+		if (mPaused) {
+			Log.d("EngineService", "resume");
+			mPaused = false;
+			mTracker.start(this);
+			if (mThruSynth != null) {
+				mThruSynth.start(this);
+			}
+		}
+	}
+
+	@Override
+	public void onDestroy() {
+		Log.d("EngineService", "onDestroy");
+		mDestroyed = true;
+		Settings.removeListener(mSettingsListener);
+		mHandler.removeCallbacks(mIdleStop);
+		mHandler.removeCallbacks(mPause);
+		mTracker.stop();
+		mTracker.release();
+		mTracker.setTarget(null);
+		mThru.setTarget(null);
+		releaseThruSynth();
+		// an engine still being set up is stopped when done
+		mSetupThread.quitSafely();
+		super.onDestroy();
+	}
+
+	/**
+	 * Nobody is playing: the memory is worth more to the system.
+	 */
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		if (level >= TRIM_MEMORY_RUNNING_CRITICAL && mActivity == null) {
+			Log.d("EngineService", "onTrimMemory " + level);
+			stopSelf();
+		}
+	}
+
+	private Notification buildNotification() {
+		NotificationManager manager = getSystemService(NotificationManager.class);
+		if (manager.getNotificationChannel(CHANNEL_ID) == null) {
+			manager.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+					getString(R.string.engine_channel), NotificationManager.IMPORTANCE_LOW));
+		}
+		PendingIntent intent = PendingIntent.getActivity(this, 0,
+				new Intent(this, MainActivity.class), PendingIntent.FLAG_IMMUTABLE);
+		return new Notification.Builder(this, CHANNEL_ID)
+				.setSmallIcon(R.drawable.ic_launcher)
+				.setContentTitle(getString(R.string.app_name))
+				.setContentText(getString(R.string.engine_running))
+				.setContentIntent(intent)
+				.setOngoing(true)
+				.build();
+	}
+
+	/**
+	 * The engine recording what is sent into {@link #getState()}. The same
+	 * object for the whole life of the service.
+	 */
+	public TrackingEngine getEngine() {
+		return mTracker;
+	}
+
+	public ChannelStateTable getState() {
+		return mState;
+	}
+
+	public NoteStateTable getIncomingNotes() {
+		return mIncomingNotes;
+	}
+
+	/**
+	 * @return true the first time only: the state kept by the activity should
+	 *         be loaded into {@link #getState()} and sent
+	 */
+	public boolean takeStateRestore() {
+		boolean restore = !mStateRestored;
+		mStateRestored = true;
+		return restore;
+	}
+
+	/**
+	 * The engines show their dialogs on the activity.
+	 */
+	public void attach(Activity activity) {
+		mActivity = activity;
+		mTracker.attach(activity);
+	}
+
+	/**
+	 * Leaves the engines without activity, unless another one has already
+	 * been attached.
+	 */
+	public void detach(Activity activity) {
+		if (mActivity == activity) {
+			mActivity = null;
+			mTracker.attach(null);
+		}
+	}
+
+	/**
+	 * Follows the output and MIDI thru settings, as soon as they change. A
+	 * different output mode replaces the engine, in the background.
+	 */
+	private void applySettings(Settings settings) {
+		mThruEnabled = settings.midiThru;
+		int mode = settings.outputMode;
+		if (mode != mPendingMode) {
+			replaceEngine(mode);
+		}
+		applyThru();
+	}
+
+	/**
+	 * Builds and starts the engine on the setup thread, sending it the
+	 * current state, then switches to it on the UI thread.
+	 */
+	private void replaceEngine(int mode) {
+		Log.d("EngineService", "output mode " + mode);
+		mPendingMode = mode;
+		mSetupHandler.post(() -> {
+			MidiEngine engine = createEngine(mode);
+			StartupTrace.mark(StartupTrace.ENGINE_CREATED);
+			engine.setInputListener(mInputListener);
+			engine.start(this);
+			StartupTrace.mark(StartupTrace.ENGINE_STARTED);
+			ChannelStateTable known = new ChannelStateTable();
+			mState.resync(engine, known);
+			mHandler.post(() -> switchEngine(mode, engine, known));
+		});
+	}
+
+	/**
+	 * Runs on the UI thread: the new engine takes over in one step, gets the
+	 * state changed while it was set up in one batch, and the notes held by
+	 * the previous one are released.
+	 *
+	 * @param known the state already sent to the engine
+	 */
+	private void switchEngine(int mode, MidiEngine engine, ChannelStateTable known) {
+		if (mDestroyed || mode != mPendingMode) {
+			// superseded by another request, or too late
+			Log.d("EngineService", "discarding engine for mode " + mode);
+			engine.setInputListener(null);
+			engine.stop();
+			engine.release();
+			return;
+		}
+		engine.attach(mActivity);
+		MidiEngine old = mTracker.getTarget();
+		// plays the messages queued until the first engine is ready
+		mTracker.setTarget(engine);
+		StartupTrace.mark(StartupTrace.ENGINE_READY);
+		int count = mState.resync(engine, known);
+		TraceRing.event(TraceRing.ENGINE_SWITCH, mode, count, 0);
+		Log.d("EngineService", "switched to mode " + mode + ", " + count + " late messages");
+		mIncomingNotes.clear();
+		if (old != null) {
+			old.setInputListener(null);
+			old.attach(null);
+			old.panic();
+			mSetupHandler.post(() -> {
+				old.stop();
+				old.release();
+			});
+		}
+		if (mPaused) {
+			engine.stop();
+		}
+		applyThru();
+		if (mActivity != null) {
+			mActivity.invalidateOptionsMenu();
+		}
+	}
+
+	private MidiEngine createEngine(int mode) {
+		MidiEngine engine = null;
+		switch (mode) {
+			case SettingChangeHelper.MIDI_OUTPUT_MODE_SYSTEM:
+				engine = SystemMidiEngine.create(this, mConnectionListener);
+				break;
+			case SettingChangeHelper.MIDI_OUTPUT_MODE_NETWORK:
+				engine = new NetworkMidi(this);
+				break;
+		}
+		if (engine == null) {
+			// Fallback just in case
+			engine = new SynthEngine(this);
+		}
+		return engine;
+	}
+
+	/**
+	 * Incoming MIDI is played by the internal synthesizer: the output engine
+	 * itself if it is one, or another instance kept for the purpose, set up
+	 * on the setup thread like the output engines.
+	 */
+	private void applyThru() {
+		boolean enabled = mThruEnabled;
+		MidiEngine output = mTracker.getTarget();
+		if (enabled && output instanceof SynthEngine) {
+			// incoming values are not ours to keep
+			mThru.setTarget(output);
+		} else if (enabled) {
+			if (mThruSynth != null) {
+				mThru.setTarget(mThruSynth);
+			} else if (!mThruPending) {
+				mThruPending = true;
+				mSetupHandler.post(() -> {
+					SynthEngine synth = new SynthEngine(this);
+					synth.start(this);
+					mHandler.post(() -> adoptThruSynth(synth));
+				});
+			}
+			return;
+		} else {
+			mThru.setTarget(null);
+		}
+		releaseThruSynth();
+	}
+
+	/**
+	 * Runs on the UI thread, with a thru synthesizer just started, unless
+	 * it is no longer needed.
+	 */
+	private void adoptThruSynth(SynthEngine synth) {
+		mThruPending = false;
+		if (mDestroyed) {
+			// the setup thread is gone
+			synth.stop();
+			synth.release();
+			return;
+		}
+		mThruSynth = synth;
+		if (mPaused) {
+			synth.stop();
+		}
+		applyThru();
+	}
+
+	private void releaseThruSynth() {
+		SynthEngine synth = mThruSynth;
+		if (synth != null) {
+			mThruSynth = null;
+			mSetupHandler.post(() -> {
+				synth.stop();
+				synth.release();
+			});
+		}
+	}
+}
@@ -0,0 +1,331 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+import android.app.Activity;
+import android.content.Context;
+import android.view.Menu;
+import android.view.MenuItem;
+
+/**
+ * Passes everything to another engine, which may be replaced at any time
+ * from any thread.
+ *
+ * Created without a target, the messages sent until the first one is set
+ * are queued in order, and played to it in one batch: notes played while
+ * the engine is still starting are not lost, even quick taps released
+ * before it is ready. Should the queue overflow, all notes are turned off
+ * after the replay, so none is left hanging. Later, without a target,
+ * messages are dropped.
+ */
+public class ForwardingEngine implements MidiEngine {
+	private static final int STARTUP_QUEUE_SIZE = 256;
+
+	private volatile MidiEngine mTarget;
+	/** guarded by this; null once there has been a target */
+	private MidiRing mStartup;
+	private int mStartupOverflow = 0;
+
+	public ForwardingEngine(MidiEngine target) {
+		mTarget = target;
+		mStartup = target == null ? new MidiRing(STARTUP_QUEUE_SIZE) : null;
+	}
+
+	public MidiEngine getTarget() {
+		return mTarget;
+	}
+
+	public void setTarget(MidiEngine target) {
+		synchronized (this) {
+			if (target != null && mStartup != null) {
+				Log.d("ForwardingEngine", "replaying startup messages, " + mStartupOverflow + " dropped");
+				target.beginBatch();
+				try {
+					long message;
+					while ((message = mStartup.poll()) != MidiRing.EMPTY) {
+						replay(target, message);
+					}
+					if (mStartupOverflow > 0) {
+						// some note offs may be missing
+						for (int ch = 0; ch < 16; ++ch) {
+							target.controller(ch, CTL_ALL_NOTES_OFF, 0);
+						}
+					}
+				} finally {
+					target.endBatch();
+				}
+				mStartup = null;
+			}
+			mTarget = target;
+		}
+	}
+
+	/**
+	 * Called without target: queues the message if still starting, unless
+	 * the target has just been set.
+	 *
+	 * @return the target set meanwhile, or null
+	 */
+	private MidiEngine queue(long message) {
+		synchronized (this) {
+			MidiEngine target = mTarget;
+			if (target == null && mStartup != null && !mStartup.offer(message)) {
+				mStartupOverflow++;
+			}
+			return target;
+		}
+	}
+
+	private static void replay(MidiEngine engine, long message) {
+		int status = MidiRing.status(message);
+		int channel = status & 0x0F;
+		int data1 = MidiRing.data1(message);
+		int data2 = MidiRing.data2(message);
+		boolean hiRes = MidiRing.isHiRes(message);
+		long value = MidiRing.value(message);
+		switch (status & 0xF0) {
+			case STATUS_NOTEOFF:
+				engine.noteOff(channel, data1, data2);
+				break;
+			case STATUS_NOTEON:
+				if (hiRes) {
+					engine.noteOnHiRes(channel, data1, (int) value);
+				} else {
+					engine.noteOn(channel, data1, data2);
+				}
+				break;
+			case STATUS_POLYAFT:
+				engine.aftertouch(channel, data1, data2);
+				break;
+			case STATUS_CTLCHG:
+				if (hiRes) {
+					engine.controllerHiRes(channel, data1, value);
+				} else {
+					engine.controller(channel, data1, data2);
+				}
+				break;
+			case STATUS_PROGRAM:
+				engine.programChange(channel, data1);
+				break;
+			case STATUS_CHANAFT:
+				if (hiRes) {
+					engine.channelPressureHiRes(channel, value);
+				} else {
+					engine.channelPressure(channel, data1);
+				}
+				break;
+			case STATUS_BENDER:
+				if (hiRes) {
+					engine.pitchWheelHiRes(channel, value);
+				} else {
+					engine.pitchWheel(channel, data1 + data2 * 0x80);
+				}
+				break;
+		}
+	}
+
+	@Override
+	public void configureOptionsMenu(Menu menu) {
+		MidiEngine target = mTarget;
+		if (target != null) {
+			target.configureOptionsMenu(menu);
+		}
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		MidiEngine target = mTarget;
+		return target != null && target.onOptionsItemSelected(item);
+	}
+
+	@Override
+	public void collectStats() {
+		MidiEngine target = mTarget;
+		if (target != null) {
+			target.collectStats();
+		}
+	}
+
+	@Override
+	public String statsReport() {
+		MidiEngine target = mTarget;
+		return target == null ? null : target.statsReport();
+	}
+
+	@Override
+	public void setInputListener(InputListener listener) {
+		MidiEngine target = mTarget;
+		if (target != null) {
+			target.setInputListener(listener);
+		}
+	}
+
+	@Override
+	public void attach(Activity activity) {
+		MidiEngine target = mTarget;
+		if (target != null) {
+			target.attach(activity);
+		}
+	}
+
+	@Override
+	public boolean hasHiResOutput() {
+		MidiEngine target = mTarget;
+		return target != null && target.hasHiResOutput();
+	}
+
+	@Override
+	public void beginBatch() {
+		MidiEngine target = mTarget;
+		if (target != null) {
+			target.beginBatch();
+		}
+	}
+
+	@Override
+	public void endBatch() {
+		MidiEngine target = mTarget;
+		if (target != null) {
+			target.endBatch();
+		}
+	}
+
+	@Override
+	public void start(Context context) {
+		MidiEngine target = mTarget;
+		if (target != null) {
+			target.start(context);
+		}
+	}
+
+	@Override
+	public void stop() {
+		MidiEngine target = mTarget;
+		if (target != null) {
+			target.stop();
+		}
+	}
+
+	@Override
+	public void release() {
+		MidiEngine target = mTarget;
+		if (target != null) {
+			target.release();
+		}
+	}
+
+	@Override
+	public void pitchWheel(int channel, int num) {
+		MidiEngine target = mTarget;
+		if (target != null || (target = queue(MidiRing.pack(STATUS_BENDER | channel, num % 0x80, num / 0x80))) != null) {
+			target.pitchWheel(channel, num);
+		}
+	}
+
+	@Override
+	public void channelPressure(int channel, int num) {
+		MidiEngine target = mTarget;
+		if (target != null || (target = queue(MidiRing.pack(STATUS_CHANAFT | channel, num, 0))) != null) {
+			target.channelPressure(channel, num);
+		}
+	}
+
+	@Override
+	public void programChange(int channel, int num) {
+		MidiEngine target = mTarget;
+		if (target != null || (target = queue(MidiRing.pack(STATUS_PROGRAM | channel, num, 0))) != null) {
+			target.programChange(channel, num);
+		}
+	}
+
+	@Override
+	public void controller(int channel, int ctl, int num) {
+		MidiEngine target = mTarget;
+		if (target != null || (target = queue(MidiRing.pack(STATUS_CTLCHG | channel, ctl, num))) != null) {
+			target.controller(channel, ctl, num);
+		}
+	}
+
+	@Override
+	public void aftertouch(int channel, int note, int num) {
+		MidiEngine target = mTarget;
+		if (target != null || (target = queue(MidiRing.pack(STATUS_POLYAFT | channel, note, num))) != null) {
+			target.aftertouch(channel, note, num);
+		}
+	}
+
+	@Override
+	public void noteOn(int channel, int note, int vel) {
+		MidiEngine target = mTarget;
+		if (target != null || (target = queue(MidiRing.pack(STATUS_NOTEON | channel, note, vel))) != null) {
+			target.noteOn(channel, note, vel);
+		}
+	}
+
+	@Override
+	public void noteOff(int channel, int note, int vel) {
+		MidiEngine target = mTarget;
+		if (target != null || (target = queue(MidiRing.pack(STATUS_NOTEOFF | channel, note, vel))) != null) {
+			target.noteOff(channel, note, vel);
+		}
+	}
+
+	@Override
+	public void pitchWheelHiRes(int channel, long value) {
+		MidiEngine target = mTarget;
+		if (target != null || (target = queue(MidiRing.packHiRes(STATUS_BENDER | channel, 0, 0, value))) != null) {
+			target.pitchWheelHiRes(channel, value);
+		}
+	}
+
+	@Override
+	public void channelPressureHiRes(int channel, long value) {
+		MidiEngine target = mTarget;
+		if (target != null || (target = queue(MidiRing.packHiRes(STATUS_CHANAFT | channel, 0, 0, value))) != null) {
+			target.channelPressureHiRes(channel, value);
+		}
+	}
+
+	@Override
+	public void controllerHiRes(int channel, int ctl, long value) {
+		MidiEngine target = mTarget;
+		if (target != null || (target = queue(MidiRing.packHiRes(STATUS_CTLCHG | channel, ctl, 0, value))) != null) {
+			target.controllerHiRes(channel, ctl, value);
+		}
+	}
+
+	@Override
+	public void noteOnHiRes(int channel, int note, int velocity) {
+		MidiEngine target = mTarget;
+		if (target != null || (target = queue(MidiRing.packHiRes(STATUS_NOTEON | channel, note,
+				UmpEncoder.velocity7(velocity), velocity))) != null) {
+			target.noteOnHiRes(channel, note, velocity);
+		}
+	}
+
+	@Override
+	public void panic() {
+		MidiEngine target = mTarget;
+		if (target != null) {
+			target.panic();
+		} else {
+			// stops the queued notes, once replayed
+			for (int ch = 0; ch < 16; ++ch) {
+				controller(ch, CTL_ALL_NOTES_OFF, 0);
+			}
+		}
+	}
+
+	@Override
+	public void reset() {
+		MidiEngine target = mTarget;
+		if (target != null) {
+			target.reset();
+		} else {
+			for (int ch = 0; ch < 16; ++ch) {
+				controller(ch, CTL_RESET_ALL_CTL, 0);
+			}
+		}
+	}
+}
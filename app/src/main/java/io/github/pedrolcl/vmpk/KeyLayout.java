@@ -0,0 +1,123 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+/**
+ * Key geometry and labels of a keyboard, in plain Java so that it can be
+ * measured outside of Android: {@link PianoKeyboard} lays out each bank of
+ * keys with {@link #layout}, then copies the result into its key objects.
+ *
+ * Labels come from tables built once in the constructor, and results go
+ * into preallocated {@link Keys}, so a layout never allocates.
+ */
+public final class KeyLayout {
+	/** enough for any keyboard: all the MIDI notes */
+	public static final int MAX_KEYS = 128;
+	/** labels are precomputed for octave numbers in [LABEL_MIN_OCTAVE, LABEL_MIN_OCTAVE + LABEL_OCTAVES) */
+	private static final int LABEL_MIN_OCTAVE = -10;
+	private static final int LABEL_OCTAVES = 30;
+	/** first MIDI note having a General MIDI percussion name */
+	private static final int FIRST_PERCUSSION = 27;
+
+	/**
+	 * A laid out keyboard, white keys first and black keys after them, so
+	 * that they are drawn on top and hit tested first, backwards.
+	 */
+	public static final class Keys {
+		public int count = 0;
+		public final int[] note = new int[MAX_KEYS];
+		public final boolean[] black = new boolean[MAX_KEYS];
+		public final float[] left = new float[MAX_KEYS];
+		public final float[] top = new float[MAX_KEYS];
+		public final float[] right = new float[MAX_KEYS];
+		public final float[] bottom = new float[MAX_KEYS];
+		public final String[] text = new String[MAX_KEYS];
+		/** General MIDI percussion name, or null */
+		public final String[] textPerc = new String[MAX_KEYS];
+	}
+
+	private final String[] mNoteNames;
+	private final String[] mPercussionNames;
+	private final String[] mLabels;
+
+	/**
+	 * @param noteNames       the 12 note names, from C
+	 * @param percussionNames names of the percussion sounds, from note 27
+	 */
+	public KeyLayout(String[] noteNames, String[] percussionNames) {
+		mNoteNames = noteNames;
+		mPercussionNames = percussionNames;
+		mLabels = new String[LABEL_OCTAVES * 12];
+		for (int o = 0; o < LABEL_OCTAVES; ++o) {
+			for (int n = 0; n < 12; ++n) {
+				mLabels[o * 12 + n] = mNoteNames[n] + String.valueOf(o + LABEL_MIN_OCTAVE - 1);
+			}
+		}
+	}
+
+	/**
+	 * Places the keys [from, limit) into out.
+	 *
+	 * @param y         top of the keys
+	 * @param octave    added to the octave numbers of the labels
+	 * @param fullRange keys are placed at their position in the whole MIDI
+	 *                  range, instead of starting at 0
+	 */
+	public void layout(Keys out, int from, int limit, float y, int octave, float keyWidth, float keyHeight,
+			boolean fullRange) {
+		int whites = 0;
+		for (int i = from; i < limit; ++i) {
+			int j = i % 12;
+			if (j >= 5)
+				j++;
+			if ((j % 2) == 0)
+				whites++;
+		}
+		int w = whites;
+		int b = whites;
+		int adj = fullRange ? 0 : from % 12;
+		if (adj >= 5)
+			adj++;
+		for (int i = from; i < limit; ++i) {
+			int ocs = i / 12 * 7;
+			int n;
+			int j = n = i % 12;
+			if (j >= 5)
+				j++;
+			int k;
+			float x;
+			if ((j % 2) == 0) {
+				k = --w;
+				x = (float) (ocs + Math.floor((j - adj) / 2.0f)) * keyWidth;
+				out.black[k] = false;
+				out.left[k] = x;
+				out.top[k] = y;
+				out.right[k] = x + keyWidth;
+				out.bottom[k] = y + keyHeight;
+			} else {
+				k = b++;
+				x = (float) (ocs + Math.floor((j - adj) / 2.0f)) * keyWidth + keyWidth * 6 / 10 + 1;
+				out.black[k] = true;
+				out.left[k] = x;
+				out.top[k] = y;
+				out.right[k] = x + keyWidth * 8 / 10 - 1;
+				out.bottom[k] = y + keyHeight * 6 / 10;
+			}
+			out.note[k] = i;
+			setText(out, k, n, i / 12 + octave);
+		}
+		out.count = limit - from;
+	}
+
+	private void setText(Keys out, int k, int note, int octave) {
+		int o = octave - LABEL_MIN_OCTAVE;
+		if (o >= 0 && o < LABEL_OCTAVES) {
+			out.text[k] = mLabels[o * 12 + note];
+		} else {
+			out.text[k] = mNoteNames[note] + String.valueOf(octave - 1);
+		}
+		int n = note + octave * 12 - FIRST_PERCUSSION;
+		out.textPerc[k] = n >= 0 && n < mPercussionNames.length ? mPercussionNames[n] : null;
+	}
+}
@@ -0,0 +1,219 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Touch-to-sound latency histograms.
+ *
+ * Every note played on the keyboard is stamped at each stage of its way to
+ * the output: the MotionEvent time, PianoView.keyOn, the MidiEngine call,
+ * and (for the internal synthesizer) the render callback that consumes it.
+ * Samples are aggregated into fixed power-of-two microsecond buckets, so
+ * recording is a couple of atomic increments and never allocates.
+ */
+public final class LatencyMonitor {
+
+	/** MotionEvent time to PianoView.keyOn */
+	public static final int STAGE_INPUT = 0;
+	/** time spent inside the MidiEngine note call */
+	public static final int STAGE_DISPATCH = 1;
+	/** native write to the render callback that consumed it */
+	public static final int STAGE_RENDER = 2;
+	/** MotionEvent time to the render callback */
+	public static final int STAGE_TOTAL = 3;
+	public static final int STAGES = 4;
+
+	/**
+	 * Bucket b holds samples in [2^(b-1), 2^b) microseconds; the last one is
+	 * open ended. Must match LATENCY_BUCKETS in midisynth.c
+	 */
+	public static final int BUCKETS = 20;
+
+	private static final String[] STAGE_NAMES = { "input", "dispatch", "render", "total" };
+
+	private static final AtomicLongArray sCounts = new AtomicLongArray(STAGES * BUCKETS);
+	private static final AtomicLongArray sMax = new AtomicLongArray(STAGES);
+	private static volatile boolean sEnabled = false;
+	/** per thread: thru, sensors and others never see the keyboard's note */
+	private static final ThreadLocal<long[]> sOrigin = ThreadLocal.withInitial(() -> new long[1]);
+	private static volatile String[] sSummary = new String[0];
+
+	private LatencyMonitor() {
+	}
+
+	public static void setEnabled(boolean enabled) {
+		sEnabled = enabled;
+	}
+
+	public static boolean isEnabled() {
+		return sEnabled;
+	}
+
+	public static int bucketOf(long nanos) {
+		long us = nanos / 1000;
+		if (us <= 0) {
+			return 0;
+		}
+		return Math.min(64 - Long.numberOfLeadingZeros(us), BUCKETS - 1);
+	}
+
+	public static void record(int stage, long nanos) {
+		if (!sEnabled || nanos < 0) {
+			return;
+		}
+		sCounts.incrementAndGet(stage * BUCKETS + bucketOf(nanos));
+		long max = sMax.get(stage);
+		while (nanos > max && !sMax.compareAndSet(stage, max, nanos)) {
+			max = sMax.get(stage);
+		}
+	}
+
+	/**
+	 * Adds histogram counts collected elsewhere (the native render callback).
+	 */
+	public static void merge(int stage, long[] counts) {
+		for (int b = 0; b < BUCKETS && b < counts.length; ++b) {
+			if (counts[b] != 0) {
+				sCounts.addAndGet(stage * BUCKETS + b, counts[b]);
+			}
+		}
+	}
+
+	/**
+	 * Called by the keyboard right before handing a note to the engine.
+	 *
+	 * @param eventNanos MotionEvent.getEventTime() in nanoseconds, or 0
+	 * @return the start time of the dispatch stage, to be passed to
+	 *         {@link #endDispatch(long)}
+	 */
+	public static long beginDispatch(long eventNanos) {
+		if (!sEnabled) {
+			return 0;
+		}
+		long now = System.nanoTime();
+		if (eventNanos > 0) {
+			record(STAGE_INPUT, now - eventNanos);
+		}
+		sOrigin.get()[0] = eventNanos;
+		return now;
+	}
+
+	public static void endDispatch(long start) {
+		if (start != 0) {
+			record(STAGE_DISPATCH, System.nanoTime() - start);
+			sOrigin.get()[0] = 0;
+		}
+	}
+
+	/**
+	 * @return the MotionEvent time of the note being dispatched by the
+	 *         calling thread, or 0 if there is none.
+	 */
+	public static long currentOrigin() {
+		return sEnabled ? sOrigin.get()[0] : 0;
+	}
+
+	public static void reset() {
+		for (int i = 0; i < sCounts.length(); ++i) {
+			sCounts.set(i, 0);
+		}
+		for (int i = 0; i < sMax.length(); ++i) {
+			sMax.set(i, 0);
+		}
+		updateSummary();
+	}
+
+	public static long count(int stage) {
+		long n = 0;
+		for (int b = 0; b < BUCKETS; ++b) {
+			n += sCounts.get(stage * BUCKETS + b);
+		}
+		return n;
+	}
+
+	/**
+	 * @return upper bound, in microseconds, of the bucket holding the given
+	 *         percentile, or 0 when there are no samples.
+	 */
+	public static long percentile(int stage, double p) {
+		return percentile(sCounts, stage * BUCKETS, p);
+	}
+
+	/**
+	 * Same as {@link #percentile(int, double)}, for a histogram kept
+	 * elsewhere with the same buckets.
+	 */
+	public static long percentile(AtomicLongArray counts, double p) {
+		return percentile(counts, 0, p);
+	}
+
+	private static long percentile(AtomicLongArray counts, int offset, double p) {
+		long n = 0;
+		for (int b = 0; b < BUCKETS; ++b) {
+			n += counts.get(offset + b);
+		}
+		if (n == 0) {
+			return 0;
+		}
+		long target = (long) Math.ceil(n * p);
+		long acc = 0;
+		for (int b = 0; b < BUCKETS; ++b) {
+			acc += counts.get(offset + b);
+			if (acc >= target) {
+				return 1L << b;
+			}
+		}
+		return 1L << (BUCKETS - 1);
+	}
+
+	/**
+	 * Rebuilds the {@link #summaryLines()}, after collecting the stats.
+	 */
+	public static void updateSummary() {
+		String[] lines = new String[STAGES];
+		int count = 0;
+		for (int s = 0; s < STAGES; ++s) {
+			long n = count(s);
+			if (n != 0) {
+				lines[count++] = String.format(Locale.US, "%s p50<%.1fms p99<%.1fms n=%d", STAGE_NAMES[s],
+						percentile(s, .5) / 1000f, percentile(s, .99) / 1000f, n);
+			}
+		}
+		sSummary = Arrays.copyOf(lines, count);
+	}
+
+	/**
+	 * One short line per stage with samples, for the keyboard overlay, as of
+	 * the last {@link #updateSummary()}: drawing them costs no formatting.
+	 */
+	public static String[] summaryLines() {
+		return sSummary;
+	}
+
+	/**
+	 * Full report with every bucket, suitable for sharing.
+	 */
+	public static String report() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("VMPK latency report\n");
+		for (int s = 0; s < STAGES; ++s) {
+			long n = count(s);
+			sb.append(String.format(Locale.US, "\n[%s] samples=%d max=%.3fms p50<%dus p90<%dus p99<%dus\n",
+					STAGE_NAMES[s], n, sMax.get(s) / 1e6, percentile(s, .5), percentile(s, .9),
+					percentile(s, .99)));
+			for (int b = 0; b < BUCKETS; ++b) {
+				long c = sCounts.get(s * BUCKETS + b);
+				if (c != 0) {
+					long lo = b == 0 ? 0 : 1L << (b - 1);
+					sb.append(String.format(Locale.US, "  %8dus.. %d\n", lo, c));
+				}
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -3,19 +3,32 @@
 
 package io.github.pedrolcl.vmpk;
 
+/**
+ * Errors always reach the system log; debug messages only while enabled,
+ * from the settings. Code run for every MIDI message or touch records
+ * {@link TraceRing} events instead, which cost no strings.
+ */
 public class Log {
-    static final boolean LOG = false;
+    private static volatile boolean sEnabled = false;
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
 
     public static void e(String tag, String msg) {
-        if (LOG) android.util.Log.e(tag, msg);
+        android.util.Log.e(tag, msg);
     }
     public static void e(String tag, String msg, Exception e) {
-        if (LOG)  android.util.Log.e(tag, msg, e);
+        android.util.Log.e(tag, msg, e);
     }
     public static void d(String tag, String msg) {
-        if (LOG) android.util.Log.d(tag, msg);
+        if (sEnabled) android.util.Log.d(tag, msg);
     }
     public static void d(String tag, String msg, Exception e) {
-        if (LOG) android.util.Log.d(tag, msg, e);
+        if (sEnabled) android.util.Log.d(tag, msg, e);
     }
 }
@@ -37,6 +37,9 @@ public class MIDISynth {
     System.loadLibrary("midisynth");
   }
 
+  private static final Metrics.Counter JNI_CALLS = Metrics.counter("synth jni calls");
+  private static final Metrics.Histogram WRITE_NANOS = Metrics.histogram("synth write ns");
+
   private ByteBuffer context;
 
   /**
@@ -45,6 +48,7 @@ public class MIDISynth {
    * @throws IOException if not supported.
    */
   public MIDISynth(int sound_lib) throws IOException {
+    JNI_CALLS.increment();
     context = open(sound_lib);
     if (context == null) {
       throw new IOException("Unsupported");
@@ -57,6 +61,7 @@ public class MIDISynth {
    */
   public void close() {
     if (context != null) {
+      JNI_CALLS.increment();
       close(context);
       context = null;
     }
@@ -73,6 +78,7 @@ public class MIDISynth {
     if (context == null) {
       throw new IllegalStateException("Stream closed.");
     }
+    JNI_CALLS.increment();
     if (start(context) != 0) {
       throw new IOException("Unable to start OpenSL stream.");
     }
@@ -87,6 +93,7 @@ public class MIDISynth {
     if (context == null) {
       throw new IllegalStateException("Stream closed.");
     }
+    JNI_CALLS.increment();
     stop(context);
   }
 
@@ -99,20 +106,47 @@ public class MIDISynth {
     if (context == null) {
       throw new IllegalStateException("Stream closed.");
     }
+    JNI_CALLS.increment();
     return isRunning(context);
   }
 
   public void write(byte[] data) {
+    write(data, 0);
+  }
+
+  /**
+   * @param origin time of the input event behind this message, in
+   *               System.nanoTime() units, or 0 if unknown. Used only for
+   *               latency statistics.
+   */
+  public void write(byte[] data, long origin) {
     if (context == null) {
       throw new IllegalStateException("Stream closed.");
     }
-    write(context, data);
+    JNI_CALLS.increment();
+    long begin = System.nanoTime();
+    write(context, data, origin);
+    WRITE_NANOS.record(System.nanoTime() - begin);
+  }
+
+  /**
+   * Moves the latency histograms collected by the render callback into the
+   * given arrays, which must hold at least LatencyMonitor.BUCKETS elements.
+   * The native counters are reset.
+   */
+  public void drainLatency(long[] render, long[] total) {
+    if (context == null) {
+      throw new IllegalStateException("Stream closed.");
+    }
+    JNI_CALLS.increment();
+    drainLatency(context, render, total);
   }
 
   public void initReverb(int reverb_type) {
     if (context == null) {
       throw new IllegalStateException("Stream closed.");
     }
+    JNI_CALLS.increment();
     initReverb(context, reverb_type);
   }
 
@@ -120,6 +154,7 @@ public class MIDISynth {
     if (context == null) {
       throw new IllegalStateException("Stream closed.");
     }
+    JNI_CALLS.increment();
     initChorus(context, chorus_type);
   }
 
@@ -136,6 +171,7 @@ public class MIDISynth {
     if (context == null) {
       throw new IllegalStateException("Stream closed.");
     }
+    JNI_CALLS.increment();
     setReverbWet(context, amount);
   }
 
@@ -143,6 +179,7 @@ public class MIDISynth {
     if (context == null) {
       throw new IllegalStateException("Stream closed.");
     }
+    JNI_CALLS.increment();
     setChorusLevel(context, level);
   }
 
@@ -156,7 +193,9 @@ public class MIDISynth {
 
   private static native boolean isRunning(ByteBuffer ctx);
 
-  private static native void write(ByteBuffer ctx, byte[] data);
+  private static native void write(ByteBuffer ctx, byte[] data, long origin);
+
+  private static native void drainLatency(ByteBuffer ctx, long[] render, long[] total);
 
   private static native void initReverb(ByteBuffer ctx, int reverb_type);
 
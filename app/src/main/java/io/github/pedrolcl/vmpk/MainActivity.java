@@ -6,26 +6,26 @@ package io.github.pedrolcl.vmpk;
 import android.app.ActionBar;
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.content.ComponentName;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
-import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.os.StrictMode;
-import android.preference.PreferenceManager;
+import android.util.Base64;
 import android.view.Display;
 import android.view.GestureDetector;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
-import android.view.Surface;
 import android.view.View;
+import android.view.ViewGroup;
 import android.view.Window;
 import android.view.WindowManager;
 import android.widget.AdapterView;
@@ -34,6 +34,7 @@ import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.CompoundButton;
 import android.widget.CompoundButton.OnCheckedChangeListener;
+import android.widget.EditText;
 import android.widget.SeekBar;
 import android.widget.SeekBar.OnSeekBarChangeListener;
 import android.widget.Spinner;
@@ -41,15 +42,24 @@ import android.widget.Switch;
 import android.widget.TabHost;
 import android.widget.TabWidget;
 import android.widget.TextView;
+import android.widget.Toast;
 import android.widget.ToggleButton;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 
-public class MainActivity extends Activity implements SensorEventListener {
+public class MainActivity extends Activity {
 
 	private static final boolean DEVELOPER_MODE = false;
 
+	/** where older versions kept the state, see {@link PerformanceState} */
 	private static final String PREFS_NAME = "vmpk_state";
 	private static final int RESULT_SETTINGS = 1;
 	private static final int DEFAULT_TAB = 2;
@@ -67,10 +77,13 @@ public class MainActivity extends Activity implements SensorEventListener {
 	private static final String STATE_GROUP = "stateGroup";
 	private static final String STATE_INSTRUMENT = "stateInstrument";
 	private static final String STATE_CONTROLLER = "stateController";
+	/** controller values saved by older versions, for the current channel only */
 	private static final String STATE_CONTROL = "stateControl#";
+	private static final String STATE_CHANNELS = "stateChannels";
 
-	private PianoView mPiano1 = null;
-	private PianoView mPiano2 = null;
+	private PianoKeyboard mPiano1 = null;
+	private PianoKeyboard mPiano2 = null;
+	private View mPianoView2 = null;
 	private int mChannel = 0;
 	private int mGrp = -1;
 	private int mInst = -1;
@@ -80,20 +93,47 @@ public class MainActivity extends Activity implements SensorEventListener {
 	private Spinner mSpinGroups;
 	private Spinner mSpinInst;
 	private Spinner mSpinCtls;
-	private MidiEngine mEngine;
+	/** the engine of the service while bound, dropping messages otherwise */
+	private final ForwardingEngine mEngine = new ForwardingEngine(null);
+	/** what the engine has been sent; the service's own while bound */
+	private ChannelStateTable mState = new ChannelStateTable();
+	private EngineService mService = null;
+	private boolean mBound = false;
+	private boolean mResumed = false;
+	private final ServiceConnection mConnection = new ServiceConnection() {
+		@Override
+		public void onServiceConnected(ComponentName name, IBinder binder) {
+			Log.d("MainActivity", "onServiceConnected");
+			StartupTrace.mark(StartupTrace.SERVICE_CONNECTED);
+			mService = ((EngineService.LocalBinder) binder).getService();
+			mService.attach(MainActivity.this);
+			mState = mService.getState();
+			mEngine.setTarget(mService.getEngine());
+			mPiano1.setIncomingNotes(mService.getIncomingNotes());
+			mPiano2.setIncomingNotes(mService.getIncomingNotes());
+			invalidateOptionsMenu();
+			if (mResumed) {
+				restoreState();
+			}
+		}
+
+		@Override
+		public void onServiceDisconnected(ComponentName name) {
+			// the service runs in this process, this is not expected
+			detachEngine();
+		}
+	};
 	private TabHost mTabs = null;
 	private TabWidget mTabWidget;
-	private int[] mCtlState;
 	private int[] mCtlNum;
 	private int[] mCtlDefs;
 	private Spinner mSpinChannel;
 	private Spinner mSpinOctave;
 	private Switch mSwitchMono;
 
-	private float[] mGravity = new float[] { SensorManager.GRAVITY_EARTH, SensorManager.GRAVITY_EARTH,
-			SensorManager.GRAVITY_EARTH };
-	private SensorManager mSensorManager;
-	private Sensor mSensor = null;
+	/** set while the bars follow values sent by other means, like the sensor */
+	private boolean mBarsFollow = false;
+	private TiltSensor mTilt = null;
 	private WindowManager mWindowManager;
 	private Display mDisplay;
 
@@ -129,47 +169,28 @@ public class MainActivity extends Activity implements SensorEventListener {
 		}
 		super.onCreate(savedInstanceState);
 		Log.d("MainActivity", "onCreate");
+		StartupTrace.mark(StartupTrace.ACTIVITY_CREATE);
 		SettingChangeHelper.onMainActivityCreateApplySettings(this);
 		setContentView(R.layout.activity_main);
 		mGestureDetector = new GestureDetector(this, new GestureListener());
-		mSensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
-		mSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_GRAVITY);
-		if (mSensor == null) {
-			mSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-		}
-		if (mSensor != null) {
-			Log.d("MainActivity", "sensor: " + mSensor.getName());
-		}
 		mWindowManager = (WindowManager) getSystemService(WINDOW_SERVICE);
 		mDisplay = mWindowManager.getDefaultDisplay();
+		mTilt = TiltSensor.create((SensorManager) getSystemService(SENSOR_SERVICE), mDisplay, mTiltListener);
 
-		switch (SettingChangeHelper.getCurrentOutputMode(this)) {
-			case SettingChangeHelper.MIDI_OUTPUT_MODE_SYSTEM:
-				mEngine = SystemMidiEngine.create(this, new MidiConnectionListener());
-				if (mEngine == null) {
-					// Fallback just in case
-					mEngine = new SynthEngine(this);
-				}
-				break;
-			case SettingChangeHelper.MIDI_OUTPUT_MODE_NETWORK:
-				mEngine = new NetworkMidi(this);
-				break;
-			case SettingChangeHelper.MIDI_OUTPUT_MODE_INTERNAL_SYNTH:
-				mEngine = new SynthEngine(this);
-				break;
-		}
-		if (mEngine == null) {
-			throw new RuntimeException("mEngine is null");
+		if (mTilt != null) {
+			mTilt.setEngine(mEngine);
 		}
 
-		mPiano1 = (PianoView) findViewById(R.id.pianoView1);
+		boolean threaded = Settings.get(this).threadedKeyboard;
+		mPiano1 = setupKeyboard(R.id.pianoView1, threaded);
 		if (mPiano1 != null) {
 			mPiano1.setEngine(mEngine);
 		}
-		mPiano2 = (PianoView) findViewById(R.id.pianoView2);
+		mPiano2 = setupKeyboard(R.id.pianoView2, threaded);
 		if (mPiano2 != null) {
 			mPiano2.setEngine(mEngine);
 		}
+		mPianoView2 = findViewById(R.id.pianoView2);
 
 		/*
 		 * Common tab
@@ -180,11 +201,17 @@ public class MainActivity extends Activity implements SensorEventListener {
 			mSpinChannel.setOnItemSelectedListener(new OnItemSelectedListener() {
 				@Override
 				public void onItemSelected(AdapterView<?> a, View v, int pos, long id) {
+					if (pos == mChannel) {
+						// set along with the rest of a restored state or preset
+						return;
+					}
 					mPiano1.setChannel(pos);
 					mPiano2.setChannel(pos);
 					mChannel = pos;
-					resetCtlDefaults();
-					applyCtlStates();
+					if (mTilt != null) {
+						mTilt.setChannel(pos);
+					}
+					applyCtlDefaults();
 					mGrp = -1;
 					mInst = -1;
 					midiPanic();
@@ -217,8 +244,7 @@ public class MainActivity extends Activity implements SensorEventListener {
 			btnReset.setOnClickListener(new View.OnClickListener() {
 				public void onClick(View v) {
 					midiReset();
-					resetCtlDefaults();
-					applyCtlStates();
+					applyCtlDefaults();
 				}
 			});
 		}
@@ -242,8 +268,10 @@ public class MainActivity extends Activity implements SensorEventListener {
 
 				@Override
 				public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-					mPiano1.setVelocity(progress);
-					mPiano2.setVelocity(progress);
+					if (!mBarsFollow) {
+						mPiano1.setVelocity(progress);
+						mPiano2.setVelocity(progress);
+					}
 					velocityText.setText(String.valueOf(progress));
 				}
 			});
@@ -254,9 +282,13 @@ public class MainActivity extends Activity implements SensorEventListener {
 			mVelocityTurn.setOnCheckedChangeListener(new OnCheckedChangeListener() {
 				@Override
 				public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-					if (isChecked && mSensor == null) {
+					if (isChecked && mTilt == null) {
 						warnSensorNull();
 						mVelocityTurn.setChecked(false);
+						return;
+					}
+					if (mTilt != null) {
+						mTilt.setVelocityEnabled(isChecked);
 					}
 					if (!isChecked)
 						mVelocityBar.setProgress(100);
@@ -285,7 +317,6 @@ public class MainActivity extends Activity implements SensorEventListener {
 			mSpinGroups.setOnItemSelectedListener(new OnItemSelectedListener() {
 				@Override
 				public void onItemSelected(AdapterView<?> a, View v, int pos, long id) {
-					Log.d("MainActivity", "mSpinGroups.onItemSelected. pos=" + pos);
 					replaceInstrumentsForGroup(pos);
 					mSpinInst.setSelection(mInst, false);
 					changeEngineInstrument();
@@ -302,7 +333,6 @@ public class MainActivity extends Activity implements SensorEventListener {
 			mSpinInst.setOnItemSelectedListener(new OnItemSelectedListener() {
 				@Override
 				public void onItemSelected(AdapterView<?> a, View v, int pos, long id) {
-					Log.d("MainActivity", "mSpinInst.onItemSelected. pos=" + pos);
 					changeEngineInstrument();
 				}
 
@@ -327,8 +357,6 @@ public class MainActivity extends Activity implements SensorEventListener {
 		final TextView controlText = (TextView) findViewById(R.id.controlText);
 		mCtlNum = getResources().getIntArray(R.array.controller_values);
 		mCtlDefs = getResources().getIntArray(R.array.controller_defaults);
-		mCtlState = new int[mCtlDefs.length];
-		resetCtlDefaults();
 		mControlBar = (SeekBar) findViewById(R.id.controlBar);
 		mSpinCtls = (Spinner) findViewById(R.id.spinControllers);
 		if (mSpinCtls != null) {
@@ -336,7 +364,12 @@ public class MainActivity extends Activity implements SensorEventListener {
 			mSpinCtls.setOnItemSelectedListener(new OnItemSelectedListener() {
 				@Override
 				public void onItemSelected(AdapterView<?> arg0, View v, int pos, long id) {
-					mControlBar.setProgress(mCtlState[pos]);
+					if (mTilt != null) {
+						mTilt.setController(mCtlNum[pos]);
+					}
+					mBarsFollow = true;
+					mControlBar.setProgress(mState.controller7(mChannel, mCtlNum[pos]));
+					mBarsFollow = false;
 				}
 
 				@Override
@@ -358,8 +391,12 @@ public class MainActivity extends Activity implements SensorEventListener {
 				public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
 					int idx = mSpinCtls.getSelectedItemPosition();
 					int ctl = mCtlNum[idx];
-					mEngine.controller(mChannel, ctl, progress);
-					mCtlState[idx] = progress;
+					if (!mBarsFollow) {
+						mEngine.controllerHiRes(mChannel, ctl, UmpEncoder.scaleUp(progress, 7, 32));
+						if (mTilt != null) {
+							mTilt.forget(mChannel, ctl);
+						}
+					}
 					controlText.setText(String.valueOf(progress));
 				}
 			});
@@ -370,9 +407,13 @@ public class MainActivity extends Activity implements SensorEventListener {
 			mControlTurn.setOnCheckedChangeListener(new OnCheckedChangeListener() {
 				@Override
 				public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-					if (isChecked && mSensor == null) {
+					if (isChecked && mTilt == null) {
 						warnSensorNull();
 						mControlTurn.setChecked(false);
+						return;
+					}
+					if (mTilt != null) {
+						mTilt.setControlEnabled(isChecked);
 					}
 					if (!isChecked)
 						mControlBar.setProgress(0);
@@ -399,9 +440,12 @@ public class MainActivity extends Activity implements SensorEventListener {
 
 				@Override
 				public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-					// if (fromUser) {
-					mEngine.pitchWheel(mChannel, progress);
-					// }
+					if (!mBarsFollow) {
+						mEngine.pitchWheelHiRes(mChannel, UmpEncoder.scaleUp(progress, 14, 32));
+						if (mTilt != null) {
+							mTilt.forget(mChannel, ControllerGate.BENDER);
+						}
+					}
 					benderText.setText(String.valueOf(progress - 8192));
 				}
 			});
@@ -412,9 +456,13 @@ public class MainActivity extends Activity implements SensorEventListener {
 			mBenderTurn.setOnCheckedChangeListener(new OnCheckedChangeListener() {
 				@Override
 				public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-					if (isChecked && mSensor == null) {
+					if (isChecked && mTilt == null) {
 						warnSensorNull();
 						mBenderTurn.setChecked(false);
+						return;
+					}
+					if (mTilt != null) {
+						mTilt.setBenderEnabled(isChecked);
 					}
 					if (!isChecked)
 						mBenderBar.setProgress(8192);
@@ -440,6 +488,30 @@ public class MainActivity extends Activity implements SensorEventListener {
 		mTabs.setCurrentTab(DEFAULT_TAB);
 		// changeTabbedControlsVisibility(!mFullScreen);
 		applyPianoSettings();
+		StartupTrace.mark(StartupTrace.ACTIVITY_CREATED);
+	}
+
+	/**
+	 * Returns the keyboard model of the PianoView with the given id, replacing
+	 * the view by a PianoSurfaceView in the same place when the keyboard should
+	 * be drawn by its own render thread.
+	 */
+	private PianoKeyboard setupKeyboard(int id, boolean threaded) {
+		PianoView view = (PianoView) findViewById(id);
+		if (view == null) {
+			return null;
+		}
+		if (!threaded) {
+			return view.getKeyboard();
+		}
+		PianoSurfaceView surface = new PianoSurfaceView(this);
+		surface.setId(id);
+		surface.setVisibility(view.getVisibility());
+		ViewGroup parent = (ViewGroup) view.getParent();
+		int index = parent.indexOfChild(view);
+		parent.removeViewAt(index);
+		parent.addView(surface, index, view.getLayoutParams());
+		return surface.getKeyboard();
 	}
 
 	private void warnSensorNull() {
@@ -460,20 +532,42 @@ public class MainActivity extends Activity implements SensorEventListener {
 		mTabs.addTab(spec);
 	}
 
+	/**
+	 * The engine lives in a started service, surviving this activity, and is
+	 * used while bound.
+	 */
 	@Override
 	protected void onStart() {
 		super.onStart();
 		Log.d("MainActivity", "onStart");
-		final SharedPreferences settings = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+		Intent intent = new Intent(this, EngineService.class);
+		startService(intent);
+		mBound = bindService(intent, mConnection, BIND_AUTO_CREATE);
+	}
+
+	@Override
+	protected void onStop() {
+		super.onStop();
+		Log.d("MainActivity", "onStop");
+		detachEngine();
+		if (mBound) {
+			unbindService(mConnection);
+			mBound = false;
+		}
+	}
+
+	private void detachEngine() {
+		if (mService != null) {
+			mService.detach(this);
+			mService = null;
+			mEngine.setTarget(null);
+			mState = new ChannelStateTable();
+			mPiano1.setIncomingNotes(null);
+			mPiano2.setIncomingNotes(null);
+		}
 	}
 
 	/*
-	 * @Override
-	 * protected void onStop() {
-	 * super.onStop();
-	 * Log.d("MainActivity", "onStop");
-	 * }
-	 * 
 	 * @Override
 	 * protected void onRestart() {
 	 * super.onRestart();
@@ -481,38 +575,200 @@ public class MainActivity extends Activity implements SensorEventListener {
 	 * }
 	 */
 
+	/**
+	 * Puts the views and the engine as they were when last paused: the views
+	 * first, then the engine in a single batch.
+	 */
 	private void restoreState() {
 		Log.d("MainActivity", "Restore the last state");
-		SharedPreferences prefs = getSharedPreferences(PREFS_NAME, 0);
-		mTabs.setCurrentTab(prefs.getInt(STATE_TAB, DEFAULT_TAB));
-		mChannel = prefs.getInt(STATE_CHANNEL, mPiano1.channel());
+		PerformanceState state = PerformanceState.get(this);
+		if (state == null) {
+			state = loadLegacyState();
+		}
+		mTabs.setCurrentTab(state.tab);
+		applyStateToViews(state);
+		mGrp = mSpinGroups.getSelectedItemPosition();
+		mInst = mSpinInst.getSelectedItemPosition();
+		mPgm = mGrp * 8 + mInst;
+		mEngine.beginBatch();
+		try {
+			// only for a new service: otherwise the engine has kept its state
+			if (mService.takeStateRestore()) {
+				state.restoreChannels(mState);
+				// the engine has just started
+				mService.getEngine().resync();
+			}
+			// nothing to send when the engine already has the program shown
+			if (mState.program(mChannel) != mPgm) {
+				mEngine.programChange(mChannel, mPgm);
+			}
+		} finally {
+			mEngine.endBatch();
+		}
+		StartupTrace.mark(StartupTrace.STATE_RESTORED);
+	}
+
+	private void applyStateToViews(PerformanceState state) {
+		mChannel = state.channel;
 		mSpinChannel.setSelection(mChannel, false);
 		mPiano1.setChannel(mChannel);
 		mPiano2.setChannel(mChannel);
-		int octave = prefs.getInt(STATE_OCTAVE, mPiano1.baseOctave());
-		mSpinOctave.setSelection(octave, false);
-		mPiano1.setBaseOctave(octave);
-		mPiano2.setBaseOctave(octave - mPiano2.numberOfWholeOctaves());
-		int velocity = prefs.getInt(STATE_VELOCITY, DEFAULT_VELOCITY);
-		mVelocityBar.setProgress(velocity);
-		mPiano1.setVelocity(velocity);
-		mPiano2.setVelocity(velocity);
-		int grp = prefs.getInt(STATE_GROUP, DEFAULT_GROUP);
-		Log.d("MainActivity", "Restore group:" + grp);
-		mSpinGroups.setSelection(grp, false);
-		replaceInstrumentsForGroup(grp);
-		int inst = prefs.getInt(STATE_INSTRUMENT, DEFAULT_INSTRUMENT);
-		Log.d("MainActivity", "Restore instrument:" + inst);
-		mSpinInst.setSelection(inst, false);
-		for (int i = 0; i < mCtlState.length; ++i) {
-			String key = String.format("%s#%d", STATE_CONTROL, i);
-			mCtlState[i] = prefs.getInt(key, mCtlDefs[i]);
-			mEngine.controller(mChannel, mCtlNum[i], mCtlState[i]);
-		}
-		mSpinCtls.setSelection(prefs.getInt(STATE_CONTROLLER, DEFAULT_CONTROLLER), false);
-		mGrp = -1;
-		mInst = -1;
-		changeEngineInstrument();
+		mSpinOctave.setSelection(state.octave, false);
+		mPiano1.setBaseOctave(state.octave);
+		mPiano2.setBaseOctave(state.octave - mPiano2.numberOfWholeOctaves());
+		mVelocityBar.setProgress(state.velocity);
+		mPiano1.setVelocity(state.velocity);
+		mPiano2.setVelocity(state.velocity);
+		mSwitchMono.setChecked(state.mono);
+		mSpinGroups.setSelection(state.group, false);
+		replaceInstrumentsForGroup(state.group);
+		mSpinInst.setSelection(state.instrument, false);
+		mSpinCtls.setSelection(state.controller, false);
+		if (mTilt != null) {
+			mTilt.setChannel(mChannel);
+			mTilt.setController(mCtlNum[state.controller]);
+		}
+	}
+
+	/**
+	 * Puts the views and the engine as in a preset, but the tab. The engine
+	 * is only sent what differs from its current state, in one batch.
+	 */
+	private void recallPreset(PerformanceState preset) {
+		Log.d("MainActivity", "Recall preset");
+		applyStateToViews(preset);
+		mEngine.beginBatch();
+		try {
+			if (preset.hasChannels()) {
+				ChannelStateTable target = new ChannelStateTable();
+				preset.restoreChannels(target);
+				ChannelStateTable known = new ChannelStateTable();
+				known.copyFrom(mState);
+				int count = target.resync(mEngine, known);
+				Log.d("MainActivity", "preset sent " + count + " messages");
+				// the program was part of it
+				mGrp = preset.group;
+				mInst = preset.instrument;
+				mPgm = mGrp * 8 + mInst;
+			} else {
+				mGrp = -1;
+				mInst = -1;
+			}
+			changeEngineInstrument();
+		} finally {
+			mEngine.endBatch();
+		}
+		mBarsFollow = true;
+		mControlBar.setProgress(mState.controller7(mChannel, mCtlNum[preset.controller]));
+		mBarsFollow = false;
+	}
+
+	private void showPresets() {
+		final String[] names = PresetStore.names(this).toArray(new String[0]);
+		AlertDialog.Builder bldr = new AlertDialog.Builder(this)
+				.setTitle(R.string.action_presets)
+				.setNegativeButton(android.R.string.cancel, null)
+				.setPositiveButton(R.string.presets_save, new OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						askPresetName();
+					}
+				});
+		if (names.length == 0) {
+			bldr.setMessage(R.string.presets_empty);
+		} else {
+			bldr.setItems(names, new OnClickListener() {
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					PerformanceState preset = PresetStore.get(MainActivity.this, names[which]);
+					if (preset != null) {
+						recallPreset(preset);
+					}
+				}
+			});
+		}
+		AlertDialog dialog = bldr.show();
+		if (names.length > 0) {
+			dialog.getListView().setOnItemLongClickListener(new AdapterView.OnItemLongClickListener() {
+				@Override
+				public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
+					dialog.dismiss();
+					confirmPresetDelete(names[position]);
+					return true;
+				}
+			});
+		}
+	}
+
+	private void askPresetName() {
+		final EditText input = new EditText(this);
+		input.setSingleLine();
+		input.setHint(R.string.preset_name);
+		input.setText(mAllInstruments[mSpinGroups.getSelectedItemPosition() * 8
+				+ mSpinInst.getSelectedItemPosition()]);
+		input.selectAll();
+		new AlertDialog.Builder(this)
+				.setTitle(R.string.presets_save)
+				.setView(input)
+				.setNegativeButton(android.R.string.cancel, null)
+				.setPositiveButton(android.R.string.ok, new OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						String name = input.getText().toString().trim();
+						if (!name.isEmpty()) {
+							PresetStore.put(MainActivity.this, name, currentState());
+						}
+					}
+				}).show();
+	}
+
+	private void confirmPresetDelete(final String name) {
+		new AlertDialog.Builder(this)
+				.setTitle(R.string.action_presets)
+				.setMessage(getString(R.string.preset_delete, name))
+				.setNegativeButton(android.R.string.cancel, null)
+				.setPositiveButton(android.R.string.ok, new OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						PresetStore.remove(MainActivity.this, name);
+					}
+				}).show();
+	}
+
+	/**
+	 * The state as saved by older versions, one preference each, if any;
+	 * removed once read.
+	 */
+	private PerformanceState loadLegacyState() {
+		SharedPreferences prefs = getSharedPreferences(PREFS_NAME, 0);
+		int channel = prefs.getInt(STATE_CHANNEL, mPiano1.channel());
+		byte[] channels = null;
+		String encoded = prefs.getString(STATE_CHANNELS, null);
+		if (encoded != null) {
+			channels = Base64.decode(encoded, Base64.DEFAULT);
+		} else if (prefs.contains(STATE_CHANNEL)) {
+			// controller values for the current channel only
+			ChannelStateTable table = new ChannelStateTable();
+			for (int i = 0; i < mCtlNum.length; ++i) {
+				int value = prefs.getInt(STATE_CONTROL + "#" + i, mCtlDefs[i]);
+				table.setController(channel, mCtlNum[i], UmpEncoder.scaleUp(value, 7, 32));
+			}
+			channels = table.snapshot();
+		}
+		PerformanceState state = new PerformanceState(
+				prefs.getInt(STATE_TAB, DEFAULT_TAB),
+				channel,
+				prefs.getInt(STATE_OCTAVE, mPiano1.baseOctave()),
+				prefs.getInt(STATE_VELOCITY, DEFAULT_VELOCITY),
+				prefs.getInt(STATE_GROUP, DEFAULT_GROUP),
+				prefs.getInt(STATE_INSTRUMENT, DEFAULT_INSTRUMENT),
+				prefs.getInt(STATE_CONTROLLER, DEFAULT_CONTROLLER),
+				false,
+				channels);
+		if (prefs.contains(STATE_CHANNEL)) {
+			prefs.edit().clear().apply();
+		}
+		return state;
 	}
 
 	private void replaceInstrumentsForGroup(int grp) {
@@ -521,49 +777,63 @@ public class MainActivity extends Activity implements SensorEventListener {
 		mAdapter.addAll(Arrays.copyOfRange(mAllInstruments, from, from + 8));
 	}
 
+	/**
+	 * @return the state of the views, and of the engine if bound
+	 */
+	private PerformanceState currentState() {
+		return new PerformanceState(
+				mTabs.getCurrentTab(),
+				mChannel,
+				mSpinOctave.getSelectedItemPosition(),
+				mVelocityBar.getProgress(),
+				mSpinGroups.getSelectedItemPosition(),
+				mSpinInst.getSelectedItemPosition(),
+				mSpinCtls.getSelectedItemPosition(),
+				mSwitchMono.isChecked(),
+				mService != null ? mState.snapshot() : null);
+	}
+
 	private void saveState() {
 		Log.d("MainActivity", "Save the current state");
-		SharedPreferences prefs = getSharedPreferences(PREFS_NAME, 0);
-		SharedPreferences.Editor editor = prefs.edit();
-		editor.putInt(STATE_TAB, mTabs.getCurrentTab());
-		editor.putInt(STATE_CHANNEL, mChannel);
-		editor.putInt(STATE_OCTAVE, mSpinOctave.getSelectedItemPosition());
-		editor.putInt(STATE_VELOCITY, mVelocityBar.getProgress());
-		editor.putInt(STATE_GROUP, mSpinGroups.getSelectedItemPosition());
-		editor.putInt(STATE_INSTRUMENT, mSpinInst.getSelectedItemPosition());
-		editor.putInt(STATE_CONTROLLER, mSpinCtls.getSelectedItemPosition());
-		for (int i = 0; i < mCtlState.length; ++i) {
-			String key = String.format("%s#%d", STATE_CONTROL, i);
-			editor.putInt(key, mCtlState[i]);
+		PerformanceState state = currentState();
+		if (mService == null) {
+			// what the engine has is unknown, the last values saved stay
+			state = state.withChannelsOf(PerformanceState.get(this));
 		}
-		editor.apply();
+		PerformanceState.save(this, state);
 	}
 
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
 		Log.d("MainActivity", "onDestroy");
+		if (mTilt != null) {
+			mTilt.release();
+		}
 	}
 
 	@Override
 	protected void onResume() {
 		super.onResume();
 		Log.d("MainActivity", "onResume");
-		mEngine.start(this);
-		if (mSensor != null) {
-			mSensorManager.registerListener(this, mSensor, SensorManager.SENSOR_DELAY_UI);
+		mResumed = true;
+		StartupTrace.mark(StartupTrace.ACTIVITY_RESUMED);
+		if (mTilt != null) {
+			mTilt.start();
+		}
+		if (mService != null) {
+			restoreState();
 		}
-		restoreState();
 	}
 
 	@Override
 	protected void onPause() {
 		super.onPause();
 		Log.d("MainActivity", "onPause");
-		if (mSensor != null) {
-			mSensorManager.unregisterListener(this);
+		mResumed = false;
+		if (mTilt != null) {
+			mTilt.stop();
 		}
-		mEngine.stop();
 		saveState();
 	}
 
@@ -589,6 +859,27 @@ public class MainActivity extends Activity implements SensorEventListener {
 		return true;
 	}
 
+	@Override
+	public boolean onPrepareOptionsMenu(Menu menu) {
+		MenuItem item = menu.findItem(R.id.action_latency_report);
+		if (item != null) {
+			item.setVisible(LatencyMonitor.isEnabled());
+		}
+		item = menu.findItem(R.id.action_trace_save);
+		if (item != null) {
+			item.setVisible(TraceRing.isEnabled());
+		}
+		item = menu.findItem(R.id.action_metrics);
+		if (item != null) {
+			item.setVisible(TraceRing.isEnabled());
+		}
+		item = menu.findItem(R.id.action_replay);
+		if (item != null) {
+			item.setVisible(TraceRing.isEnabled());
+		}
+		return super.onPrepareOptionsMenu(menu);
+	}
+
 	@Override
 	public boolean onOptionsItemSelected(MenuItem item) {
 		if (item.getItemId() == R.id.action_about) {
@@ -606,6 +897,21 @@ public class MainActivity extends Activity implements SensorEventListener {
 		} else if (item.getItemId() == R.id.action_fullscreen) {
 			toggleFullScreen(item);
 			return true;
+		} else if (item.getItemId() == R.id.action_presets) {
+			showPresets();
+			return true;
+		} else if (item.getItemId() == R.id.action_latency_report) {
+			showLatencyReport();
+			return true;
+		} else if (item.getItemId() == R.id.action_trace_save) {
+			saveTrace();
+			return true;
+		} else if (item.getItemId() == R.id.action_metrics) {
+			showMetrics();
+			return true;
+		} else if (item.getItemId() == R.id.action_replay) {
+			chooseReplay();
+			return true;
 		} else if (mEngine.onOptionsItemSelected(item)) {
 			return true;
 		} else {
@@ -639,29 +945,28 @@ public class MainActivity extends Activity implements SensorEventListener {
 		super.onBackPressed();
 	}
 
-	private void resetCtlDefaults() {
-		for (int i = 0; i < mCtlDefs.length; ++i) {
-			mCtlState[i] = mCtlDefs[i];
-		}
-	}
-
-	private void applyCtlStates() {
-		for (int i = 0; i < mCtlState.length; ++i) {
-			mEngine.controller(mChannel, mCtlNum[i], mCtlState[i]);
+	private void applyCtlDefaults() {
+		mEngine.beginBatch();
+		try {
+			for (int i = 0; i < mCtlDefs.length; ++i) {
+				mEngine.controller(mChannel, mCtlNum[i], mCtlDefs[i]);
+			}
+		} finally {
+			mEngine.endBatch();
 		}
 		mSpinCtls.setSelection(0, false);
-		mControlBar.setProgress(mCtlState[0]);
+		mBarsFollow = true;
+		mControlBar.setProgress(mCtlDefs[0]);
+		mBarsFollow = false;
 	}
 
 	private void changeEngineInstrument() {
 		int newGrp = mSpinGroups.getSelectedItemPosition();
 		int newInst = mSpinInst.getSelectedItemPosition();
-		Log.d("MainActivity", "changeEngineInstrument. newGroup=" + newGrp + " newInstrument=" + newInst);
 		if (mInst != newInst || mGrp != newGrp) {
 			mInst = newInst;
 			mGrp = newGrp;
 			mPgm = mGrp * 8 + mInst;
-			Log.d("MainActivity", "changeEngineInstrument. Program:" + mPgm);
 			mEngine.programChange(mChannel, mPgm);
 		}
 	}
@@ -677,8 +982,7 @@ public class MainActivity extends Activity implements SensorEventListener {
 		Window w = getWindow();
 		ActionBar actionBar = getActionBar();
 		// View mMainView = findViewById(R.id.mainLayout);
-		SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(this);
-		boolean secondKeybd = sharedPrefs.getBoolean("double_keyboard", true);
+		boolean secondKeybd = Settings.get(this).doubleKeyboard;
 		item.setChecked(mFullScreen);
 		if (w != null) {
 			if (mFullScreen) {
@@ -690,7 +994,7 @@ public class MainActivity extends Activity implements SensorEventListener {
 				// mMainView.setSystemUiVisibility(View.SYSTEM_UI_FLAG_HIDE_NAVIGATION);
 				// mMainView.setSystemUiVisibility(View.SYSTEM_UI_FLAG_FULLSCREEN);
 				if (secondKeybd) {
-					mPiano2.setVisibility(View.VISIBLE);
+					mPianoView2.setVisibility(View.VISIBLE);
 				}
 			} else {
 				w.clearFlags(WindowManager.LayoutParams.FLAG_FULLSCREEN);
@@ -698,7 +1002,7 @@ public class MainActivity extends Activity implements SensorEventListener {
 				actionBar.show(); // slides in
 				changeTabbedControlsVisibility(true);
 				// mMainView.setSystemUiVisibility(View.SYSTEM_UI_FLAG_VISIBLE);
-				mPiano2.setVisibility(View.INVISIBLE);
+				mPianoView2.setVisibility(View.INVISIBLE);
 			}
 		}
 	}
@@ -729,21 +1033,204 @@ public class MainActivity extends Activity implements SensorEventListener {
 	}
 
 	private void applyPianoSettings() {
-		SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(this);
-		int numKeys = sharedPrefs.getInt("number_of_keys",
-				getResources().getInteger(R.integer.default_keys));
-		int firstKey = Integer.parseInt(sharedPrefs.getString("first_key",
-				getResources().getString(R.string.default_firstKey)));
-		int color = sharedPrefs.getInt("color", 0xff0099cc);
+		Settings settings = Settings.get(this);
+		int numKeys = settings.numberOfKeys;
+		int firstKey = settings.firstKey;
+		int color = settings.color;
 		// getResources().getColor(android.R.color.holo_blue_dark));
+		boolean fullRange = settings.fullRange;
+		boolean latency = settings.latencyOverlay;
+		LatencyMonitor.setEnabled(latency);
+		TraceRing.setEnabled(settings.traceEvents);
+		Log.setEnabled(settings.traceEvents);
+		if (mTilt != null) {
+			mTilt.setMaxRate(settings.sensorRate);
+		}
 
 		mPiano1.setNumberOfKeys(numKeys);
 		mPiano1.setFirstKey(firstKey);
 		mPiano1.setHighlightColor(color);
+		mPiano1.setFullRange(fullRange);
+		mPiano1.setShowLatency(latency);
 
 		mPiano2.setNumberOfKeys(numKeys);
 		mPiano2.setFirstKey(firstKey);
 		mPiano2.setHighlightColor(color);
+		mPiano2.setFullRange(fullRange);
+		mPiano2.setShowLatency(latency);
+
+		invalidateOptionsMenu();
+	}
+
+	private void showLatencyReport() {
+		mEngine.collectStats();
+		String engineReport = mEngine.statsReport();
+		String gateReport = mTilt == null ? LatencyMonitor.report()
+				: LatencyMonitor.report() + "\nTilt controllers: " + mTilt.gateStats() + "\n";
+		String startReport = gateReport + "\n" + StartupTrace.report();
+		final String report = engineReport == null ? startReport : startReport + "\n" + engineReport;
+		new AlertDialog.Builder(this)
+				.setTitle(R.string.action_latency_report)
+				.setMessage(report)
+				.setPositiveButton(R.string.latency_share, new OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						Intent i = new Intent(Intent.ACTION_SEND);
+						i.setType("text/plain");
+						i.putExtra(Intent.EXTRA_TEXT, report);
+						startActivity(Intent.createChooser(i, getString(R.string.action_latency_report)));
+					}
+				})
+				.setNeutralButton(R.string.latency_reset, new OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						LatencyMonitor.reset();
+					}
+				})
+				.setNegativeButton(android.R.string.cancel, null)
+				.show();
+	}
+
+	/**
+	 * The metrics as text; shared as JSON, with the histogram buckets.
+	 */
+	private void showMetrics() {
+		mEngine.collectStats();
+		new AlertDialog.Builder(this)
+				.setTitle(R.string.action_metrics)
+				.setMessage(Metrics.report())
+				.setPositiveButton(R.string.latency_share, new OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						Intent i = new Intent(Intent.ACTION_SEND);
+						i.setType("application/json");
+						i.putExtra(Intent.EXTRA_TEXT, Metrics.toJson());
+						startActivity(Intent.createChooser(i, getString(R.string.action_metrics)));
+					}
+				})
+				.setNeutralButton(R.string.latency_reset, new OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						Metrics.reset();
+					}
+				})
+				.setNegativeButton(android.R.string.cancel, null)
+				.show();
+	}
+
+	/**
+	 * Writes the trace in the background, to the app folder in the shared
+	 * storage, where adb pull or a file manager can get it.
+	 */
+	private void saveTrace() {
+		final File dir = getExternalFilesDir(null);
+		final File file = new File(dir != null ? dir : getFilesDir(), "trace.json");
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				int count = -1;
+				try (Writer out = new BufferedWriter(new FileWriter(file))) {
+					count = TraceRing.dump(out);
+				} catch (IOException ex) {
+					Log.e("MainActivity", "saveTrace", ex);
+				}
+				final String message = count < 0 ? getString(R.string.trace_failed)
+						: getString(R.string.trace_saved, count, file.getPath());
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						Toast.makeText(MainActivity.this, message, Toast.LENGTH_LONG).show();
+					}
+				});
+			}
+		}, "TraceSave").start();
+	}
+
+	private void chooseReplay() {
+		new AlertDialog.Builder(this)
+				.setTitle(R.string.action_replay)
+				.setItems(R.array.replay_modes, new OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						runReplay(which == 1);
+					}
+				})
+				.setNegativeButton(android.R.string.cancel, null)
+				.show();
+	}
+
+	/**
+	 * Plays replay.txt, from the same folder as the trace, or else a built in
+	 * script, through a keyboard of the size of the first one, as fast as
+	 * possible or at the pace of the script. If the output is the internal
+	 * synthesizer, the notes are played by another instance of it, so that
+	 * the program and controllers of the real one stay as the views and the
+	 * service state say; other outputs are left alone.
+	 */
+	private void runReplay(final boolean paced) {
+		View view = findViewById(R.id.pianoView1);
+		int width = Math.max(view.getWidth(), 1);
+		int height = Math.max(view.getHeight(), 1);
+		MidiEngine output = mService == null ? null : mService.getEngine().getTarget();
+		final SynthEngine synth = output instanceof SynthEngine ? new SynthEngine(this) : null;
+		final ReplaySink sink = new ReplaySink(synth);
+		final File dir = getExternalFilesDir(null);
+		final File file = new File(dir != null ? dir : getFilesDir(), "replay.txt");
+		ReplayScript script = null;
+		if (file.exists()) {
+			try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+				script = ReplayScript.parse(in);
+			} catch (IOException ex) {
+				Log.e("MainActivity", "runReplay", ex);
+			}
+		}
+		if (script == null) {
+			script = ReplayScript.generate(20);
+		}
+		// the keyboard needs this thread's Looper
+		final ReplayHarness harness = new ReplayHarness(this, script, sink, width, height);
+		Toast.makeText(this, R.string.replay_running, Toast.LENGTH_SHORT).show();
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				if (synth != null) {
+					synth.start(MainActivity.this);
+				}
+				ReplayHarness.Result result = harness.run(paced ? 1 : 5, paced);
+				harness.release();
+				if (synth != null) {
+					synth.stop();
+					synth.release();
+				}
+				final String report = result.report();
+				Log.d("MainActivity", report);
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						if (!isFinishing()) {
+							showReplayResult(report);
+						}
+					}
+				});
+			}
+		}, "Replay").start();
+	}
+
+	private void showReplayResult(final String report) {
+		new AlertDialog.Builder(this)
+				.setTitle(R.string.action_replay)
+				.setMessage(report)
+				.setPositiveButton(R.string.latency_share, new OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						Intent i = new Intent(Intent.ACTION_SEND);
+						i.setType("text/plain");
+						i.putExtra(Intent.EXTRA_TEXT, report);
+						startActivity(Intent.createChooser(i, getString(R.string.action_replay)));
+					}
+				})
+				.setNegativeButton(android.R.string.cancel, null)
+				.show();
 	}
 
 	private void showHelp() {
@@ -760,56 +1247,31 @@ public class MainActivity extends Activity implements SensorEventListener {
 		return super.onTouchEvent(event);
 	}
 
-	@Override
-	public void onAccuracyChanged(Sensor arg0, int arg1) {
-	}
-
-	@Override
-	public void onSensorChanged(SensorEvent event) {
-		float sensorf = 0;
-		if (!(mVelocityTurn.isChecked() || mControlTurn.isChecked() || mBenderTurn.isChecked())) {
-			return;
-		}
-		if (event.sensor.getType() == Sensor.TYPE_GRAVITY) {
-			mGravity[0] = event.values[0];
-			mGravity[1] = event.values[1];
-			// mGravity[2] = event.values[2];
-		} else if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
-			final float alpha = 0.8f;
-			mGravity[0] = alpha * mGravity[0] + (1 - alpha) * event.values[0];
-			mGravity[1] = alpha * mGravity[1] + (1 - alpha) * event.values[1];
-			// mGravity[2] = alpha * mGravity[2] + (1 - alpha) * event.values[2];
-		} else
-			return;
-
-		switch (mDisplay.getRotation()) {
-			case Surface.ROTATION_0:
-				sensorf = mGravity[0];
-				break;
-			case Surface.ROTATION_90:
-				sensorf = -mGravity[1];
-				break;
-			case Surface.ROTATION_180:
-				sensorf = -mGravity[0];
-				break;
-			case Surface.ROTATION_270:
-				sensorf = mGravity[1];
-				break;
-		}
-		// Log.d("MainActivity", String.format("SensorChanged(%.2f)", sensorf));
-
-		if (mBenderTurn.isChecked()) {
-			mBenderBar.setProgress((int) (sensorf * 819.2f + 8191f));
-		}
-
-		if (mVelocityTurn.isChecked()) {
-			mVelocityBar.setProgress((int) ((sensorf + SensorManager.GRAVITY_EARTH) * 6.47f));
+	private final TiltSensor.Listener mTiltListener = new TiltSensor.Listener() {
+		@Override
+		public void onTiltVelocity(int velocity) {
+			mPiano1.setVelocityHiRes(velocity);
+			mPiano2.setVelocityHiRes(velocity);
 		}
 
-		if (mControlTurn.isChecked()) {
-			mControlBar.setProgress((int) ((sensorf + SensorManager.GRAVITY_EARTH) * 6.47f));
+		/**
+		 * The values were sent already, the bars just follow them.
+		 */
+		@Override
+		public void onTiltDisplay(int bender, int velocity, int control) {
+			mBarsFollow = true;
+			if (bender >= 0 && mBenderTurn.isChecked()) {
+				mBenderBar.setProgress(bender);
+			}
+			if (velocity >= 0 && mVelocityTurn.isChecked()) {
+				mVelocityBar.setProgress(velocity);
+			}
+			if (control >= 0 && mControlTurn.isChecked()) {
+				mControlBar.setProgress(control);
+			}
+			mBarsFollow = false;
 		}
-	}
+	};
 
 	private class GestureListener extends GestureDetector.SimpleOnGestureListener {
 		@Override
@@ -833,14 +1295,4 @@ public class MainActivity extends Activity implements SensorEventListener {
 		}
 	}
 
-	private class MidiConnectionListener implements MidiEngine.ConnectionListener {
-		@Override
-		public void onMidiConnected() {
-			for (int i = 0; i < mCtlState.length; ++i) {
-				mEngine.controller(mChannel, mCtlNum[i], mCtlState[i]);
-			}
-			mEngine.programChange(mChannel, mPgm);
-		}
-	}
-
 }
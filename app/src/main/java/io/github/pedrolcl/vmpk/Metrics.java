@@ -0,0 +1,287 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters, gauges and histograms, all kept in one preallocated array of
+ * atomic longs. Each metric is created once, as a static field of the code
+ * it measures, and recording a sample is one or two atomic operations on
+ * its slots: no locks, no allocation, from any thread.
+ *
+ * Histograms count samples in fixed power-of-two buckets: bucket b holds
+ * values in [2^(b-1), 2^b), the last one is open ended. The unit is up to
+ * each histogram, and part of its name.
+ */
+public final class Metrics {
+	public static final int BUCKETS = 32;
+	private static final int SLOTS = 1024;
+
+	private static final AtomicLongArray sValues = new AtomicLongArray(SLOTS);
+	// guarded by Metrics.class
+	private static final ArrayList<Metric> sMetrics = new ArrayList<>();
+	private static int sUsed = 0;
+
+	private Metrics() {
+	}
+
+	public abstract static class Metric {
+		final String mName;
+		final int mSlot;
+
+		Metric(String name, int slot) {
+			mName = name;
+			mSlot = slot;
+		}
+
+		public String name() {
+			return mName;
+		}
+
+		abstract void report(StringBuilder sb);
+
+		abstract void json(StringBuilder sb);
+
+		abstract void reset();
+	}
+
+	/**
+	 * A number of things that happened.
+	 */
+	public static final class Counter extends Metric {
+		Counter(String name, int slot) {
+			super(name, slot);
+		}
+
+		public void increment() {
+			sValues.incrementAndGet(mSlot);
+		}
+
+		public void add(long delta) {
+			sValues.addAndGet(mSlot, delta);
+		}
+
+		public long get() {
+			return sValues.get(mSlot);
+		}
+
+		@Override
+		void report(StringBuilder sb) {
+			sb.append(String.format(Locale.US, "%-28s %d\n", mName, get()));
+		}
+
+		@Override
+		void json(StringBuilder sb) {
+			sb.append("{\"name\":\"").append(mName).append("\",\"type\":\"counter\",\"value\":")
+					.append(get()).append('}');
+		}
+
+		@Override
+		void reset() {
+			sValues.set(mSlot, 0);
+		}
+	}
+
+	/**
+	 * The latest value of something, kept on reset.
+	 */
+	public static final class Gauge extends Metric {
+		Gauge(String name, int slot) {
+			super(name, slot);
+		}
+
+		public void set(long value) {
+			sValues.set(mSlot, value);
+		}
+
+		public long get() {
+			return sValues.get(mSlot);
+		}
+
+		@Override
+		void report(StringBuilder sb) {
+			sb.append(String.format(Locale.US, "%-28s %d\n", mName, get()));
+		}
+
+		@Override
+		void json(StringBuilder sb) {
+			sb.append("{\"name\":\"").append(mName).append("\",\"type\":\"gauge\",\"value\":")
+					.append(get()).append('}');
+		}
+
+		@Override
+		void reset() {
+		}
+	}
+
+	/**
+	 * A distribution of values, BUCKETS slots plus one for the maximum.
+	 */
+	public static final class Histogram extends Metric {
+		Histogram(String name, int slot) {
+			super(name, slot);
+		}
+
+		public void record(long value) {
+			if (value < 0) {
+				return;
+			}
+			int bucket = Math.min(64 - Long.numberOfLeadingZeros(value), BUCKETS - 1);
+			sValues.incrementAndGet(mSlot + bucket);
+			int maxSlot = mSlot + BUCKETS;
+			long max = sValues.get(maxSlot);
+			while (value > max && !sValues.compareAndSet(maxSlot, max, value)) {
+				max = sValues.get(maxSlot);
+			}
+		}
+
+		public long count() {
+			long n = 0;
+			for (int b = 0; b < BUCKETS; ++b) {
+				n += sValues.get(mSlot + b);
+			}
+			return n;
+		}
+
+		public long max() {
+			return sValues.get(mSlot + BUCKETS);
+		}
+
+		/**
+		 * @return upper bound of the bucket holding the given percentile, or 0
+		 *         when there are no samples
+		 */
+		public long percentile(double p) {
+			long n = count();
+			if (n == 0) {
+				return 0;
+			}
+			long target = (long) Math.ceil(n * p);
+			long acc = 0;
+			for (int b = 0; b < BUCKETS; ++b) {
+				acc += sValues.get(mSlot + b);
+				if (acc >= target) {
+					return 1L << b;
+				}
+			}
+			return 1L << (BUCKETS - 1);
+		}
+
+		@Override
+		void report(StringBuilder sb) {
+			sb.append(String.format(Locale.US, "%-28s n=%d p50<%d p99<%d max=%d\n", mName, count(),
+					percentile(.5), percentile(.99), max()));
+		}
+
+		@Override
+		void json(StringBuilder sb) {
+			sb.append("{\"name\":\"").append(mName).append("\",\"type\":\"histogram\",\"max\":")
+					.append(max()).append(",\"buckets\":[");
+			for (int b = 0; b < BUCKETS; ++b) {
+				if (b > 0) {
+					sb.append(',');
+				}
+				sb.append(sValues.get(mSlot + b));
+			}
+			sb.append("]}");
+		}
+
+		@Override
+		void reset() {
+			for (int i = 0; i <= BUCKETS; ++i) {
+				sValues.set(mSlot + i, 0);
+			}
+		}
+	}
+
+	/**
+	 * @param slots needed by the metric
+	 * @return the first slot
+	 */
+	private static int allocate(int slots) {
+		if (sUsed + slots > SLOTS) {
+			throw new IllegalStateException("no room for more metrics");
+		}
+		int slot = sUsed;
+		sUsed += slots;
+		return slot;
+	}
+
+	private static Metric find(String name) {
+		for (Metric metric : sMetrics) {
+			if (metric.mName.equals(name)) {
+				return metric;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the counter with that name, created if needed
+	 */
+	public static synchronized Counter counter(String name) {
+		Metric metric = find(name);
+		if (metric == null) {
+			metric = new Counter(name, allocate(1));
+			sMetrics.add(metric);
+		}
+		return (Counter) metric;
+	}
+
+	public static synchronized Gauge gauge(String name) {
+		Metric metric = find(name);
+		if (metric == null) {
+			metric = new Gauge(name, allocate(1));
+			sMetrics.add(metric);
+		}
+		return (Gauge) metric;
+	}
+
+	public static synchronized Histogram histogram(String name) {
+		Metric metric = find(name);
+		if (metric == null) {
+			metric = new Histogram(name, allocate(BUCKETS + 1));
+			sMetrics.add(metric);
+		}
+		return (Histogram) metric;
+	}
+
+	/**
+	 * Zeroes counters and histograms; gauges keep their values.
+	 */
+	public static synchronized void reset() {
+		for (Metric metric : sMetrics) {
+			metric.reset();
+		}
+	}
+
+	/**
+	 * One line per metric, for the debug screen.
+	 */
+	public static synchronized String report() {
+		StringBuilder sb = new StringBuilder("VMPK metrics\n\n");
+		for (Metric metric : sMetrics) {
+			metric.report(sb);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Every value, with the histogram buckets, as a JSON object.
+	 */
+	public static synchronized String toJson() {
+		StringBuilder sb = new StringBuilder("{\"bucketBase\":2,\"metrics\":[\n");
+		for (int i = 0; i < sMetrics.size(); ++i) {
+			if (i > 0) {
+				sb.append(",\n");
+			}
+			sMetrics.get(i).json(sb);
+		}
+		sb.append("\n]}\n");
+		return sb.toString();
+	}
+}
@@ -4,6 +4,7 @@
 package io.github.pedrolcl.vmpk;
 
 import android.app.Activity;
+import android.content.Context;
 import android.view.Menu;
 import android.view.MenuItem;
 
@@ -38,10 +39,57 @@ public interface MidiEngine {
 		return false;
 	}
 
-	public void start(Activity activity);
+	/**
+	 * Pulls statistics gathered outside the Java side (e.g. by the native
+	 * render callback) into {@link LatencyMonitor}.
+	 */
+	public default void collectStats() {
+	}
+
+	/**
+	 * @return engine specific statistics for the latency report, or null
+	 */
+	public default String statsReport() {
+		return null;
+	}
+
+	/**
+	 * Receives the MIDI messages coming from the outside world, for engines
+	 * able to listen. May be called on any thread.
+	 */
+	public default void setInputListener(InputListener listener) {
+	}
+
+	/**
+	 * Messages sent until the matching {@link #endBatch()} may be held back
+	 * and delivered together. Batches may nest.
+	 */
+	public default void beginBatch() {
+	}
+
+	public default void endBatch() {
+	}
+
+	/**
+	 * Gives the engine the activity to show its dialogs on, or null when
+	 * none is visible. Engines live longer than activities, in
+	 * {@link EngineService}. Called on the UI thread.
+	 */
+	public default void attach(Activity activity) {
+	}
+
+	public void start(Context context);
 
 	public void stop();
 
+	/**
+	 * Frees what a stopped engine keeps to start again quickly. The internal
+	 * synthesizer may still be started afterwards, paying the full setup
+	 * again; other engines are done.
+	 */
+	public default void release() {
+	}
+
 	public void pitchWheel(int channel, int num);
 
 	public void channelPressure(int channel, int num);
@@ -56,11 +104,53 @@ public interface MidiEngine {
 
 	public void noteOff(int channel, int note, int vel);
 
+	/*
+	 * MIDI 2.0 resolution: 16 bit velocities and 32 bit unsigned values, the
+	 * bender centered at 0x80000000. Engines without it get the values
+	 * scaled down.
+	 */
+
+	/**
+	 * @return true if the high resolution values reach some receiver
+	 *         unchanged
+	 */
+	public default boolean hasHiResOutput() {
+		return false;
+	}
+
+	public default void pitchWheelHiRes(int channel, long value) {
+		pitchWheel(channel, UmpEncoder.scaleDown(value, 32, 14));
+	}
+
+	public default void channelPressureHiRes(int channel, long value) {
+		channelPressure(channel, UmpEncoder.scaleDown(value, 32, 7));
+	}
+
+	public default void controllerHiRes(int channel, int ctl, long value) {
+		controller(channel, ctl, UmpEncoder.scaleDown(value, 32, 7));
+	}
+
+	public default void noteOnHiRes(int channel, int note, int velocity) {
+		noteOn(channel, note, UmpEncoder.velocity7(velocity));
+	}
+
 	public void panic();
 
 	public void reset();
 
 	public interface ConnectionListener {
-		public void onMidiConnected();
+		/**
+		 * New receivers, in the General MIDI power on state, have been
+		 * connected to the engine. Called on the UI thread.
+		 */
+		public void onMidiConnected(MidiEngine engine);
+	}
+
+	public interface InputListener {
+		/**
+		 * Called on the receiving thread, which must not be blocked. Data bytes
+		 * not used by the message are 0; realtime messages come alone.
+		 */
+		public void onMidiMessage(int status, int data1, int data2);
 	}
 }
@@ -0,0 +1,100 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+import android.content.SharedPreferences;
+import android.media.midi.MidiDeviceInfo;
+import android.os.Build;
+import android.os.Bundle;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Remembers the chosen MIDI ports across disconnections and app restarts.
+ *
+ * MidiDeviceInfo ids change every time a device is plugged in, so ports are
+ * identified by what the device says about itself: type, name,
+ * manufacturer, product, serial number, port number, and whether it uses
+ * Universal MIDI Packets, since some devices are listed once per transport.
+ * Reads are lock-free from any thread; changes are saved in the background.
+ */
+public class MidiPortMemory {
+	private static final String KEY_OUTPUTS = "midi_output_ports";
+	private static final String KEY_INPUT = "midi_input_port";
+
+	private final SharedPreferences mPrefs;
+	private volatile Set<String> mOutputs;
+	private volatile String mInput;
+
+	public MidiPortMemory(SharedPreferences prefs) {
+		mPrefs = prefs;
+		mOutputs = Collections.unmodifiableSet(new HashSet<>(prefs.getStringSet(KEY_OUTPUTS,
+				Collections.<String>emptySet())));
+		mInput = prefs.getString(KEY_INPUT, null);
+	}
+
+	/**
+	 * @param type MidiDeviceInfo.PortInfo.TYPE_INPUT or TYPE_OUTPUT
+	 */
+	public static String identity(MidiDeviceInfo device, int type, int portNumber) {
+		Bundle bundle = device.getProperties();
+		StringBuilder sb = new StringBuilder();
+		sb.append(device.getType());
+		sb.append(type == MidiDeviceInfo.PortInfo.TYPE_INPUT ? "|in|" : "|out|");
+		sb.append(portNumber);
+		sb.append('|').append(bundle.getString(MidiDeviceInfo.PROPERTY_NAME));
+		sb.append('|').append(bundle.getString(MidiDeviceInfo.PROPERTY_MANUFACTURER));
+		sb.append('|').append(bundle.getString(MidiDeviceInfo.PROPERTY_PRODUCT));
+		sb.append('|').append(bundle.getString(MidiDeviceInfo.PROPERTY_SERIAL_NUMBER));
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
+				&& device.getDefaultProtocol() != MidiDeviceInfo.PROTOCOL_UNKNOWN) {
+			sb.append("|ump");
+		}
+		return sb.toString();
+	}
+
+	public boolean hasOutputs() {
+		return !mOutputs.isEmpty();
+	}
+
+	public boolean isOutput(String identity) {
+		return mOutputs.contains(identity);
+	}
+
+	public synchronized void addOutput(String identity) {
+		if (!mOutputs.contains(identity)) {
+			Set<String> outputs = new HashSet<>(mOutputs);
+			outputs.add(identity);
+			setOutputs(outputs);
+		}
+	}
+
+	public synchronized void removeOutput(String identity) {
+		if (mOutputs.contains(identity)) {
+			Set<String> outputs = new HashSet<>(mOutputs);
+			outputs.remove(identity);
+			setOutputs(outputs);
+		}
+	}
+
+	public synchronized void clearOutputs() {
+		setOutputs(new HashSet<String>());
+	}
+
+	private void setOutputs(Set<String> outputs) {
+		mOutputs = Collections.unmodifiableSet(outputs);
+		mPrefs.edit().putStringSet(KEY_OUTPUTS, outputs).apply();
+	}
+
+	public String getInput() {
+		return mInput;
+	}
+
+	public synchronized void setInput(String identity) {
+		mInput = identity;
+		mPrefs.edit().putString(KEY_INPUT, identity).apply();
+	}
+}
@@ -0,0 +1,162 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue of short MIDI messages, for handing them from any
+ * number of producer threads (touch, sensors) to a single consumer thread
+ * doing the actual I/O. Messages are packed into a long, so offering and
+ * polling never allocate.
+ *
+ * The low bytes hold a MIDI 1.0 message. A high resolution message also
+ * carries a MIDI 2.0 value (16 bit velocity, or 32 bit controller, bend or
+ * pressure) in the high word, while its data bytes hold the same value
+ * scaled down, for MIDI 1.0 ports.
+ */
+public final class MidiRing {
+	/** returned by {@link #poll()} when there is nothing to read */
+	public static final long EMPTY = 0;
+
+	private static final long HIRES = 1L << 24;
+
+	private final int mMask;
+	private final long[] mMessages;
+	/** per slot sequence numbers, telling which lap may use each slot */
+	private final AtomicLongArray mSequence;
+	private final AtomicLong mTail = new AtomicLong(0);
+	private long mHead = 0;
+
+	/**
+	 * @param capacity rounded up to a power of two
+	 */
+	public MidiRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		mMask = size - 1;
+		mMessages = new long[size];
+		mSequence = new AtomicLongArray(size);
+		for (int i = 0; i < size; ++i) {
+			mSequence.set(i, i);
+		}
+	}
+
+	public static long pack(int status, int data1, int data2) {
+		return (status & 0xFF) | (data1 & 0x7F) << 8 | (data2 & 0x7F) << 16;
+	}
+
+	/**
+	 * @param value unsigned MIDI 2.0 value, 16 bits for velocities and 32
+	 *              bits otherwise
+	 */
+	public static long packHiRes(int status, int data1, int data2, long value) {
+		return pack(status, data1, data2) | HIRES | (value & 0xFFFFFFFFL) << 32;
+	}
+
+	public static int status(long message) {
+		return (int) message & 0xFF;
+	}
+
+	public static int data1(long message) {
+		return (int) (message >> 8) & 0x7F;
+	}
+
+	public static int data2(long message) {
+		return (int) (message >> 16) & 0x7F;
+	}
+
+	public static boolean isHiRes(long message) {
+		return (message & HIRES) != 0;
+	}
+
+	public static long value(long message) {
+		return message >>> 32;
+	}
+
+	/**
+	 * @return the same message without its high resolution value
+	 */
+	public static long lowRes(long message) {
+		return message & 0xFFFFFFL;
+	}
+
+	/**
+	 * @return number of bytes of a channel or system message with the given
+	 *         status, SysEx excluded.
+	 */
+	public static int length(int status) {
+		switch (status & 0xF0) {
+			case MidiEngine.STATUS_PROGRAM:
+			case MidiEngine.STATUS_CHANAFT:
+				return 2;
+			case 0xF0:
+				switch (status) {
+					case 0xF1:
+					case 0xF3:
+						return 2;
+					case 0xF2:
+						return 3;
+					default:
+						return 1;
+				}
+			default:
+				return 3;
+		}
+	}
+
+	/**
+	 * May be called from any thread.
+	 *
+	 * @return false if the queue is full
+	 */
+	public boolean offer(long message) {
+		long pos;
+		for (;;) {
+			pos = mTail.get();
+			int slot = (int) pos & mMask;
+			long seq = mSequence.get(slot);
+			if (seq == pos) {
+				if (mTail.compareAndSet(pos, pos + 1)) {
+					mMessages[slot] = message;
+					mSequence.set(slot, pos + 1);
+					return true;
+				}
+			} else if (seq < pos) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Only the consumer thread may call this.
+	 *
+	 * @return the oldest message, or {@link #EMPTY}
+	 */
+	public long poll() {
+		int slot = (int) mHead & mMask;
+		if (mSequence.get(slot) != mHead + 1) {
+			return EMPTY;
+		}
+		long message = mMessages[slot];
+		mSequence.set(slot, mHead + mMask + 1);
+		mHead++;
+		return message;
+	}
+
+	/**
+	 * Only the consumer thread may call this.
+	 */
+	public boolean isEmpty() {
+		return mSequence.get((int) mHead & mMask) != mHead + 1;
+	}
+
+	/**
+	 * Only the consumer thread may call this.
+	 */
+	public void clear() {
+		while (poll() != EMPTY) {
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+/**
+ * Incremental MIDI 1.0 byte stream parser. Handles running status, realtime
+ * bytes interleaved anywhere (even inside other messages), system common
+ * messages and SysEx. Messages are delivered as primitive values; the SysEx
+ * buffer is preallocated, so parsing never allocates.
+ */
+public class MidiStreamParser {
+	public static final int STATUS_SYSEX = 0xF0;
+	public static final int STATUS_EOX = 0xF7;
+	public static final int STATUS_REALTIME = 0xF8;
+
+	public interface SysExListener {
+		/**
+		 * @param data a buffer owned by the parser, from F0 to F7 inclusive;
+		 *             only valid during the call.
+		 */
+		void onSysEx(byte[] data, int length);
+	}
+
+	private final MidiEngine.InputListener mListener;
+	private SysExListener mSysExListener = null;
+	private final byte[] mSysEx;
+	private int mSysExLength = 0;
+	private boolean mInSysEx = false;
+	private int mStatus = 0;
+	private int mData1 = 0;
+	private int mNeeded = 0;
+	private int mCount = 0;
+
+	public MidiStreamParser(MidiEngine.InputListener listener) {
+		this(listener, 256);
+	}
+
+	public MidiStreamParser(MidiEngine.InputListener listener, int maxSysEx) {
+		mListener = listener;
+		mSysEx = new byte[maxSysEx];
+	}
+
+	public void setSysExListener(SysExListener listener) {
+		mSysExListener = listener;
+	}
+
+	public void reset() {
+		mInSysEx = false;
+		mSysExLength = 0;
+		mStatus = 0;
+		mCount = 0;
+	}
+
+	private static int dataLength(int status) {
+		switch (status & 0xF0) {
+			case MidiEngine.STATUS_PROGRAM:
+			case MidiEngine.STATUS_CHANAFT:
+				return 1;
+			case 0xF0:
+				switch (status) {
+					case 0xF1:
+					case 0xF3:
+						return 1;
+					case 0xF2:
+						return 2;
+					default:
+						return 0;
+				}
+			default:
+				return 2;
+		}
+	}
+
+	public void parse(byte[] data, int offset, int count) {
+		for (int i = offset; i < offset + count; ++i) {
+			parse(data[i] & 0xFF);
+		}
+	}
+
+	public void parse(int b) {
+		if (b >= STATUS_REALTIME) {
+			mListener.onMidiMessage(b, 0, 0);
+			return;
+		}
+		if (b >= 0x80) {
+			if (b == STATUS_EOX) {
+				if (mInSysEx) {
+					mInSysEx = false;
+					if (mSysExLength < mSysEx.length) {
+						mSysEx[mSysExLength++] = (byte) b;
+						if (mSysExListener != null) {
+							mSysExListener.onSysEx(mSysEx, mSysExLength);
+						}
+					}
+				}
+				return;
+			}
+			// any other status byte ends an unterminated SysEx
+			mInSysEx = false;
+			if (b == STATUS_SYSEX) {
+				mInSysEx = true;
+				mSysEx[0] = (byte) b;
+				mSysExLength = 1;
+				mStatus = 0;
+				return;
+			}
+			mStatus = b;
+			mNeeded = dataLength(b);
+			mCount = 0;
+			if (mNeeded == 0) {
+				// tune request
+				mListener.onMidiMessage(b, 0, 0);
+				mStatus = 0;
+			}
+			return;
+		}
+		if (mInSysEx) {
+			if (mSysExLength < mSysEx.length) {
+				mSysEx[mSysExLength++] = (byte) b;
+			} else {
+				// too long to be buffered, drop it
+				mSysExLength = mSysEx.length + 1;
+			}
+			return;
+		}
+		if (mStatus == 0) {
+			return;
+		}
+		if (mCount == 0) {
+			mData1 = b;
+		}
+		if (++mCount >= mNeeded) {
+			mListener.onMidiMessage(mStatus, mData1, mNeeded == 2 ? b : 0);
+			mCount = 0;
+			if (mStatus >= 0xF0) {
+				// system common messages cancel the running status
+				mStatus = 0;
+			}
+		}
+	}
+}
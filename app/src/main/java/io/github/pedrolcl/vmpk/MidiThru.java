@@ -0,0 +1,57 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+/**
+ * Plays the incoming MIDI messages on an engine, usually the internal
+ * synthesizer. System messages are not forwarded.
+ */
+public class MidiThru implements MidiEngine.InputListener {
+
+	private volatile MidiEngine mTarget;
+
+	public MidiThru(MidiEngine target) {
+		mTarget = target;
+	}
+
+	public void setTarget(MidiEngine target) {
+		mTarget = target;
+	}
+
+	public MidiEngine getTarget() {
+		return mTarget;
+	}
+
+	@Override
+	public void onMidiMessage(int status, int data1, int data2) {
+		MidiEngine target = mTarget;
+		if (target == null) {
+			return;
+		}
+		int channel = status & 0x0F;
+		switch (status & 0xF0) {
+			case MidiEngine.STATUS_NOTEOFF:
+				target.noteOff(channel, data1, data2);
+				break;
+			case MidiEngine.STATUS_NOTEON:
+				target.noteOn(channel, data1, data2);
+				break;
+			case MidiEngine.STATUS_POLYAFT:
+				target.aftertouch(channel, data1, data2);
+				break;
+			case MidiEngine.STATUS_CTLCHG:
+				target.controller(channel, data1, data2);
+				break;
+			case MidiEngine.STATUS_PROGRAM:
+				target.programChange(channel, data1);
+				break;
+			case MidiEngine.STATUS_CHANAFT:
+				target.channelPressure(channel, data1);
+				break;
+			case MidiEngine.STATUS_BENDER:
+				target.pitchWheel(channel, data1 + data2 * 0x80);
+				break;
+		}
+	}
+}
@@ -6,14 +6,15 @@ package io.github.pedrolcl.vmpk;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.AsyncTask;
-import android.preference.PreferenceManager;
+import android.os.Handler;
+import android.os.Looper;
 
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
@@ -23,6 +24,10 @@ import java.net.NetworkInterface;
 // AsyncTask: http://developer.android.com/reference/android/os/AsyncTask.html
 public class NetworkMidi implements MidiEngine {
 
+	private static final Metrics.Counter PACKETS_SENT = Metrics.counter("network packets sent");
+	private static final Metrics.Counter SEND_FAILED = Metrics.counter("network send failed");
+	private static final Metrics.Counter PACKETS_RECEIVED = Metrics.counter("network packets received");
+
 	private MulticastSocket mSocket = null;
 	private WifiManager mWifi = null;
 	private WifiManager.MulticastLock mLock = null;
@@ -34,6 +39,13 @@ public class NetworkMidi implements MidiEngine {
 
 	private int mPort;
 	private InetAddress mGroupAddr;
+	private volatile MidiEngine.InputListener mInputListener = null;
+	private SocketReceiverThread mReceiver = null;
+	// owned by the UI thread
+	private Activity mActivity = null;
+	/** the Wi-Fi warning waits for an activity to be shown on */
+	private boolean mWarnWifi = false;
+	private final Handler mUiHandler = new Handler(Looper.getMainLooper());
 
 	private class SocketSenderTask extends AsyncTask<byte[], Void, Void> {
 		@Override
@@ -43,16 +55,57 @@ public class NetworkMidi implements MidiEngine {
 					DatagramPacket pack = new DatagramPacket(data, data.length, mGroupAddr, mPort);
 					// mSocket.setTimeToLive(TIME_TO_LIVE);
 					mSocket.send(pack);
+					PACKETS_SENT.increment();
+					TraceRing.event(TraceRing.PACKET_SENT, data.length, 0, 0);
 				}
 			} catch (Exception e) {
+				SEND_FAILED.increment();
 				Log.e("NetworkMidi", "Packet Sending Error", e);
 			}
 			return null;
 		}
 	}
 
-	private NetworkInfo getConnectedWifiNetworkInfo(Activity activity) {
-		ConnectivityManager connManager = (ConnectivityManager) activity.getSystemService(Context.CONNECTIVITY_SERVICE);
+	// recibe los mensajes de otros equipos del grupo multicast
+	private class SocketReceiverThread extends Thread {
+		private final MulticastSocket mRxSocket;
+		private final byte[] mBuffer = new byte[1024];
+		private final MidiStreamParser mParser;
+
+		SocketReceiverThread(MulticastSocket socket) {
+			super("NetworkMidiReceiver");
+			mRxSocket = socket;
+			mParser = new MidiStreamParser(new MidiEngine.InputListener() {
+				@Override
+				public void onMidiMessage(int status, int data1, int data2) {
+					MidiEngine.InputListener listener = mInputListener;
+					if (listener != null) {
+						listener.onMidiMessage(status, data1, data2);
+					}
+				}
+			});
+		}
+
+		@Override
+		public void run() {
+			DatagramPacket pack = new DatagramPacket(mBuffer, mBuffer.length);
+			while (!mRxSocket.isClosed()) {
+				try {
+					pack.setLength(mBuffer.length);
+					mRxSocket.receive(pack);
+					PACKETS_RECEIVED.increment();
+					mParser.parse(mBuffer, pack.getOffset(), pack.getLength());
+				} catch (IOException e) {
+					if (!mRxSocket.isClosed()) {
+						Log.e("NetworkMidi", "Packet Receiving Error", e);
+					}
+				}
+			}
+		}
+	}
+
+	private NetworkInfo getConnectedWifiNetworkInfo(Context context) {
+		ConnectivityManager connManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
 		/* This is deprecated in API level = 21: */
 		NetworkInfo info = connManager.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
 		return info;
@@ -68,22 +121,37 @@ public class NetworkMidi implements MidiEngine {
 		 */
 	}
 
-	public NetworkMidi(Activity activity) {
+	public NetworkMidi(Context context) {
 		try {
-			mWifi = (WifiManager) activity.getSystemService(Context.WIFI_SERVICE);
-			NetworkInfo info = getConnectedWifiNetworkInfo(activity);
+			mWifi = (WifiManager) context.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+			NetworkInfo info = getConnectedWifiNetworkInfo(context);
 			if (info == null || !info.isConnectedOrConnecting()) {
-				alertDialog(activity);
+				alertDialog();
 			}
-			readSettings(activity);
+			readSettings(context);
 		} catch (Exception ex) {
-			alertDialog(activity);
+			alertDialog();
 			Log.e("NetworkMidi", "Constructor error", ex);
 		}
 	}
 
-	private void alertDialog(Activity activity) {
-		AlertDialog.Builder builder = new AlertDialog.Builder(activity);
+	/**
+	 * May be called from any thread.
+	 */
+	private void alertDialog() {
+		mUiHandler.post(this::showWarning);
+	}
+
+	/**
+	 * Runs on the UI thread. Waits for an activity if there is none.
+	 */
+	private void showWarning() {
+		if (mActivity == null) {
+			mWarnWifi = true;
+			return;
+		}
+		mWarnWifi = false;
+		AlertDialog.Builder builder = new AlertDialog.Builder(mActivity);
 		builder.setMessage(R.string.wifi_dialog_message)
 				.setTitle(R.string.wifi_dialog_title)
 				.setPositiveButton(android.R.string.ok, null);
@@ -91,14 +159,20 @@ public class NetworkMidi implements MidiEngine {
 		dialog.show();
 	}
 
-	private void readSettings(Activity activity) {
+	@Override
+	public void attach(Activity activity) {
+		mActivity = activity;
+		if (activity != null && mWarnWifi) {
+			showWarning();
+		}
+	}
+
+	private void readSettings(Context context) {
 		try {
 			mGroupAddr = InetAddress.getByName(DEFAULT_GROUP_ADDR);
-			SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(activity);
-			int defaultPort = activity.getResources().getInteger(R.integer.default_port);
-			String defaultGroupAddr = activity.getResources().getString(R.string.default_address);
-			mPort = sharedPrefs.getInt("port_number", defaultPort);
-			mGroupAddr = InetAddress.getByName(sharedPrefs.getString("ip_address", defaultGroupAddr));
+			Settings settings = Settings.get(context);
+			mPort = settings.port;
+			mGroupAddr = InetAddress.getByName(settings.address);
 		} catch (Exception ex) {
 			Log.e("NetworkMidi", "Initialization Error", ex);
 			mPort = DEFAULT_PORT_NO;
@@ -106,8 +180,8 @@ public class NetworkMidi implements MidiEngine {
 	}
 
 	@Override
-	public void start(Activity activity) {
-		readSettings(activity);
+	public void start(Context context) {
+		readSettings(context);
 		try {
 			mSocket = new MulticastSocket(mPort);
 			WifiInfo winfo = mWifi.getConnectionInfo();
@@ -120,13 +194,17 @@ public class NetworkMidi implements MidiEngine {
 			};
 			NetworkInterface nic = NetworkInterface.getByInetAddress(InetAddress.getByAddress(byteaddr));
 			mSocket.setNetworkInterface(nic);
+			// do not listen to our own packets
+			mSocket.setLoopbackMode(true);
 			mSocket.joinGroup(mGroupAddr);
+			mReceiver = new SocketReceiverThread(mSocket);
+			mReceiver.start();
 			if (mWifi != null && mLock == null) {
 				mLock = mWifi.createMulticastLock("Log_Tag");
 				mLock.acquire();
 			}
 		} catch (Exception ex) {
-			alertDialog(activity);
+			alertDialog();
 			Log.e("NetworkMidi", "Socket Error", ex);
 		}
 	}
@@ -137,6 +215,17 @@ public class NetworkMidi implements MidiEngine {
 			mLock.release();
 			mLock = null;
 		}
+		if (mSocket != null) {
+			// unblocks and ends the receiver thread
+			mSocket.close();
+			mSocket = null;
+			mReceiver = null;
+		}
+	}
+
+	@Override
+	public void setInputListener(MidiEngine.InputListener listener) {
+		mInputListener = listener;
 	}
 
 	private void sendMidi(byte[] data) {
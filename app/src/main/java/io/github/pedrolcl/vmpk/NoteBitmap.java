@@ -0,0 +1,68 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free set of 128 notes. One thread may change it while another one
+ * reads it, e.g. the touch handler pressing keys while a render thread
+ * draws them.
+ */
+public class NoteBitmap {
+	public static final int SIZE = 128;
+
+	private final AtomicLongArray mBits = new AtomicLongArray(SIZE / 64);
+
+	public boolean get(int note) {
+		return (mBits.get(note >>> 6) & (1L << (note & 63))) != 0;
+	}
+
+	/**
+	 * @return true if the note was not already set
+	 */
+	public boolean set(int note) {
+		int i = note >>> 6;
+		long mask = 1L << (note & 63);
+		long old;
+		do {
+			old = mBits.get(i);
+			if ((old & mask) != 0) {
+				return false;
+			}
+		} while (!mBits.compareAndSet(i, old, old | mask));
+		return true;
+	}
+
+	/**
+	 * @return true if the note was set
+	 */
+	public boolean clear(int note) {
+		int i = note >>> 6;
+		long mask = 1L << (note & 63);
+		long old;
+		do {
+			old = mBits.get(i);
+			if ((old & mask) == 0) {
+				return false;
+			}
+		} while (!mBits.compareAndSet(i, old, old & ~mask));
+		return true;
+	}
+
+	public void clearAll() {
+		for (int i = 0; i < mBits.length(); ++i) {
+			mBits.set(i, 0);
+		}
+	}
+
+	public boolean isEmpty() {
+		for (int i = 0; i < mBits.length(); ++i) {
+			if (mBits.get(i) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,126 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Notes sounding on an external MIDI source, per channel. Updated from a
+ * receive thread without locks; observers are told about every change and
+ * are expected to coalesce them into one redraw per frame.
+ */
+public class NoteStateTable implements MidiEngine.InputListener {
+
+	public interface Observer {
+		/** Called on the receiving thread */
+		void onNotesChanged();
+	}
+
+	private final NoteBitmap[] mChannels = new NoteBitmap[16];
+	/** number of channels sounding each note */
+	private final AtomicIntegerArray mCounts = new AtomicIntegerArray(NoteBitmap.SIZE);
+	private volatile Observer[] mObservers = new Observer[0];
+
+	public NoteStateTable() {
+		for (int ch = 0; ch < mChannels.length; ++ch) {
+			mChannels[ch] = new NoteBitmap();
+		}
+	}
+
+	public synchronized void addObserver(Observer observer) {
+		Observer[] observers = Arrays.copyOf(mObservers, mObservers.length + 1);
+		observers[observers.length - 1] = observer;
+		mObservers = observers;
+	}
+
+	public synchronized void removeObserver(Observer observer) {
+		Observer[] observers = mObservers;
+		for (int i = 0; i < observers.length; ++i) {
+			if (observers[i] == observer) {
+				Observer[] result = new Observer[observers.length - 1];
+				System.arraycopy(observers, 0, result, 0, i);
+				System.arraycopy(observers, i + 1, result, i, observers.length - i - 1);
+				mObservers = result;
+				return;
+			}
+		}
+	}
+
+	private void notifyObservers() {
+		for (Observer o : mObservers) {
+			o.onNotesChanged();
+		}
+	}
+
+	public boolean isOn(int note) {
+		return note >= 0 && note < NoteBitmap.SIZE && mCounts.get(note) > 0;
+	}
+
+	public boolean isOn(int channel, int note) {
+		return mChannels[channel].get(note);
+	}
+
+	public void noteOn(int channel, int note) {
+		if (mChannels[channel].set(note)) {
+			mCounts.incrementAndGet(note);
+			notifyObservers();
+		}
+	}
+
+	public void noteOff(int channel, int note) {
+		if (mChannels[channel].clear(note)) {
+			mCounts.decrementAndGet(note);
+			notifyObservers();
+		}
+	}
+
+	public void clearChannel(int channel) {
+		boolean changed = false;
+		NoteBitmap bits = mChannels[channel];
+		for (int note = 0; note < NoteBitmap.SIZE; ++note) {
+			if (bits.clear(note)) {
+				mCounts.decrementAndGet(note);
+				changed = true;
+			}
+		}
+		if (changed) {
+			notifyObservers();
+		}
+	}
+
+	public void clear() {
+		for (int ch = 0; ch < mChannels.length; ++ch) {
+			clearChannel(ch);
+		}
+	}
+
+	@Override
+	public void onMidiMessage(int status, int data1, int data2) {
+		int channel = status & 0x0F;
+		switch (status & 0xF0) {
+			case MidiEngine.STATUS_NOTEON:
+				if (data2 > 0) {
+					noteOn(channel, data1);
+				} else {
+					noteOff(channel, data1);
+				}
+				break;
+			case MidiEngine.STATUS_NOTEOFF:
+				noteOff(channel, data1);
+				break;
+			case MidiEngine.STATUS_CTLCHG:
+				if (data1 == MidiEngine.CTL_ALL_SOUNDS_OFF || data1 >= MidiEngine.CTL_ALL_NOTES_OFF) {
+					clearChannel(channel);
+				}
+				break;
+			case 0xF0:
+				if (status == 0xFF) {
+					// system reset
+					clear();
+				}
+				break;
+		}
+	}
+}
@@ -0,0 +1,60 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+/**
+ * The 1€ filter (Casiez, Roussel and Vogel, CHI 2012): a low-pass filter
+ * whose cutoff frequency rises with the speed of the signal, so slow
+ * movements are smoothed and fast ones are followed without lag. Works with
+ * irregular sampling, taking the time of each sample. Not thread safe.
+ */
+public class OneEuroFilter {
+	private final double mMinCutoff;
+	private final double mBeta;
+	private final double mDerivativeCutoff;
+
+	private boolean mFirst = true;
+	private double mValue;
+	private double mDerivative;
+	private long mLastNanos;
+
+	/**
+	 * @param minCutoff        cutoff at rest, in Hz: lower removes more jitter
+	 * @param beta             cutoff increase per unit of speed: higher lags less
+	 * @param derivativeCutoff cutoff for the speed estimate, in Hz
+	 */
+	public OneEuroFilter(double minCutoff, double beta, double derivativeCutoff) {
+		mMinCutoff = minCutoff;
+		mBeta = beta;
+		mDerivativeCutoff = derivativeCutoff;
+	}
+
+	private static double alpha(double cutoff, double period) {
+		double tau = 1.0 / (2 * Math.PI * cutoff);
+		return 1.0 / (1.0 + tau / period);
+	}
+
+	public double filter(double value, long nanos) {
+		if (mFirst || nanos <= mLastNanos) {
+			if (mFirst) {
+				mFirst = false;
+				mValue = value;
+				mDerivative = 0;
+			}
+			mLastNanos = nanos;
+			return mValue;
+		}
+		double period = (nanos - mLastNanos) * 1e-9;
+		mLastNanos = nanos;
+		double derivative = (value - mValue) / period;
+		mDerivative += alpha(mDerivativeCutoff, period) * (derivative - mDerivative);
+		double cutoff = mMinCutoff + mBeta * Math.abs(mDerivative);
+		mValue += alpha(cutoff, period) * (value - mValue);
+		return mValue;
+	}
+
+	public void reset() {
+		mFirst = true;
+	}
+}
@@ -0,0 +1,234 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+import java.util.Arrays;
+
+/**
+ * Bounded queue holding the messages sent while a MIDI device is still
+ * opening, to be replayed once it is ready. Not thread safe.
+ *
+ * Only what the device needs to end up in the right state is kept:
+ * controllers, pitch bend, pressure and program changes keep just the
+ * latest value per channel (and controller or note), a note released
+ * before the device opened is dropped with its note off, and note offs
+ * without a queued note on are dropped too, so note pairing stays
+ * consistent even when the queue overflows.
+ */
+public class PendingMidiQueue {
+	private static final int CHANNELS = 16;
+	private static final int NOTES = 128;
+
+	private final long[] mMessages;
+	private int mSize = 0;
+	private int mLive = 0;
+
+	// index + 1 of the queued message for each coalescing key, 0 if none
+	private final int[] mNoteIndex = new int[CHANNELS * NOTES];
+	private final int[] mPolyIndex = new int[CHANNELS * NOTES];
+	private final int[] mCtlIndex = new int[CHANNELS * NOTES];
+	private final int[] mBenderIndex = new int[CHANNELS];
+	private final int[] mPressureIndex = new int[CHANNELS];
+	private final int[] mProgramIndex = new int[CHANNELS];
+
+	private long mQueued = 0;
+	private long mCoalesced = 0;
+	private long mDroppedNotes = 0;
+	private long mOverflows = 0;
+
+	public PendingMidiQueue(int capacity) {
+		mMessages = new long[capacity];
+	}
+
+	/**
+	 * @param message packed as by {@link MidiRing#pack(int, int, int)}
+	 */
+	public void add(long message) {
+		mQueued++;
+		int status = MidiRing.status(message);
+		int channel = status & 0x0F;
+		int data1 = MidiRing.data1(message);
+		int[] index = null;
+		int key = 0;
+		switch (status & 0xF0) {
+			case MidiEngine.STATUS_NOTEON:
+				if (MidiRing.data2(message) > 0) {
+					index = mNoteIndex;
+					key = channel * NOTES + data1;
+					break;
+				}
+				// fall through: note on with velocity 0
+			case MidiEngine.STATUS_NOTEOFF: {
+				int on = mNoteIndex[channel * NOTES + data1];
+				if (on != 0) {
+					// released before the device opened: drop both
+					remove(on - 1);
+					mNoteIndex[channel * NOTES + data1] = 0;
+					mDroppedNotes++;
+				}
+				mDroppedNotes++;
+				return;
+			}
+			case MidiEngine.STATUS_POLYAFT:
+				index = mPolyIndex;
+				key = channel * NOTES + data1;
+				break;
+			case MidiEngine.STATUS_CTLCHG:
+				if (data1 == MidiEngine.CTL_ALL_SOUNDS_OFF || data1 == MidiEngine.CTL_ALL_NOTES_OFF) {
+					dropNotes(channel);
+				}
+				index = mCtlIndex;
+				key = channel * NOTES + data1;
+				break;
+			case MidiEngine.STATUS_BENDER:
+				index = mBenderIndex;
+				key = channel;
+				break;
+			case MidiEngine.STATUS_CHANAFT:
+				index = mPressureIndex;
+				key = channel;
+				break;
+			case MidiEngine.STATUS_PROGRAM:
+				index = mProgramIndex;
+				key = channel;
+				break;
+		}
+		if (index != null && index[key] != 0) {
+			// the latest value replaces the older one, at the end of the queue
+			remove(index[key] - 1);
+			index[key] = 0;
+			mCoalesced++;
+		}
+		if (mSize == mMessages.length) {
+			compact();
+			if (mSize == mMessages.length) {
+				// a dropped note on makes its note off an orphan, dropped too
+				mOverflows++;
+				return;
+			}
+		}
+		if (index != null) {
+			index[key] = mSize + 1;
+		}
+		mMessages[mSize++] = message;
+		mLive++;
+	}
+
+	private void remove(int i) {
+		mMessages[i] = MidiRing.EMPTY;
+		mLive--;
+	}
+
+	private void dropNotes(int channel) {
+		for (int note = 0; note < NOTES; ++note) {
+			int on = mNoteIndex[channel * NOTES + note];
+			if (on != 0) {
+				remove(on - 1);
+				mNoteIndex[channel * NOTES + note] = 0;
+				mDroppedNotes++;
+			}
+		}
+	}
+
+	/**
+	 * Squeezes out removed messages and rebuilds the indexes.
+	 */
+	private void compact() {
+		clearIndexes();
+		int n = 0;
+		for (int i = 0; i < mSize; ++i) {
+			long message = mMessages[i];
+			if (message == MidiRing.EMPTY) {
+				continue;
+			}
+			mMessages[n] = message;
+			int status = MidiRing.status(message);
+			int channel = status & 0x0F;
+			int data1 = MidiRing.data1(message);
+			switch (status & 0xF0) {
+				case MidiEngine.STATUS_NOTEON:
+					mNoteIndex[channel * NOTES + data1] = n + 1;
+					break;
+				case MidiEngine.STATUS_POLYAFT:
+					mPolyIndex[channel * NOTES + data1] = n + 1;
+					break;
+				case MidiEngine.STATUS_CTLCHG:
+					mCtlIndex[channel * NOTES + data1] = n + 1;
+					break;
+				case MidiEngine.STATUS_BENDER:
+					mBenderIndex[channel] = n + 1;
+					break;
+				case MidiEngine.STATUS_CHANAFT:
+					mPressureIndex[channel] = n + 1;
+					break;
+				case MidiEngine.STATUS_PROGRAM:
+					mProgramIndex[channel] = n + 1;
+					break;
+			}
+			n++;
+		}
+		mSize = n;
+		mLive = n;
+	}
+
+	private void clearIndexes() {
+		Arrays.fill(mNoteIndex, 0);
+		Arrays.fill(mPolyIndex, 0);
+		Arrays.fill(mCtlIndex, 0);
+		Arrays.fill(mBenderIndex, 0);
+		Arrays.fill(mPressureIndex, 0);
+		Arrays.fill(mProgramIndex, 0);
+	}
+
+	public boolean isEmpty() {
+		return mLive == 0;
+	}
+
+	public int size() {
+		return mLive;
+	}
+
+	/**
+	 * Copies the queued messages in order into out, and empties the queue.
+	 *
+	 * @return number of messages copied
+	 */
+	public int drainTo(long[] out) {
+		int n = 0;
+		for (int i = 0; i < mSize && n < out.length; ++i) {
+			if (mMessages[i] != MidiRing.EMPTY) {
+				out[n++] = mMessages[i];
+			}
+		}
+		clear();
+		return n;
+	}
+
+	public void clear() {
+		if (mSize > 0) {
+			mSize = 0;
+			mLive = 0;
+			clearIndexes();
+		}
+	}
+
+	public long queuedCount() {
+		return mQueued;
+	}
+
+	public long coalescedCount() {
+		return mCoalesced;
+	}
+
+	/**
+	 * @return note messages dropped, both note ons and note offs
+	 */
+	public long droppedNoteCount() {
+		return mDroppedNotes;
+	}
+
+	public long overflowCount() {
+		return mOverflows;
+	}
+}
@@ -0,0 +1,177 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+import android.content.Context;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * What the player has set up on the main screen: the selected tab,
+ * channel, octave, velocity, instrument and controller, the keyboard mode,
+ * and the {@link ChannelStateTable} snapshot of what the engine was sent.
+ *
+ * Saved as a few dozen bytes in one of the {@link StateFiles}. The last state saved or loaded
+ * is kept in memory, so only the first load touches the disk, and
+ * {@link #preload(Context)} does it in the background.
+ */
+public final class PerformanceState {
+	private static final String FILE_NAME = "performance.state";
+	private static final int MAGIC = 0x564D504B; // "VMPK"
+	private static final byte VERSION = 1;
+	private static final int FLAG_MONO = 1;
+	/** magic, version, seven bytes, flags and the snapshot length */
+	private static final int HEADER_SIZE = 4 + 1 + 7 + 1 + 2;
+
+	public final int tab;
+	public final int channel;
+	public final int octave;
+	public final int velocity;
+	public final int group;
+	public final int instrument;
+	/** position in the controller list, not a controller number */
+	public final int controller;
+	public final boolean mono;
+	/** ChannelStateTable snapshot, or null if unknown */
+	private final byte[] mChannels;
+
+	private static final Object sLock = new Object();
+	// guarded by sLock
+	private static boolean sLoaded = false;
+	private static PerformanceState sCurrent = null;
+
+	public PerformanceState(int tab, int channel, int octave, int velocity, int group,
+			int instrument, int controller, boolean mono, byte[] channels) {
+		this.tab = tab;
+		this.channel = channel;
+		this.octave = octave;
+		this.velocity = velocity;
+		this.group = group;
+		this.instrument = instrument;
+		this.controller = controller;
+		this.mono = mono;
+		mChannels = channels;
+	}
+
+	/**
+	 * Loads the channel values into a table.
+	 *
+	 * @return false if there were none; the table is reset
+	 */
+	public boolean restoreChannels(ChannelStateTable table) {
+		if (mChannels == null) {
+			table.reset();
+			return false;
+		}
+		return table.restore(mChannels);
+	}
+
+	/**
+	 * @return a copy with the channel values of another state
+	 */
+	public PerformanceState withChannelsOf(PerformanceState other) {
+		return new PerformanceState(tab, channel, octave, velocity, group, instrument,
+				controller, mono, other == null ? null : other.mChannels);
+	}
+
+	public boolean hasChannels() {
+		return mChannels != null;
+	}
+
+	public byte[] encode() {
+		int channels = mChannels == null ? 0 : mChannels.length;
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + channels);
+		buffer.putInt(MAGIC);
+		buffer.put(VERSION);
+		buffer.put((byte) tab);
+		buffer.put((byte) channel);
+		buffer.put((byte) octave);
+		buffer.put((byte) velocity);
+		buffer.put((byte) group);
+		buffer.put((byte) instrument);
+		buffer.put((byte) controller);
+		buffer.put((byte) (mono ? FLAG_MONO : 0));
+		buffer.putShort((short) channels);
+		if (mChannels != null) {
+			buffer.put(mChannels);
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * @return the state, or null if the data is not understood
+	 */
+	public static PerformanceState decode(byte[] data) {
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			if (buffer.getInt() != MAGIC || buffer.get() != VERSION) {
+				return null;
+			}
+			int tab = buffer.get();
+			int channel = buffer.get();
+			int octave = buffer.get();
+			int velocity = buffer.get();
+			int group = buffer.get();
+			int instrument = buffer.get();
+			int controller = buffer.get();
+			int flags = buffer.get();
+			int length = buffer.getShort() & 0xFFFF;
+			byte[] channels = null;
+			if (length > 0) {
+				channels = new byte[length];
+				buffer.get(channels);
+			}
+			return new PerformanceState(tab, channel, octave, velocity, group, instrument,
+					controller, (flags & FLAG_MONO) != 0, channels);
+		} catch (BufferUnderflowException ex) {
+			Log.e("PerformanceState", "truncated", ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Starts reading the saved state on a background thread.
+	 */
+	public static void preload(Context context) {
+		final Context app = context.getApplicationContext();
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				get(app);
+			}
+		}, "StateLoad").start();
+	}
+
+	/**
+	 * @return the last state saved, or null if there is none
+	 */
+	public static PerformanceState get(Context context) {
+		synchronized (sLock) {
+			if (!sLoaded) {
+				byte[] data = StateFiles.read(context, FILE_NAME);
+				sCurrent = data == null ? null : decode(data);
+				sLoaded = true;
+			}
+			return sCurrent;
+		}
+	}
+
+	/**
+	 * Keeps the state as the current one, and writes it in the background.
+	 */
+	public static void save(Context context, PerformanceState state) {
+		byte[] data = state.encode();
+		synchronized (sLock) {
+			PerformanceState previous = sCurrent;
+			sCurrent = state;
+			sLoaded = true;
+			if (previous != null && Arrays.equals(previous.encode(), data)) {
+				return;
+			}
+		}
+		StateFiles.write(context, FILE_NAME, data);
+	}
+}
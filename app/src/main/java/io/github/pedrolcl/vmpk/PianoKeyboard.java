@@ -0,0 +1,900 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.SparseIntArray;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Piano keyboard model: key layout, hit testing, touch handling and drawing,
+ * shared by {@link PianoView} and {@link PianoSurfaceView}.
+ *
+ * Touches are handled on the UI thread. Drawing may happen on another
+ * thread: the pressed keys live in a lock-free {@link NoteBitmap}, and a new
+ * key layout is published as a whole through a volatile {@link KeyBank}.
+ *
+ * Key layouts never allocate after warming up: three pooled banks of key
+ * objects are reused, never the one published nor the one being drawn, and
+ * key labels come from tables built once in the constructor.
+ *
+ * In full range mode the keyboard covers all 128 MIDI notes. Only the keys
+ * inside the visible window are laid out, and a navigation bar above the
+ * keys scrolls (drag) and zooms (pinch) the window.
+ *
+ * Notes played by an external MIDI source are shown from a
+ * {@link NoteStateTable}; bursts of incoming events cause a single redraw
+ * per frame.
+ */
+public class PianoKeyboard implements NoteStateTable.Observer {
+	private static final Metrics.Counter REDRAWS = Metrics.counter("keyboard redraws");
+	private static final Metrics.Histogram DRAW_NANOS = Metrics.histogram("keyboard draw ns");
+
+
+	public interface Host {
+		/** The keyboard needs to be redrawn */
+		void onKeyboardChanged();
+
+		/** Like onKeyboardChanged, from any thread, on the next frame */
+		void postKeyboardChanged();
+
+		void getDrawingRect(Rect outRect);
+	}
+
+	private static final int ALL_KEYS = 128;
+	private static final int ALL_WHITE_KEYS = 75;
+	private static final int[] WHITE_SEMITONES = { 0, 2, 4, 5, 7, 9, 11 };
+	private static final float NAV_HEIGHT_RATIO = .15f;
+
+	private final Host mHost;
+	private Paint mWhiteBrush = null;
+	private Paint mBlackBrush = null;
+	private Paint mBlackPen = null;
+	private Paint mWhitePen = null;
+	private Paint mHiliteBrush = null;
+	private Paint mIncomingBrush = null;
+	private Paint mOverlayPen = null;
+	private Paint mNavBrush = null;
+	private Paint mNavWindowBrush = null;
+	private Bitmap mBlackKeyBmp = null;
+	private Rect mRect = null;
+	private volatile KeyBank mLayout;
+	/** the bank the renderer is drawing, or null */
+	private volatile KeyBank mDrawing = null;
+	private final KeyBank[] mPool = new KeyBank[3];
+	private final NoteBitmap mPressed = new NoteBitmap();
+	private SparseIntArray mLast;
+	private volatile boolean mShowingNames = false;
+	private MidiEngine mEngine;
+	private final KeyLayout mKeyLayout;
+	private int mNumberOfKeys;
+	private int mFirstKey = 0;
+	private float mTextSize;
+	private float mKeyWidth;
+	private float mKeyHeight;
+	private int mBaseOctave = 4;
+	private volatile int mChannel = 0;
+	private volatile int mVelocity = 100;
+	/** the same velocity with 16 bits, for MIDI 2.0; may be set from the sensor thread */
+	private volatile int mVelocityHiRes = (int) UmpEncoder.scaleUp(100, 7, 16);
+	private boolean mMono = false;
+	private int mPlayingKeys = 0;
+	private volatile boolean mShowingLatency = false;
+	private long mEventNanos = 0;
+	private volatile boolean mFullRange = false;
+	private float mScrollX = 0;
+	private int mScrollNote = -1;
+	private float mZoomKeyWidth = 0;
+	private float mNavHeight = 0;
+	private boolean mNavigating = false;
+	private float mNavLastX = 0;
+	private ScaleGestureDetector mScaleDetector;
+	private volatile NoteStateTable mIncoming = null;
+	private final AtomicBoolean mFramePending = new AtomicBoolean(false);
+
+	/**
+	 * A key layout, white keys first and black keys on top of them, with its
+	 * own pens for the labels. Once published through mLayout it is only
+	 * read; it is refilled only when neither published nor being drawn.
+	 * Banks hold up to ALL_KEYS keys, enough for any keyboard.
+	 */
+	class KeyBank {
+		final PianoKey[] mKeys;
+		final KeyLayout.Keys mGeometry = new KeyLayout.Keys();
+		final Paint mBlackPen;
+		final Paint mWhitePen;
+		int mCount = 0;
+		float mOffset = 0;
+		float mKeyWidth = 0;
+
+		KeyBank(int capacity) {
+			mKeys = new PianoKey[capacity];
+			mBlackPen = new Paint(PianoKeyboard.this.mBlackPen);
+			mWhitePen = new Paint(PianoKeyboard.this.mWhitePen);
+		}
+
+		void setTextSize(float size) {
+			mBlackPen.setTextSize(size);
+			mWhitePen.setTextSize(size);
+		}
+	}
+
+	class PianoKey {
+		private int mNote = 0;
+		private final RectF mBounds = new RectF();
+		private boolean mIsBlack = false;
+		private Paint mBrush;
+		private String mText = null;
+		private String mTextPerc = null;
+		private float mXText;
+		private float mYText;
+
+		PianoKey(boolean b, int n) {
+			reset(b, n);
+		}
+
+		void reset(boolean b, int n) {
+			mIsBlack = b;
+			mNote = n;
+			mBrush = b ? mBlackBrush : mWhiteBrush;
+			mTextPerc = null;
+		}
+
+		void draw(Canvas canvas, KeyBank bank, NoteStateTable incoming) {
+			String txt = (mChannel == 9 ? mTextPerc : mText);
+			if (isPressed()) {
+				canvas.drawRoundRect(mBounds, 4f, 4f, mHiliteBrush);
+			} else {
+				canvas.drawRoundRect(mBounds, 4f, 4f, mBrush);
+				if (incoming != null && incoming.isOn(midiNote(mNote))) {
+					canvas.drawRoundRect(mBounds, 4f, 4f, mIncomingBrush);
+				}
+			}
+			canvas.drawRoundRect(mBounds, 4f, 4f, mBlackPen);
+			if (mIsBlack) {
+				canvas.drawBitmap(mBlackKeyBmp, null, mBounds, null);
+			}
+			if (mShowingNames && txt != null) {
+				canvas.save();
+				canvas.rotate(-90f, mXText, mYText);
+				canvas.drawText(txt, mXText, mYText, mIsBlack ? bank.mWhitePen : bank.mBlackPen);
+				canvas.restore();
+			}
+		}
+
+		void setBounds(float x, float y, float w, float h) {
+			mBounds.set(x, y, w, h);
+			mXText = mBounds.left + mTextSize * 1.5f;
+			mYText = mBounds.height() - mTextSize * .7f;
+		}
+
+		boolean checkTouched(float x, float y) {
+			return mBounds.contains(x, y);
+		}
+
+		boolean isPressed() {
+			return mPressed.get(mNote);
+		}
+
+		/**
+		 * Takes the place and labels of key k of a layout.
+		 */
+		void set(KeyLayout.Keys keys, int k) {
+			reset(keys.black[k], keys.note[k]);
+			setBounds(keys.left[k], keys.top[k], keys.right[k], keys.bottom[k]);
+			mText = keys.text[k];
+			mTextPerc = keys.textPerc[k];
+		}
+	}
+
+	public PianoKeyboard(Context context, Host host, boolean editMode) {
+		mHost = host;
+		mNumberOfKeys = context.getResources().getInteger(R.integer.default_keys);
+		mFirstKey = context.getResources().getInteger(R.integer.first_key);
+		mLast = new SparseIntArray();
+		mBlackKeyBmp = BitmapFactory.decodeResource(context.getResources(), R.drawable.blkey);
+
+		String[] noteNames;
+		String[] percussionNames;
+		if (editMode) {
+			noteNames = new String[12];
+			noteNames[0] = "C";
+			noteNames[1] = "C#";
+			noteNames[2] = "D";
+			noteNames[3] = "D#";
+			noteNames[4] = "E";
+			noteNames[5] = "F";
+			noteNames[6] = "F#";
+			noteNames[7] = "G";
+			noteNames[8] = "G#";
+			noteNames[9] = "A";
+			noteNames[10] = "A#";
+			noteNames[11] = "B";
+			percussionNames = new String[1];
+			percussionNames[0] = "Kick Me";
+		} else {
+			noteNames = context.getResources().getStringArray(R.array.note_names);
+			percussionNames = context.getResources().getStringArray(R.array.gm_percussions);
+		}
+		mKeyLayout = new KeyLayout(noteNames, percussionNames);
+
+		mRect = new Rect();
+
+		mWhiteBrush = new Paint(Paint.ANTI_ALIAS_FLAG);
+		mWhiteBrush.setStyle(Paint.Style.FILL);
+		mWhiteBrush.setColor(Color.WHITE);
+
+		mBlackBrush = new Paint(Paint.ANTI_ALIAS_FLAG);
+		mBlackBrush.setStyle(Paint.Style.FILL);
+		mBlackBrush.setColor(Color.BLACK);
+
+		mHiliteBrush = new Paint(Paint.ANTI_ALIAS_FLAG);
+		mHiliteBrush.setStyle(Paint.Style.FILL);
+		// mHiliteBrush.setColor(context.getResources().getColor(android.R.color.holo_blue_dark));
+		mHiliteBrush.setColor(0xff0099cc);
+
+		mIncomingBrush = new Paint(Paint.ANTI_ALIAS_FLAG);
+		mIncomingBrush.setStyle(Paint.Style.FILL);
+		mIncomingBrush.setColor(mHiliteBrush.getColor());
+		mIncomingBrush.setAlpha(0x80);
+
+		mWhitePen = new Paint(Paint.ANTI_ALIAS_FLAG);
+		mWhitePen.setStyle(Paint.Style.STROKE);
+		mWhitePen.setTextSize(20.0f);
+		mWhitePen.setColor(Color.WHITE);
+
+		mBlackPen = new Paint(Paint.ANTI_ALIAS_FLAG);
+		mBlackPen.setStyle(Paint.Style.STROKE);
+		mBlackPen.setTextSize(20.0f);
+		mBlackPen.setColor(Color.BLACK);
+
+		mOverlayPen = new Paint(Paint.ANTI_ALIAS_FLAG);
+		mOverlayPen.setStyle(Paint.Style.FILL);
+		mOverlayPen.setTextSize(20.0f);
+		mOverlayPen.setColor(0xffcc0000);
+
+		mNavBrush = new Paint(Paint.ANTI_ALIAS_FLAG);
+		mNavBrush.setStyle(Paint.Style.FILL);
+		mNavBrush.setColor(Color.GRAY);
+
+		mNavWindowBrush = new Paint(Paint.ANTI_ALIAS_FLAG);
+		mNavWindowBrush.setStyle(Paint.Style.FILL);
+		mNavWindowBrush.setColor(mHiliteBrush.getColor());
+		mNavWindowBrush.setAlpha(0x80);
+
+		mLayout = new KeyBank(0);
+
+		if (!editMode) {
+			mScaleDetector = new ScaleGestureDetector(context, new ScaleListener());
+		}
+	}
+
+	private class ScaleListener extends ScaleGestureDetector.SimpleOnScaleGestureListener {
+		@Override
+		public boolean onScale(ScaleGestureDetector detector) {
+			zoom(detector.getScaleFactor(), detector.getFocusX());
+			return true;
+		}
+	}
+
+	private void invalidate() {
+		mHost.onKeyboardChanged();
+	}
+
+	private void initKeys() {
+		if (mRect.isEmpty()) {
+			mHost.getDrawingRect(mRect);
+			if (mRect.isEmpty()) {
+				// not laid out yet: layout() will come later, with the final settings
+				return;
+			}
+		}
+		int numWhiteKeys = (int) Math.ceil(mNumberOfKeys * 7d / 12d);
+		int limitOfKeys = mNumberOfKeys + mFirstKey;
+		mKeyWidth = mRect.width() / numWhiteKeys;
+		mKeyHeight = mKeyWidth * 4;
+		if (mKeyHeight > mRect.height()) {
+			mKeyHeight = mRect.height();
+		}
+		// Log.d(VIEW_LOG_TAG, String.format("initKeys - dRect: %s, numberOfKeys: %d",
+		// mRect.toShortString(), mNumberOfKeys));
+		// Log.d(VIEW_LOG_TAG, String.format("keyWidth=%f, keyHeight=%f", mKeyWidth,
+		// mKeyHeight));
+		mTextSize = mKeyWidth * .4f; // Text size
+		if (mFullRange) {
+			layoutFullRange();
+			return;
+		}
+		KeyBank bank = obtainBank();
+		fillKeys(bank, mFirstKey, limitOfKeys, 2, mBaseOctave);
+		mLayout = bank;
+		invalidate();
+	}
+
+	/**
+	 * @return a bank to be refilled, neither published nor being drawn. The
+	 *         renderer only draws a bank still published after claiming it,
+	 *         see {@link #acquireLayout()}, so once checked here it stays free
+	 *         until published again.
+	 */
+	private KeyBank obtainBank() {
+		KeyBank published = mLayout;
+		KeyBank drawing = mDrawing;
+		for (int i = 0; i < mPool.length; ++i) {
+			KeyBank bank = mPool[i];
+			if (bank == null) {
+				bank = mPool[i] = new KeyBank(ALL_KEYS);
+			}
+			if (bank != published && bank != drawing) {
+				return bank;
+			}
+		}
+		// three banks: one is always free
+		throw new IllegalStateException();
+	}
+
+	/**
+	 * Claims the published bank for drawing, until {@link #releaseLayout()}.
+	 */
+	private KeyBank acquireLayout() {
+		KeyBank bank;
+		do {
+			bank = mLayout;
+			mDrawing = bank;
+		} while (mLayout != bank);
+		return bank;
+	}
+
+	private void releaseLayout() {
+		mDrawing = null;
+	}
+
+	/**
+	 * Lays out the keys of the visible window of the full range keyboard,
+	 * reusing the key objects of a free bank.
+	 */
+	private void layoutFullRange() {
+		if (mRect.isEmpty()) {
+			return;
+		}
+		float width = mRect.width();
+		float minWidth = width / ALL_WHITE_KEYS;
+		float maxWidth = width / 7;
+		if (mZoomKeyWidth <= 0) {
+			mZoomKeyWidth = mKeyWidth;
+		}
+		mKeyWidth = Math.max(minWidth, Math.min(mZoomKeyWidth, maxWidth));
+		mZoomKeyWidth = mKeyWidth;
+		mNavHeight = mRect.height() * NAV_HEIGHT_RATIO;
+		mKeyHeight = mRect.height() - mNavHeight - 2;
+		mTextSize = Math.min(mKeyWidth, maxWidth / 2) * .4f;
+		if (mScrollNote >= 0) {
+			mScrollX = whiteKeyOfNote(mScrollNote) * mKeyWidth;
+			mScrollNote = -1;
+		}
+		mScrollX = Math.max(0, Math.min(mScrollX, ALL_WHITE_KEYS * mKeyWidth - width));
+		int firstWhite = (int) (mScrollX / mKeyWidth);
+		int lastWhite = Math.min((int) ((mScrollX + width) / mKeyWidth), ALL_WHITE_KEYS - 1);
+		int from = Math.max(noteOfWhiteKey(firstWhite) - 1, 0);
+		int limit = Math.min(noteOfWhiteKey(lastWhite) + 2, ALL_KEYS);
+		KeyBank bank = obtainBank();
+		fillKeys(bank, from, limit, mNavHeight + 2, 0);
+		bank.mOffset = mScrollX;
+		mLayout = bank;
+		invalidate();
+	}
+
+	private static int noteOfWhiteKey(int white) {
+		return white / 7 * 12 + WHITE_SEMITONES[white % 7];
+	}
+
+	private static int whiteKeyOfNote(int note) {
+		int j = note % 12;
+		if (j >= 5)
+			j++;
+		return note / 12 * 7 + j / 2;
+	}
+
+	/**
+	 * Places the keys [from, limit) into the bank, reusing any key objects
+	 * already there.
+	 */
+	private void fillKeys(KeyBank bank, int from, int limit, float y, int octave) {
+		KeyLayout.Keys keys = bank.mGeometry;
+		mKeyLayout.layout(keys, from, limit, y, octave, mKeyWidth, mKeyHeight, mFullRange);
+		for (int k = 0; k < keys.count; ++k) {
+			PianoKey key = bank.mKeys[k];
+			if (key == null) {
+				key = bank.mKeys[k] = new PianoKey(keys.black[k], keys.note[k]);
+			}
+			key.set(keys, k);
+		}
+		bank.mCount = limit - from;
+		bank.mOffset = 0;
+		bank.mKeyWidth = mKeyWidth;
+		bank.setTextSize(mTextSize);
+	}
+
+	/**
+	 * Hit testing in view coordinates; black keys are tested first.
+	 */
+	PianoKey getKeyForPos(float x, float y) {
+		KeyBank bank = mLayout;
+		x += bank.mOffset;
+		for (int i = bank.mCount - 1; i >= 0; --i) {
+			PianoKey k = bank.mKeys[i];
+			if (k.checkTouched(x, y)) {
+				return k;
+			}
+		}
+		return null;
+	}
+
+	private void zoom(float factor, float focusX) {
+		float whites = (mScrollX + focusX) / mKeyWidth;
+		mZoomKeyWidth = mKeyWidth * factor;
+		mScrollX = whites * Math.max(mRect.width() / ALL_WHITE_KEYS,
+				Math.min(mZoomKeyWidth, mRect.width() / 7)) - focusX;
+		layoutFullRange();
+	}
+
+	private void scrollBy(float dx) {
+		mScrollX += dx;
+		layoutFullRange();
+	}
+
+	private void scrollToNote(int note) {
+		mScrollNote = note;
+		layoutFullRange();
+	}
+
+	public void setFullRange(boolean state) {
+		if (mFullRange != state) {
+			mFullRange = state;
+			mZoomKeyWidth = 0;
+			mScrollX = 0;
+			initKeys();
+			if (state) {
+				scrollToNote(mBaseOctave * 12);
+			}
+		}
+	}
+
+	public boolean isFullRange() {
+		return mFullRange;
+	}
+
+	public void setShowLatency(boolean state) {
+		if (mShowingLatency != state) {
+			mShowingLatency = state;
+			if (state) {
+				LatencyMonitor.updateSummary();
+			}
+			invalidate();
+		}
+	}
+
+	public void setShowNames(boolean state) {
+		if (mShowingNames != state) {
+			mShowingNames = state;
+			invalidate();
+		}
+	}
+
+	public int desiredWidth(int widthSize) {
+		int numWhiteKeys = (int) Math.ceil(mNumberOfKeys * 7d / 12d);
+		mKeyWidth = widthSize / numWhiteKeys;
+		return (int) (mKeyWidth * numWhiteKeys);
+	}
+
+	public int desiredHeight(int widthSize, int heightSize) {
+		int numWhiteKeys = (int) Math.ceil(mNumberOfKeys * 7d / 12d);
+		mKeyWidth = widthSize / numWhiteKeys;
+		mKeyHeight = mKeyWidth * 4;
+		if (mKeyHeight > heightSize) {
+			mKeyHeight = heightSize;
+		}
+		return (int) mKeyHeight;
+	}
+
+	public void layout(int left, int top, int right, int bottom) {
+		mRect.set(left, top, right, bottom);
+		initKeys();
+	}
+
+	/**
+	 * May be called from a render thread.
+	 */
+	public void draw(Canvas canvas) {
+		mFramePending.set(false);
+		TraceRing.begin(TraceRing.KEYBOARD_DRAW, 0);
+		long begin = System.nanoTime();
+		KeyBank bank = acquireLayout();
+		NoteStateTable incoming = mIncoming;
+		try {
+			if (mFullRange) {
+				drawNavigator(canvas, bank);
+			}
+			canvas.save();
+			canvas.translate(-bank.mOffset, 0);
+			for (int i = 0; i < bank.mCount; ++i) {
+				bank.mKeys[i].draw(canvas, bank, incoming);
+			}
+			canvas.restore();
+		} finally {
+			releaseLayout();
+		}
+		if (mShowingLatency) {
+			drawLatency(canvas);
+		}
+		REDRAWS.increment();
+		DRAW_NANOS.record(System.nanoTime() - begin);
+		TraceRing.end(TraceRing.KEYBOARD_DRAW);
+	}
+
+	/**
+	 * The navigation bar shows the whole MIDI range, with a mark on every C
+	 * and the visible window highlighted.
+	 */
+	private void drawNavigator(Canvas canvas, KeyBank bank) {
+		float width = mRect.width();
+		float height = mNavHeight;
+		canvas.drawRect(0, 0, width, height, mNavBrush);
+		for (int octave = 1; octave < ALL_KEYS / 12 + 1; ++octave) {
+			float x = octave * 7 * width / ALL_WHITE_KEYS;
+			canvas.drawLine(x, 0, x, height, mBlackPen);
+		}
+		if (bank.mKeyWidth > 0) {
+			float scale = width / (ALL_WHITE_KEYS * bank.mKeyWidth);
+			float left = bank.mOffset * scale;
+			canvas.drawRect(left, 0, left + width * scale, height, mNavWindowBrush);
+		}
+	}
+
+	private void drawLatency(Canvas canvas) {
+		float y = mOverlayPen.getTextSize() * 1.2f;
+		for (String line : LatencyMonitor.summaryLines()) {
+			canvas.drawText(line, mOverlayPen.getTextSize(), y, mOverlayPen);
+			y += mOverlayPen.getTextSize() * 1.2f;
+		}
+	}
+
+	/**
+	 * Gestures starting on the navigation bar scroll and zoom the full range
+	 * keyboard, until the last pointer goes up.
+	 */
+	private boolean onNavigationEvent(MotionEvent ev) {
+		final int action = ev.getAction();
+		if (mScaleDetector != null) {
+			mScaleDetector.onTouchEvent(ev);
+		}
+		switch (action & MotionEvent.ACTION_MASK) {
+			case MotionEvent.ACTION_DOWN:
+				mNavLastX = ev.getX();
+				break;
+
+			case MotionEvent.ACTION_MOVE:
+				if (ev.getPointerCount() == 1
+						&& (mScaleDetector == null || !mScaleDetector.isInProgress())) {
+					float dx = ev.getX() - mNavLastX;
+					scrollBy(dx * ALL_WHITE_KEYS * mKeyWidth / mRect.width());
+				}
+				mNavLastX = ev.getX();
+				break;
+
+			case MotionEvent.ACTION_POINTER_UP: {
+				int p = getPointerIndex(action);
+				mNavLastX = ev.getX(p == 0 ? 1 : 0);
+				break;
+			}
+
+			case MotionEvent.ACTION_UP:
+			case MotionEvent.ACTION_CANCEL:
+				mNavigating = false;
+				break;
+		}
+		return true;
+	}
+
+	public boolean onTouchEvent(MotionEvent ev) {
+		final int action = ev.getAction();
+		mEventNanos = ev.getEventTime() * 1000000L;
+		if (mFullRange) {
+			if ((action & MotionEvent.ACTION_MASK) == MotionEvent.ACTION_DOWN) {
+				mNavigating = ev.getY() < mNavHeight;
+			}
+			if (mNavigating) {
+				return onNavigationEvent(ev);
+			}
+		}
+		switch (action & MotionEvent.ACTION_MASK) {
+
+			case MotionEvent.ACTION_DOWN: {
+				// Log.d(VIEW_LOG_TAG, "ACTION_DOWN");
+				float x = ev.getX();
+				float y = ev.getY();
+				int pId = ev.getPointerId(0);
+				PianoKey key = getKeyForPos(x, y);
+				keyOn(key, pId);
+				// mLast.put(pId, key);
+				break;
+			}
+
+			case MotionEvent.ACTION_POINTER_DOWN: {
+				// Log.d(VIEW_LOG_TAG, "ACTION_POINTER_DOWN:" + ev.getPointerCount());
+				int p = getPointerIndex(action);
+				// for (int p=0; p<ev.getPointerCount(); ++p) {
+				float x = ev.getX(p);
+				float y = ev.getY(p);
+				int pId = ev.getPointerId(p);
+				PianoKey key = getKeyForPos(x, y);
+				keyOn(key, pId);
+				// mLast.put(pId, key);
+				// }
+				invalidate();
+				break;
+			}
+
+			case MotionEvent.ACTION_MOVE: {
+				// Log.d(VIEW_LOG_TAG, "ACTION_MOVE:" + ev.getPointerCount());
+				for (int p = 0; p < ev.getPointerCount(); ++p) {
+					int pId = ev.getPointerId(p);
+					int lastNote = mLast.get(pId, -1);
+					if (lastNote >= 0 && mPressed.get(lastNote)) {
+						float x = ev.getX(p);
+						float y = ev.getY(p);
+						PianoKey key = getKeyForPos(x, y);
+						if (key == null || key.mNote != lastNote) {
+							keyOff(lastNote, pId);
+						}
+						if (key != null && key.mNote != lastNote && !key.isPressed()) {
+							keyOn(key, pId);
+							// mLast.put(pId, key);
+						}
+					}
+				}
+				invalidate();
+				break;
+			}
+
+			case MotionEvent.ACTION_UP: {
+				// Log.d(VIEW_LOG_TAG, "ACTION_UP");
+				float x = ev.getX();
+				float y = ev.getY();
+				int pId = ev.getPointerId(0);
+				PianoKey key = getKeyForPos(x, y);
+				if (key != null) {
+					keyOff(key.mNote, pId);
+				}
+				// mLast.delete(pId);
+				break;
+			}
+
+			case MotionEvent.ACTION_POINTER_UP: {
+				// Log.d(VIEW_LOG_TAG, "ACTION_POINTER_UP:" + ev.getPointerCount());
+				int p = getPointerIndex(action);
+				// for (int p=0; p<ev.getPointerCount(); ++p) {
+				float x = ev.getX(p);
+				float y = ev.getY(p);
+				int pId = ev.getPointerId(p);
+				PianoKey key = getKeyForPos(x, y);
+				if (key != null) {
+					keyOff(key.mNote, pId);
+				}
+				// mLast.delete(pId);
+				// }
+				break;
+			}
+
+			case MotionEvent.ACTION_CANCEL: {
+				// Log.d(VIEW_LOG_TAG, "ACTION_CANCEL");
+				mPressed.clearAll();
+				mLast.clear();
+				invalidate();
+				mPlayingKeys = 0;
+				break;
+			}
+
+		}
+		return true;
+	}
+
+	private int getPointerIndex(int action) {
+		return (action & MotionEvent.ACTION_POINTER_INDEX_MASK) >> MotionEvent.ACTION_POINTER_INDEX_SHIFT;
+	}
+
+	private void keyOn(PianoKey key, int id) {
+		boolean accept = !mMono || (mMono && mPlayingKeys == 0);
+		// Log.d(VIEW_LOG_TAG, "accept:" + accept);
+		if (key != null && !key.isPressed() && accept) {
+			// Log.d(VIEW_LOG_TAG, "keyOn:" + key.mNote);
+			if (mEngine != null) {
+				long t = LatencyMonitor.beginDispatch(mEventNanos);
+				mEngine.noteOnHiRes(mChannel, midiNote(key.mNote), mVelocityHiRes);
+				LatencyMonitor.endDispatch(t);
+			}
+			mPressed.set(key.mNote);
+			invalidate();
+			mLast.put(id, key.mNote);
+			mPlayingKeys++;
+		}
+	}
+
+	private void keyOff(int note, int id) {
+		if (mPressed.get(note)) {
+			// Log.d(VIEW_LOG_TAG, "keyOff:" + note);
+			if (mEngine != null) {
+				mEngine.noteOff(mChannel, midiNote(note), mVelocity);
+				if (mShowingLatency) {
+					mEngine.collectStats();
+					LatencyMonitor.updateSummary();
+				}
+			}
+			mPressed.clear(note);
+			invalidate();
+			mLast.delete(id);
+			mPlayingKeys--;
+		}
+	}
+
+	private int midiNote(int note) {
+		return mFullRange ? note : note + mBaseOctave * 12;
+	}
+
+	public void setEngine(MidiEngine e) {
+		if (e != null && e != mEngine) {
+			mEngine = e;
+		}
+	}
+
+	/**
+	 * Shows the notes of an external MIDI source, or none if null.
+	 */
+	public void setIncomingNotes(NoteStateTable table) {
+		if (table != mIncoming) {
+			if (mIncoming != null) {
+				mIncoming.removeObserver(this);
+			}
+			mIncoming = table;
+			if (table != null) {
+				table.addObserver(this);
+			}
+			invalidate();
+		}
+	}
+
+	@Override
+	public void onNotesChanged() {
+		// the first change since the last frame schedules the next one
+		if (!mFramePending.getAndSet(true)) {
+			mHost.postKeyboardChanged();
+		}
+	}
+
+	public void setHighlightColor(int color) {
+		if (color != mHiliteBrush.getColor()) {
+			mHiliteBrush.setColor(color);
+			mNavWindowBrush.setColor(color);
+			mNavWindowBrush.setAlpha(0x80);
+			mIncomingBrush.setColor(color);
+			mIncomingBrush.setAlpha(0x80);
+		}
+	}
+
+	public int highlightColor() {
+		return mHiliteBrush.getColor();
+	}
+
+	public void setNumberOfKeys(int nKeys) {
+		if (nKeys != mNumberOfKeys) {
+			mNumberOfKeys = nKeys;
+			mZoomKeyWidth = 0;
+			initKeys();
+		}
+	}
+
+	public int numberOfKeys() {
+		return mNumberOfKeys;
+	}
+
+	public int numberOfWholeOctaves() {
+		return mNumberOfKeys / 12;
+	}
+
+	public void setFirstKey(int n) {
+		if (n != mFirstKey) {
+			mFirstKey = n;
+			initKeys();
+		}
+	}
+
+	public int firstKey() {
+		return mFirstKey;
+	}
+
+	public void setBaseOctave(int n) {
+		if (mBaseOctave != n) {
+			mBaseOctave = n;
+			if (mFullRange) {
+				scrollToNote(Math.max(n, 0) * 12);
+			} else {
+				initKeys();
+			}
+		}
+	}
+
+	public int baseOctave() {
+		return mBaseOctave;
+	}
+
+	public void setChannel(int n) {
+		if (mChannel != n && n >= 0 && n < 16) {
+			mChannel = n;
+			invalidate();
+		}
+	}
+
+	public int channel() {
+		return mChannel;
+	}
+
+	public void setVelocity(int n) {
+		if (mVelocity != n && n >= 0 && n < 128) {
+			mVelocity = n;
+			mVelocityHiRes = (int) UmpEncoder.scaleUp(n, 7, 16);
+		}
+	}
+
+	/**
+	 * @param n 16 bit velocity
+	 */
+	public void setVelocityHiRes(int n) {
+		if (n >= 0 && n < 0x10000) {
+			mVelocityHiRes = n;
+			mVelocity = UmpEncoder.velocity7(n);
+		}
+	}
+
+	public int velocity() {
+		return mVelocity;
+	}
+
+	PianoKey getKey(int note) {
+		KeyBank bank = mLayout;
+		for (int i = 0; i < bank.mCount; ++i) {
+			if (bank.mKeys[i].mNote == note) {
+				return bank.mKeys[i];
+			}
+		}
+		return null;
+	}
+
+	public boolean isMono() {
+		return mMono;
+	}
+
+	public void setMono(boolean newValue) {
+		if (newValue != mMono) {
+			mMono = newValue;
+		}
+	}
+
+	// public void demo()
+	// {
+	// mPressed.set(13);
+	// mPressed.set(16);
+	// mPressed.set(20);
+	// invalidate();
+	// }
+}
@@ -0,0 +1,171 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.os.Process;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Alternative to {@link PianoView} that draws the keyboard on its own render
+ * thread, so layout passes and other work on the UI thread never delay the
+ * key highlight feedback. Touches are still handled on the UI thread, which
+ * only flips bits in the keyboard model and wakes up the renderer.
+ */
+public class PianoSurfaceView extends SurfaceView implements SurfaceHolder.Callback, PianoKeyboard.Host {
+
+	private PianoKeyboard mKeyboard;
+	private RenderThread mRenderThread = null;
+	private int mBackground = Color.BLACK;
+
+	private class RenderThread extends Thread {
+		private final SurfaceHolder mHolder;
+		private final AtomicBoolean mDirty = new AtomicBoolean(true);
+		private volatile boolean mQuit = false;
+
+		RenderThread(SurfaceHolder holder) {
+			super("PianoRender");
+			mHolder = holder;
+		}
+
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+			while (!mQuit) {
+				if (!mDirty.getAndSet(false)) {
+					LockSupport.park(this);
+					continue;
+				}
+				Canvas canvas = mHolder.lockHardwareCanvas();
+				if (canvas == null) {
+					continue;
+				}
+				try {
+					canvas.drawColor(mBackground);
+					mKeyboard.draw(canvas);
+				} finally {
+					// blocks until the next vsync, so requests coalesce per frame
+					mHolder.unlockCanvasAndPost(canvas);
+				}
+			}
+		}
+
+		void requestRender() {
+			if (!mDirty.getAndSet(true)) {
+				LockSupport.unpark(this);
+			}
+		}
+
+		void quit() {
+			mQuit = true;
+			LockSupport.unpark(this);
+			boolean interrupted = false;
+			while (isAlive()) {
+				try {
+					join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void commonCreation(Context context) {
+		mKeyboard = new PianoKeyboard(context, this, isInEditMode());
+		TypedArray a = context.getTheme().obtainStyledAttributes(new int[] { android.R.attr.colorBackground });
+		try {
+			mBackground = a.getColor(0, Color.BLACK);
+		} finally {
+			a.recycle();
+		}
+		getHolder().addCallback(this);
+	}
+
+	public PianoSurfaceView(Context context) {
+		super(context);
+		commonCreation(context);
+	}
+
+	public PianoSurfaceView(Context context, AttributeSet attrs, int defStyle) {
+		super(context, attrs, defStyle);
+		commonCreation(context);
+	}
+
+	public PianoSurfaceView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		commonCreation(context);
+	}
+
+	public PianoKeyboard getKeyboard() {
+		return mKeyboard;
+	}
+
+	@Override
+	public void onKeyboardChanged() {
+		RenderThread thread = mRenderThread;
+		if (thread != null) {
+			thread.requestRender();
+		}
+	}
+
+	@Override
+	public void postKeyboardChanged() {
+		// the render thread already paces itself on vsync
+		onKeyboardChanged();
+	}
+
+	@Override
+	public void surfaceCreated(SurfaceHolder holder) {
+		mRenderThread = new RenderThread(holder);
+		mRenderThread.start();
+	}
+
+	@Override
+	public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+		onKeyboardChanged();
+	}
+
+	@Override
+	public void surfaceDestroyed(SurfaceHolder holder) {
+		if (mRenderThread != null) {
+			mRenderThread.quit();
+			mRenderThread = null;
+		}
+	}
+
+	@Override
+	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+		int widthSize = MeasureSpec.getSize(widthMeasureSpec);
+		int heightSize = MeasureSpec.getSize(heightMeasureSpec);
+		int desiredWidth = mKeyboard.desiredWidth(widthSize);
+		int desiredHeight = mKeyboard.desiredHeight(widthSize, heightSize);
+		setMeasuredDimension(resolveSize(desiredWidth, widthMeasureSpec),
+				resolveSize(desiredHeight, heightMeasureSpec));
+	}
+
+	@Override
+	protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
+		super.onLayout(changed, left, top, right, bottom);
+		if (changed) {
+			mKeyboard.layout(left, top, right, bottom);
+		}
+	}
+
+	@Override
+	public boolean onTouchEvent(MotionEvent ev) {
+		return mKeyboard.onTouchEvent(ev);
+	}
+}
@@ -0,0 +1,133 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+import android.content.Context;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Named {@link PerformanceState}s, to switch between songs. All of them
+ * are kept in memory, preloaded when the process starts, and saved
+ * together in one of the {@link StateFiles}: a name and an encoded state
+ * each, a few dozen bytes. Used from the UI thread, except for preloading.
+ */
+public final class PresetStore {
+	private static final String FILE_NAME = "presets";
+	private static final int MAGIC = 0x564D5053; // "VMPS"
+	private static final byte VERSION = 1;
+
+	// guarded by PresetStore.class; null until loaded
+	private static TreeMap<String, PerformanceState> sPresets = null;
+
+	private PresetStore() {
+	}
+
+	public static void preload(Context context) {
+		final Context app = context.getApplicationContext();
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				names(app);
+			}
+		}, "PresetLoad").start();
+	}
+
+	private static TreeMap<String, PerformanceState> presets(Context context) {
+		if (sPresets == null) {
+			sPresets = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+			byte[] data = StateFiles.read(context, FILE_NAME);
+			if (data != null && !decode(data, sPresets)) {
+				Log.e("PresetStore", "presets not understood, " + data.length + " bytes");
+			}
+		}
+		return sPresets;
+	}
+
+	/**
+	 * @return the preset names, sorted
+	 */
+	public static synchronized List<String> names(Context context) {
+		return new ArrayList<>(presets(context).keySet());
+	}
+
+	/**
+	 * @return the preset, or null if there is none with that name
+	 */
+	public static synchronized PerformanceState get(Context context, String name) {
+		return presets(context).get(name);
+	}
+
+	/**
+	 * Adds a preset, or replaces the one with the same name.
+	 */
+	public static synchronized void put(Context context, String name, PerformanceState state) {
+		TreeMap<String, PerformanceState> presets = presets(context);
+		// the new spelling of the name wins
+		presets.remove(name);
+		presets.put(name, state);
+		StateFiles.write(context, FILE_NAME, encode(presets));
+	}
+
+	public static synchronized void remove(Context context, String name) {
+		TreeMap<String, PerformanceState> presets = presets(context);
+		if (presets.remove(name) != null) {
+			StateFiles.write(context, FILE_NAME, encode(presets));
+		}
+	}
+
+	private static byte[] encode(Map<String, PerformanceState> presets) {
+		ArrayList<byte[]> parts = new ArrayList<>(presets.size() * 2);
+		int size = 4 + 1 + 2;
+		for (Map.Entry<String, PerformanceState> entry : presets.entrySet()) {
+			byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+			byte[] state = entry.getValue().encode();
+			parts.add(name);
+			parts.add(state);
+			size += 2 + name.length + 2 + state.length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.putInt(MAGIC);
+		buffer.put(VERSION);
+		buffer.putShort((short) presets.size());
+		for (byte[] part : parts) {
+			buffer.putShort((short) part.length);
+			buffer.put(part);
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * @return false if the data is not understood; what could be read is
+	 *         kept
+	 */
+	private static boolean decode(byte[] data, Map<String, PerformanceState> presets) {
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			if (buffer.getInt() != MAGIC || buffer.get() != VERSION) {
+				return false;
+			}
+			int count = buffer.getShort() & 0xFFFF;
+			for (int i = 0; i < count; ++i) {
+				byte[] name = new byte[buffer.getShort() & 0xFFFF];
+				buffer.get(name);
+				byte[] encoded = new byte[buffer.getShort() & 0xFFFF];
+				buffer.get(encoded);
+				PerformanceState state = PerformanceState.decode(encoded);
+				if (state != null) {
+					presets.put(new String(name, StandardCharsets.UTF_8), state);
+				}
+			}
+			return true;
+		} catch (BufferUnderflowException ex) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,305 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.os.Debug;
+import android.view.MotionEvent;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a {@link ReplayScript} through a real keyboard model, the way a
+ * PianoView gets touches, and through a {@link TrackingEngine} to an
+ * output engine, as fast as possible. Measures the throughput, the time of
+ * each event and each redraw, and the memory allocated meanwhile, so that
+ * runs before and after a change can be compared.
+ *
+ * The output is a {@link ReplaySink}, counting the messages and optionally
+ * passing them on, to an engine of the harness's own: the script changes
+ * programs and controllers, which the engine in use must not get behind
+ * the back of the service state.
+ *
+ * The keyboard is built on the calling thread, which needs a Looper; run()
+ * may be called from any one thread after that.
+ */
+public class ReplayHarness {
+	private static final int MAX_POINTERS = 10;
+	/** between the last event of a paced run and the first of the next */
+	private static final long PACED_GAP_MS = 100;
+
+	private final ReplayScript mScript;
+	private final ReplaySink mSink;
+	private final TrackingEngine mEngine;
+	private final PianoKeyboard mKeyboard;
+	private final Bitmap mBitmap;
+	private final Canvas mCanvas;
+	private final MotionEvent[] mEvents;
+	private boolean mDirty = false;
+
+	private final PianoKeyboard.Host mHost = new PianoKeyboard.Host() {
+		@Override
+		public void onKeyboardChanged() {
+			mDirty = true;
+		}
+
+		@Override
+		public void postKeyboardChanged() {
+			mDirty = true;
+		}
+
+		@Override
+		public void getDrawingRect(Rect outRect) {
+			outRect.set(0, 0, mBitmap.getWidth(), mBitmap.getHeight());
+		}
+	};
+
+	public ReplayHarness(Context context, ReplayScript script, ReplaySink sink, int width, int height) {
+		mScript = script;
+		mSink = sink;
+		mEngine = new TrackingEngine(sink, new ChannelStateTable());
+		mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		mCanvas = new Canvas(mBitmap);
+		mKeyboard = new PianoKeyboard(context, mHost, false);
+		Settings settings = Settings.get(context);
+		mKeyboard.setNumberOfKeys(settings.numberOfKeys);
+		mKeyboard.setFirstKey(settings.firstKey);
+		mKeyboard.layout(0, 0, width, height);
+		mKeyboard.setEngine(mEngine);
+		mEvents = buildEvents(script, width, height);
+	}
+
+	/**
+	 * The touches as MotionEvents, built beforehand so that they are not
+	 * part of the measures: every pointer down is in each event, as the
+	 * system does.
+	 */
+	private static MotionEvent[] buildEvents(ReplayScript script, int width, int height) {
+		MotionEvent[] events = new MotionEvent[script.size()];
+		MotionEvent.PointerProperties[] properties = new MotionEvent.PointerProperties[MAX_POINTERS];
+		MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[MAX_POINTERS];
+		for (int p = 0; p < MAX_POINTERS; ++p) {
+			properties[p] = new MotionEvent.PointerProperties();
+			properties[p].toolType = MotionEvent.TOOL_TYPE_FINGER;
+			coords[p] = new MotionEvent.PointerCoords();
+		}
+		int down = 0;
+		for (int i = 0; i < script.size(); ++i) {
+			if (!script.isTouch(i)) {
+				continue;
+			}
+			int id = script.target(i);
+			int index = 0;
+			while (index < down && properties[index].id != id) {
+				index++;
+			}
+			int kind = script.kind(i);
+			if (kind == ReplayScript.DOWN && index == down && down < MAX_POINTERS) {
+				properties[index].id = id;
+				down++;
+			} else if (index == down) {
+				// a pointer that is not down
+				continue;
+			}
+			coords[index].x = script.arg1(i) * width;
+			coords[index].y = script.arg2(i) * height;
+			int action;
+			if (kind == ReplayScript.MOVE) {
+				action = MotionEvent.ACTION_MOVE;
+			} else if (down == 1) {
+				action = kind == ReplayScript.DOWN ? MotionEvent.ACTION_DOWN : MotionEvent.ACTION_UP;
+			} else {
+				action = (kind == ReplayScript.DOWN ? MotionEvent.ACTION_POINTER_DOWN
+						: MotionEvent.ACTION_POINTER_UP)
+						| (index << MotionEvent.ACTION_POINTER_INDEX_SHIFT);
+			}
+			// no event time: not to be counted as touch latency
+			events[i] = MotionEvent.obtain(0, 0, action, down,
+					Arrays.copyOf(properties, down), Arrays.copyOf(coords, down),
+					0, 0, 1, 1, 0, 0, 0, 0);
+			if (kind == ReplayScript.UP) {
+				// the last one takes its place
+				down--;
+				MotionEvent.PointerProperties gone = properties[index];
+				properties[index] = properties[down];
+				properties[down] = gone;
+				MotionEvent.PointerCoords goneCoords = coords[index];
+				coords[index] = coords[down];
+				coords[down] = goneCoords;
+			}
+		}
+		return events;
+	}
+
+	/**
+	 * @return bytes allocated by the whole process so far, or -1 if unknown
+	 */
+	private static long allocatedBytes() {
+		try {
+			return Long.parseLong(Debug.getRuntimeStat("art.gc.bytes-allocated"));
+		} catch (NumberFormatException | NullPointerException ex) {
+			return -1;
+		}
+	}
+
+	private static long gcCount() {
+		try {
+			return Long.parseLong(Debug.getRuntimeStat("art.gc.gc-count"));
+		} catch (NumberFormatException | NullPointerException ex) {
+			return -1;
+		}
+	}
+
+	private void dispatch(int i) {
+		MotionEvent event = mEvents[i];
+		if (event != null) {
+			mKeyboard.onTouchEvent(event);
+			return;
+		}
+		int channel = mScript.target(i);
+		switch (mScript.kind(i)) {
+			case ReplayScript.CONTROLLER:
+				mEngine.controller(channel, (int) mScript.arg1(i), (int) mScript.arg2(i));
+				break;
+			case ReplayScript.BENDER:
+				mEngine.pitchWheel(channel, (int) mScript.arg1(i));
+				break;
+			case ReplayScript.PROGRAM:
+				mEngine.programChange(channel, (int) mScript.arg1(i));
+				break;
+		}
+	}
+
+	/**
+	 * Plays the script the given number of times, drawing the keyboard after
+	 * every event that changed it.
+	 *
+	 * @param paced each event waits for its time in the script, as played,
+	 *              instead of going as fast as possible: the times measured
+	 *              are then those of a real performance, with the caches
+	 *              and the CPU clock cooling down between events
+	 */
+	public Result run(int repeats, boolean paced) {
+		int total = mScript.size() * repeats;
+		int size = mScript.size();
+		long period = size == 0 ? 0 : (mScript.millis(size - 1) + PACED_GAP_MS) * 1000000L;
+		long[] dispatch = new long[total];
+		long[] draw = new long[total];
+		int draws = 0;
+		long messages = mSink.messages();
+		long gcs = gcCount();
+		long allocated = allocatedBytes();
+		long begin = System.nanoTime();
+		for (int r = 0, n = 0; r < repeats; ++r) {
+			for (int i = 0; i < size; ++i, ++n) {
+				if (paced) {
+					long due = begin + r * period + mScript.millis(i) * 1000000L;
+					long wait;
+					while ((wait = due - System.nanoTime()) > 0) {
+						LockSupport.parkNanos(wait);
+					}
+				}
+				long t = System.nanoTime();
+				dispatch(i);
+				long t1 = System.nanoTime();
+				dispatch[n] = t1 - t;
+				if (mDirty) {
+					mDirty = false;
+					mKeyboard.draw(mCanvas);
+					draw[draws++] = System.nanoTime() - t1;
+				}
+			}
+		}
+		long nanos = System.nanoTime() - begin;
+		long allocatedAfter = allocatedBytes();
+		long gcsAfter = gcCount();
+		mEngine.panic();
+		return new Result(total, mSink.messages() - messages, nanos,
+				allocated < 0 || allocatedAfter < 0 ? -1 : allocatedAfter - allocated,
+				gcs < 0 || gcsAfter < 0 ? -1 : gcsAfter - gcs, paced,
+				dispatch, Arrays.copyOf(draw, draws), mSink.name());
+	}
+
+	public void release() {
+		for (MotionEvent event : mEvents) {
+			if (event != null) {
+				event.recycle();
+			}
+		}
+		mBitmap.recycle();
+	}
+
+	public static class Result {
+		public final int events;
+		public final long messages;
+		public final long nanos;
+		/** by all the threads of the process, or -1 if unknown */
+		public final long allocatedBytes;
+		public final long gcs;
+		public final boolean paced;
+		private final long[] mDispatch;
+		private final long[] mDraw;
+		private final String mTarget;
+
+		Result(int events, long messages, long nanos, long allocatedBytes, long gcs, boolean paced,
+				long[] dispatch, long[] draw, String target) {
+			this.events = events;
+			this.messages = messages;
+			this.nanos = nanos;
+			this.allocatedBytes = allocatedBytes;
+			this.gcs = gcs;
+			this.paced = paced;
+			mDispatch = dispatch;
+			mDraw = draw;
+			mTarget = target;
+			Arrays.sort(mDispatch);
+			Arrays.sort(mDraw);
+		}
+
+		/**
+		 * @return nanoseconds taken by the given fraction of the events
+		 */
+		public long dispatchPercentile(double p) {
+			return percentile(mDispatch, p);
+		}
+
+		public long drawPercentile(double p) {
+			return percentile(mDraw, p);
+		}
+
+		private static long percentile(long[] sorted, double p) {
+			if (sorted.length == 0) {
+				return 0;
+			}
+			int index = (int) Math.ceil(sorted.length * p) - 1;
+			return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+		}
+
+		public String report() {
+			double seconds = nanos / 1e9;
+			StringBuilder sb = new StringBuilder(paced ? "VMPK replay, paced\n\n" : "VMPK replay\n\n");
+			sb.append(String.format(Locale.US, "events %d, messages %d, output %s\n", events, messages,
+					mTarget));
+			sb.append(String.format(Locale.US, "time %.1f ms, %.0f events/s, %.0f messages/s\n",
+					nanos / 1e6, events / seconds, messages / seconds));
+			if (allocatedBytes >= 0) {
+				sb.append(String.format(Locale.US,
+						"allocated %d bytes by the whole process, %.1f per event, %d GCs\n",
+						allocatedBytes, (double) allocatedBytes / events, gcs));
+			}
+			sb.append(String.format(Locale.US, "event us p50 %.1f p90 %.1f p99 %.1f max %.1f\n",
+					dispatchPercentile(.5) / 1e3, dispatchPercentile(.9) / 1e3,
+					dispatchPercentile(.99) / 1e3, dispatchPercentile(1) / 1e3));
+			sb.append(String.format(Locale.US, "draw us n %d p50 %.1f p90 %.1f p99 %.1f max %.1f\n",
+					mDraw.length, drawPercentile(.5) / 1e3, drawPercentile(.9) / 1e3,
+					drawPercentile(.99) / 1e3, drawPercentile(1) / 1e3));
+			return sb.toString();
+		}
+	}
+}
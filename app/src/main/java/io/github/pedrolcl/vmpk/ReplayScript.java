@@ -0,0 +1,197 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A recorded performance for {@link ReplayHarness}: touches on a keyboard
+ * and controller moves, with their times. One event per line, blank lines
+ * and lines starting with # ignored:
+ *
+ * <pre>
+ * time_ms down  pointer_id x y
+ * time_ms move  pointer_id x y
+ * time_ms up    pointer_id x y
+ * time_ms cc    channel controller value
+ * time_ms bend  channel value
+ * time_ms prog  channel program
+ * </pre>
+ *
+ * Positions are fractions of the keyboard width and height, so a script
+ * plays the same on any screen. Events are kept in primitive arrays.
+ */
+public final class ReplayScript {
+	public static final int DOWN = 0;
+	public static final int MOVE = 1;
+	public static final int UP = 2;
+	public static final int CONTROLLER = 3;
+	public static final int BENDER = 4;
+	public static final int PROGRAM = 5;
+
+	private static final String[] KINDS = { "down", "move", "up", "cc", "bend", "prog" };
+
+	private int mCount = 0;
+	private long[] mMillis = new long[64];
+	private int[] mKinds = new int[64];
+	/** pointer id or channel */
+	private int[] mTargets = new int[64];
+	/** x, or the controller number, bender value or program */
+	private float[] mArg1 = new float[64];
+	/** y, or the controller value */
+	private float[] mArg2 = new float[64];
+
+	public int size() {
+		return mCount;
+	}
+
+	public long millis(int i) {
+		return mMillis[i];
+	}
+
+	public int kind(int i) {
+		return mKinds[i];
+	}
+
+	public int target(int i) {
+		return mTargets[i];
+	}
+
+	public float arg1(int i) {
+		return mArg1[i];
+	}
+
+	public float arg2(int i) {
+		return mArg2[i];
+	}
+
+	public boolean isTouch(int i) {
+		return mKinds[i] <= UP;
+	}
+
+	public void add(long millis, int kind, int target, float arg1, float arg2) {
+		if (mCount == mMillis.length) {
+			int capacity = mCount * 2;
+			mMillis = Arrays.copyOf(mMillis, capacity);
+			mKinds = Arrays.copyOf(mKinds, capacity);
+			mTargets = Arrays.copyOf(mTargets, capacity);
+			mArg1 = Arrays.copyOf(mArg1, capacity);
+			mArg2 = Arrays.copyOf(mArg2, capacity);
+		}
+		mMillis[mCount] = millis;
+		mKinds[mCount] = kind;
+		mTargets[mCount] = target;
+		mArg1[mCount] = arg1;
+		mArg2[mCount] = arg2;
+		mCount++;
+	}
+
+	/**
+	 * @throws IOException also for lines not understood, with their number
+	 */
+	public static ReplayScript parse(Reader reader) throws IOException {
+		ReplayScript script = new ReplayScript();
+		BufferedReader in = new BufferedReader(reader);
+		String line;
+		int number = 0;
+		while ((line = in.readLine()) != null) {
+			number++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			String[] fields = line.split("\\s+");
+			int kind = Arrays.asList(KINDS).indexOf(fields.length > 1 ? fields[1] : "");
+			int needed = kind == BENDER || kind == PROGRAM ? 4 : 5;
+			if (kind < 0 || fields.length != needed) {
+				throw new IOException("replay script line " + number + ": " + line);
+			}
+			try {
+				script.add(Long.parseLong(fields[0]), kind, Integer.parseInt(fields[2]),
+						Float.parseFloat(fields[3]), needed == 5 ? Float.parseFloat(fields[4]) : 0);
+			} catch (NumberFormatException ex) {
+				throw new IOException("replay script line " + number + ": " + line, ex);
+			}
+		}
+		return script;
+	}
+
+	public String format() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < mCount; ++i) {
+			sb.append(mMillis[i]).append(' ').append(KINDS[mKinds[i]]).append(' ').append(mTargets[i]);
+			if (isTouch(i)) {
+				sb.append(String.format(Locale.US, " %.4f %.4f\n", mArg1[i], mArg2[i]));
+			} else if (mKinds[i] == CONTROLLER) {
+				sb.append(' ').append((int) mArg1[i]).append(' ').append((int) mArg2[i]).append('\n');
+			} else {
+				sb.append(' ').append((int) mArg1[i]).append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * A built-in performance, the same every time: runs and chords with up
+	 * to three fingers, glissandos sliding over the keys, and controller
+	 * and bender sweeps, at about 60 events per second per loop.
+	 *
+	 * @param loops times the pattern is repeated
+	 */
+	public static ReplayScript generate(int loops) {
+		ReplayScript script = new ReplayScript();
+		long t = 0;
+		for (int loop = 0; loop < loops; ++loop) {
+			script.add(t, PROGRAM, 0, loop % 8, 0);
+			// a run up, legato: the next finger goes down before the last is up
+			for (int i = 0; i < 14; ++i) {
+				float x = (i + .5f) / 14;
+				script.add(t, DOWN, i % 2, x, .9f);
+				if (i > 0) {
+					script.add(t + 5, UP, (i - 1) % 2, (i - .5f) / 14, .9f);
+				}
+				t += 60;
+			}
+			script.add(t, UP, 1, 13.5f / 14, .9f);
+			t += 60;
+			// chords
+			for (int c = 0; c < 6; ++c) {
+				float root = (c + .5f) / 10;
+				script.add(t, DOWN, 0, root, .9f);
+				script.add(t + 2, DOWN, 1, root + .2f, .9f);
+				script.add(t + 4, DOWN, 2, root + .4f, .9f);
+				t += 200;
+				script.add(t, UP, 2, root + .4f, .9f);
+				script.add(t + 1, UP, 1, root + .2f, .9f);
+				script.add(t + 2, UP, 0, root, .9f);
+				t += 50;
+			}
+			// glissando over the black keys and back
+			script.add(t, DOWN, 0, .02f, .3f);
+			for (int m = 1; m <= 48; ++m) {
+				t += 16;
+				float x = m <= 24 ? .02f + m * .04f : .98f - (m - 24) * .04f;
+				script.add(t, MOVE, 0, x, .3f);
+			}
+			script.add(t, UP, 0, .02f, .3f);
+			// held note with modulation and bender sweeps
+			script.add(t, DOWN, 0, .5f, .9f);
+			for (int v = 0; v < 32; ++v) {
+				t += 16;
+				script.add(t, CONTROLLER, 0, MidiEngine.CTL_MODULATION, v * 4);
+				script.add(t + 8, BENDER, 0, MidiEngine.BENDER_MID + v * 256, 0);
+			}
+			script.add(t, BENDER, 0, MidiEngine.BENDER_MID, 0);
+			script.add(t, CONTROLLER, 0, MidiEngine.CTL_MODULATION, 0);
+			t += 16;
+			script.add(t, UP, 0, .5f, .9f);
+			t += 100;
+		}
+		return script;
+	}
+}
@@ -0,0 +1,105 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+import android.content.Context;
+
+/**
+ * The output of a replay: counts the messages, and hands them to another
+ * engine, if any.
+ */
+public class ReplaySink implements MidiEngine {
+	private final MidiEngine mNext;
+	private long mMessages = 0;
+
+	public ReplaySink(MidiEngine next) {
+		mNext = next;
+	}
+
+	public long messages() {
+		return mMessages;
+	}
+
+	public String name() {
+		return mNext == null ? "none" : mNext.getClass().getSimpleName();
+	}
+
+	@Override
+	public void start(Context context) {
+	}
+
+	@Override
+	public void stop() {
+	}
+
+	@Override
+	public void pitchWheel(int channel, int num) {
+		mMessages++;
+		if (mNext != null) {
+			mNext.pitchWheel(channel, num);
+		}
+	}
+
+	@Override
+	public void channelPressure(int channel, int num) {
+		mMessages++;
+		if (mNext != null) {
+			mNext.channelPressure(channel, num);
+		}
+	}
+
+	@Override
+	public void programChange(int channel, int num) {
+		mMessages++;
+		if (mNext != null) {
+			mNext.programChange(channel, num);
+		}
+	}
+
+	@Override
+	public void controller(int channel, int ctl, int num) {
+		mMessages++;
+		if (mNext != null) {
+			mNext.controller(channel, ctl, num);
+		}
+	}
+
+	@Override
+	public void aftertouch(int channel, int note, int num) {
+		mMessages++;
+		if (mNext != null) {
+			mNext.aftertouch(channel, note, num);
+		}
+	}
+
+	@Override
+	public void noteOn(int channel, int note, int vel) {
+		mMessages++;
+		if (mNext != null) {
+			mNext.noteOn(channel, note, vel);
+		}
+	}
+
+	@Override
+	public void noteOff(int channel, int note, int vel) {
+		mMessages++;
+		if (mNext != null) {
+			mNext.noteOff(channel, note, vel);
+		}
+	}
+
+	@Override
+	public void panic() {
+		if (mNext != null) {
+			mNext.panic();
+		}
+	}
+
+	@Override
+	public void reset() {
+		if (mNext != null) {
+			mNext.reset();
+		}
+	}
+}
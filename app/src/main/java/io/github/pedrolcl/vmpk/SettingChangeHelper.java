@@ -3,14 +3,9 @@
 
 package io.github.pedrolcl.vmpk;
 
-import static android.content.Context.MIDI_SERVICE;
-import static android.content.pm.PackageManager.FEATURE_MIDI;
-
 import android.app.Activity;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.res.Configuration;
-import android.preference.PreferenceManager;
 
 import java.util.Locale;
 
@@ -20,15 +15,16 @@ public class SettingChangeHelper {
 	public static final int MIDI_OUTPUT_MODE_INTERNAL_SYNTH = 2;
 
 	private static boolean mLastTheme = false;
-	private static int mLastOutput = MIDI_OUTPUT_MODE_SYSTEM;
 	private static String mLastLang = null;
+	private static boolean mLastThreaded = false;
 	// private static boolean mFullScreen = false;
 
 	public static void changeSettingsCheck(Activity activity) {
 		boolean newTheme = getCurrentTheme(activity);
-		int newOutput = getCurrentOutputMode(activity);
 		String newLang = getCurrentLanguage(activity);
-		if (newTheme != mLastTheme || newOutput != mLastOutput || newLang != mLastLang) {
+		boolean newThreaded = getThreadedKeyboard(activity);
+		// a new output is taken by EngineService without restarting
+		if (newTheme != mLastTheme || !newLang.equals(mLastLang) || newThreaded != mLastThreaded) {
 			Log.d("SettingChangeHelper", "changingSettings");
 			// activity.recreate(); NO USAR, PODRIDO!
 			activity.finish();
@@ -38,8 +34,8 @@ public class SettingChangeHelper {
 
 	public static void onMainActivityCreateApplySettings(Activity activity) {
 		mLastTheme = getCurrentTheme(activity);
-		mLastOutput = getCurrentOutputMode(activity);
 		mLastLang = getCurrentLanguage(activity);
+		mLastThreaded = getThreadedKeyboard(activity);
 		Log.d("SettingChangeHelper", "onActivityCreateApplySettings");
 		if (mLastTheme) {
 			activity.setTheme(R.style.LightTheme);
@@ -66,47 +62,15 @@ public class SettingChangeHelper {
 	}
 
 	private static boolean getCurrentTheme(Activity activity) {
-		SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(activity);
-		return sharedPrefs.getBoolean("alternate_theme", false);
+		return Settings.get(activity).alternateTheme;
 	}
 
-	public static int getCurrentOutputMode(Activity activity) {
-		SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(activity);
-		int output = -1;
-		try {
-			output = Integer.parseInt(sharedPrefs.getString("midi_output_mode", ""));
-		} catch (NumberFormatException e) {
-		} catch (ClassCastException e) {
-        }
-		if (output < MIDI_OUTPUT_MODE_SYSTEM || output > MIDI_OUTPUT_MODE_INTERNAL_SYNTH) {
-			if (sharedPrefs.contains("midi_output")) {
-				output = sharedPrefs.getBoolean("midi_output", true)
-						? MIDI_OUTPUT_MODE_INTERNAL_SYNTH
-						: MIDI_OUTPUT_MODE_NETWORK;
-			} else {
-				output = MIDI_OUTPUT_MODE_INTERNAL_SYNTH;
-			}
-			sharedPrefs.edit()
-					.putString("midi_output_mode", Integer.toString(output))
-					.remove("midi_output")
-					.commit();
-		}
-		if (output == MIDI_OUTPUT_MODE_SYSTEM) {
-			if (!activity.getPackageManager().hasSystemFeature(FEATURE_MIDI)
-					|| activity.getSystemService(MIDI_SERVICE) == null) {
-				output = MIDI_OUTPUT_MODE_INTERNAL_SYNTH;
-			}
-		}
-		return output;
+	private static boolean getThreadedKeyboard(Activity activity) {
+		return Settings.get(activity).threadedKeyboard;
 	}
 
 	private static String getCurrentLanguage(Activity activity) {
-		SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(activity);
-		String defLang = activity.getResources().getString(R.string.default_language);
-		if (mLastLang == null) {
-			mLastLang = defLang;
-		}
-		return sharedPrefs.getString("lang", defLang);
+		return Settings.get(activity).language;
 	}
 
 	// public static boolean getFullScreen(Activity activity) {
@@ -0,0 +1,193 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+import static android.content.Context.MIDI_SERVICE;
+import static android.content.pm.PackageManager.FEATURE_MIDI;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.content.res.Resources;
+import android.preference.PreferenceManager;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The user settings, parsed once into typed values. A snapshot never
+ * changes: a new one replaces it whenever a preference changes, and the
+ * listeners are told on the UI thread.
+ *
+ * {@link #preload(Context)} reads the preferences file in the background
+ * when the process starts; {@link #get(Context)} only waits for it if
+ * called before it is done.
+ */
+public final class Settings {
+	public static final String KEY_NUMBER_OF_KEYS = "number_of_keys";
+	public static final String KEY_FIRST_KEY = "first_key";
+	public static final String KEY_COLOR = "color";
+	public static final String KEY_OUTPUT_MODE = "midi_output_mode";
+	/** replaced by KEY_OUTPUT_MODE: true for the internal synth */
+	private static final String KEY_LEGACY_OUTPUT = "midi_output";
+	public static final String KEY_DOUBLE_KEYBOARD = "double_keyboard";
+	public static final String KEY_FULL_RANGE = "full_range_keyboard";
+	public static final String KEY_THREADED = "threaded_keyboard";
+	public static final String KEY_SENSOR_RATE = "sensor_rate";
+	public static final String KEY_LANGUAGE = "lang";
+	public static final String KEY_ALTERNATE_THEME = "alternate_theme";
+	public static final String KEY_LATENCY_OVERLAY = "latency_overlay";
+	public static final String KEY_TRACE_EVENTS = "trace_events";
+	public static final String KEY_REVERB = "reverb";
+	public static final String KEY_CHORUS = "chorus";
+	public static final String KEY_SOUND_ENGINE = "sound_engine";
+	public static final String KEY_MIDI_THRU = "midi_thru";
+	public static final String KEY_PORT = "port_number";
+	public static final String KEY_ADDRESS = "ip_address";
+
+	public interface Listener {
+		/**
+		 * Called on the UI thread with the new snapshot.
+		 */
+		public void onSettingsChanged(Settings settings);
+	}
+
+	public final int numberOfKeys;
+	public final int firstKey;
+	public final int color;
+	/** one of the SettingChangeHelper.MIDI_OUTPUT_MODE values, available here */
+	public final int outputMode;
+	public final boolean doubleKeyboard;
+	public final boolean fullRange;
+	public final boolean threadedKeyboard;
+	public final int sensorRate;
+	public final String language;
+	public final boolean alternateTheme;
+	public final boolean latencyOverlay;
+	/** {@link TraceRing} and debug logging */
+	public final boolean traceEvents;
+	public final int reverb;
+	public final int chorus;
+	public final int soundLib;
+	public final boolean midiThru;
+	public final int port;
+	public final String address;
+
+	private static final Object sLock = new Object();
+	private static volatile Settings sCurrent = null;
+	private static final CopyOnWriteArrayList<Listener> sListeners = new CopyOnWriteArrayList<>();
+	// guarded by sLock; the preferences only keep a weak reference to it
+	private static OnSharedPreferenceChangeListener sPrefsListener = null;
+	private static boolean sSystemMidi;
+
+	private Settings(Resources res, SharedPreferences prefs) {
+		numberOfKeys = prefs.getInt(KEY_NUMBER_OF_KEYS, res.getInteger(R.integer.default_keys));
+		firstKey = parseInt(prefs, KEY_FIRST_KEY, Integer.parseInt(res.getString(R.string.default_firstKey)));
+		color = prefs.getInt(KEY_COLOR, 0xff0099cc);
+		outputMode = parseOutputMode(prefs);
+		doubleKeyboard = prefs.getBoolean(KEY_DOUBLE_KEYBOARD, true);
+		fullRange = prefs.getBoolean(KEY_FULL_RANGE, false);
+		threadedKeyboard = prefs.getBoolean(KEY_THREADED, false);
+		sensorRate = parseInt(prefs, KEY_SENSOR_RATE, 50);
+		language = prefs.getString(KEY_LANGUAGE, res.getString(R.string.default_language));
+		alternateTheme = prefs.getBoolean(KEY_ALTERNATE_THEME, false);
+		latencyOverlay = prefs.getBoolean(KEY_LATENCY_OVERLAY, false);
+		traceEvents = prefs.getBoolean(KEY_TRACE_EVENTS, false);
+		reverb = parseInt(prefs, KEY_REVERB, Integer.parseInt(res.getString(R.string.default_reverb)));
+		chorus = parseInt(prefs, KEY_CHORUS, Integer.parseInt(res.getString(R.string.default_chorus)));
+		soundLib = parseInt(prefs, KEY_SOUND_ENGINE, MIDISynth.SNDLIB_WT);
+		midiThru = prefs.getBoolean(KEY_MIDI_THRU, false);
+		port = prefs.getInt(KEY_PORT, res.getInteger(R.integer.default_port));
+		address = prefs.getString(KEY_ADDRESS, res.getString(R.string.default_address));
+	}
+
+	private static int parseInt(SharedPreferences prefs, String key, int defValue) {
+		try {
+			String value = prefs.getString(key, null);
+			return value == null ? defValue : Integer.parseInt(value);
+		} catch (NumberFormatException | ClassCastException ex) {
+			Log.e("Settings", key, ex);
+			return defValue;
+		}
+	}
+
+	private static int parseOutputMode(SharedPreferences prefs) {
+		int output = parseInt(prefs, KEY_OUTPUT_MODE, -1);
+		if (output < SettingChangeHelper.MIDI_OUTPUT_MODE_SYSTEM
+				|| output > SettingChangeHelper.MIDI_OUTPUT_MODE_INTERNAL_SYNTH) {
+			if (prefs.contains(KEY_LEGACY_OUTPUT)) {
+				output = prefs.getBoolean(KEY_LEGACY_OUTPUT, true)
+						? SettingChangeHelper.MIDI_OUTPUT_MODE_INTERNAL_SYNTH
+						: SettingChangeHelper.MIDI_OUTPUT_MODE_NETWORK;
+			} else {
+				output = SettingChangeHelper.MIDI_OUTPUT_MODE_INTERNAL_SYNTH;
+			}
+			// written in the background; the change comes back as a new snapshot
+			prefs.edit()
+					.putString(KEY_OUTPUT_MODE, Integer.toString(output))
+					.remove(KEY_LEGACY_OUTPUT)
+					.apply();
+		}
+		if (output == SettingChangeHelper.MIDI_OUTPUT_MODE_SYSTEM && !sSystemMidi) {
+			output = SettingChangeHelper.MIDI_OUTPUT_MODE_INTERNAL_SYNTH;
+		}
+		return output;
+	}
+
+	/**
+	 * Starts reading the settings on a background thread, if not done yet.
+	 */
+	public static void preload(Context context) {
+		if (sCurrent != null) {
+			return;
+		}
+		final Context app = context.getApplicationContext();
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				get(app);
+			}
+		}, "SettingsLoad").start();
+	}
+
+	/**
+	 * @return the current snapshot, read now if still missing
+	 */
+	public static Settings get(Context context) {
+		Settings settings = sCurrent;
+		if (settings != null) {
+			return settings;
+		}
+		synchronized (sLock) {
+			if (sCurrent == null) {
+				final Context app = context.getApplicationContext();
+				sSystemMidi = app.getPackageManager().hasSystemFeature(FEATURE_MIDI)
+						&& app.getSystemService(MIDI_SERVICE) != null;
+				final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(app);
+				sPrefsListener = new OnSharedPreferenceChangeListener() {
+					@Override
+					public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+						Settings changed = new Settings(app.getResources(), prefs);
+						sCurrent = changed;
+						Log.d("Settings", "changed " + key);
+						for (Listener listener : sListeners) {
+							listener.onSettingsChanged(changed);
+						}
+					}
+				};
+				prefs.registerOnSharedPreferenceChangeListener(sPrefsListener);
+				sCurrent = new Settings(app.getResources(), prefs);
+				StartupTrace.mark(StartupTrace.SETTINGS_LOADED);
+			}
+			return sCurrent;
+		}
+	}
+
+	public static void addListener(Listener listener) {
+		sListeners.addIfAbsent(listener);
+	}
+
+	public static void removeListener(Listener listener) {
+		sListeners.remove(listener);
+	}
+}
@@ -0,0 +1,66 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.Locale;
+
+/**
+ * The time of each cold start phase, since the process started. Only the
+ * first time each phase is reached counts, so later activities or engines
+ * do not hide the cold start. May be used from any thread.
+ */
+public class StartupTrace {
+	public static final String SETTINGS_LOADED = "settings loaded";
+	public static final String ACTIVITY_CREATE = "activity create";
+	public static final String ACTIVITY_CREATED = "activity created";
+	public static final String ACTIVITY_RESUMED = "activity resumed";
+	public static final String SERVICE_CREATE = "service create";
+	public static final String SERVICE_CONNECTED = "service connected";
+	public static final String ENGINE_CREATED = "engine created";
+	public static final String ENGINE_STARTED = "engine started";
+	public static final String ENGINE_READY = "engine ready";
+	public static final String STATE_RESTORED = "state restored";
+
+	private static final int MAX_PHASES = 16;
+	private static final String[] sPhases = new String[MAX_PHASES];
+	private static final long[] sMillis = new long[MAX_PHASES];
+	private static int sCount = 0;
+
+	private StartupTrace() {
+	}
+
+	public static synchronized void mark(String phase) {
+		for (int i = 0; i < sCount; ++i) {
+			if (sPhases[i].equals(phase)) {
+				return;
+			}
+		}
+		if (sCount == MAX_PHASES) {
+			return;
+		}
+		long millis = SystemClock.uptimeMillis() - Process.getStartUptimeMillis();
+		sPhases[sCount] = phase;
+		sMillis[sCount] = millis;
+		sCount++;
+		Log.d("StartupTrace", phase + " at " + millis + " ms");
+	}
+
+	/**
+	 * @return the phases reached, in order, with their times in milliseconds
+	 *         since the process started, and the time taken by each
+	 */
+	public static synchronized String report() {
+		StringBuilder sb = new StringBuilder("Startup (ms since the process started)\n");
+		long previous = 0;
+		for (int i = 0; i < sCount; ++i) {
+			sb.append(String.format(Locale.US, "%-18s %6d  +%d\n", sPhases[i], sMillis[i],
+					sMillis[i] - previous));
+			previous = sMillis[i];
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,78 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.AtomicFile;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Small files replaced as a whole: read in one go, written atomically on a
+ * background thread shared by all of them. When several versions of a
+ * file are written before the thread gets to it, only the latest one is.
+ */
+public class StateFiles {
+	private static final ConcurrentHashMap<File, byte[]> sPending = new ConcurrentHashMap<>();
+	private static Handler sWriter = null;
+
+	private StateFiles() {
+	}
+
+	/**
+	 * @return the contents, or null if the file does not exist or cannot be
+	 *         read
+	 */
+	public static byte[] read(Context context, String name) {
+		try {
+			return new AtomicFile(new File(context.getFilesDir(), name)).readFully();
+		} catch (FileNotFoundException ex) {
+			return null;
+		} catch (IOException ex) {
+			Log.e("StateFiles", "read " + name, ex);
+			return null;
+		}
+	}
+
+	public static void write(Context context, String name, byte[] data) {
+		final File file = new File(context.getFilesDir(), name);
+		synchronized (StateFiles.class) {
+			if (sWriter == null) {
+				HandlerThread thread = new HandlerThread("StateWriter");
+				thread.start();
+				sWriter = new Handler(thread.getLooper());
+			}
+		}
+		if (sPending.put(file, data) != null) {
+			// the write already posted takes this one
+			return;
+		}
+		sWriter.post(new Runnable() {
+			@Override
+			public void run() {
+				writeNow(new AtomicFile(file), sPending.remove(file));
+			}
+		});
+	}
+
+	private static void writeNow(AtomicFile file, byte[] data) {
+		FileOutputStream stream = null;
+		try {
+			stream = file.startWrite();
+			stream.write(data);
+			file.finishWrite(stream);
+		} catch (IOException ex) {
+			Log.e("StateFiles", "write", ex);
+			if (stream != null) {
+				file.failWrite(stream);
+			}
+		}
+	}
+}
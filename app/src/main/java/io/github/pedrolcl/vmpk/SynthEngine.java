@@ -3,82 +3,177 @@
 
 package io.github.pedrolcl.vmpk;
 
-import android.app.Activity;
-import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
-
+import android.content.Context;
+
+import java.util.Locale;
+
+/**
+ * The Sonivox EAS synthesizer, playing through OpenSL ES.
+ *
+ * stop() only pauses the audio stream: the EAS instance, the sound library
+ * and the OpenSL objects are kept, so start() resumes in a few
+ * milliseconds. They are released by {@link #release()}, which the engine
+ * service calls right after stop(), when it replaces or discards the engine
+ * or is destroyed; the service's own idle timeout and low memory handling
+ * take care of the engine left stopped. A new sound library setting
+ * reopens them on the next start().
+ *
+ * Messages may come from any thread: the keyboards, MIDI thru and the tilt
+ * sensors. Every use of the native synth holds the engine's lock, as
+ * release() may run meanwhile on another thread.
+ */
 public class SynthEngine implements MidiEngine {
-
 	private MIDISynth synth = null;
+	/** sound library the synth was opened with */
+	private int mOpenSoundLib;
+	private int mAppliedReverb = Integer.MIN_VALUE;
+	private int mAppliedChorus = Integer.MIN_VALUE;
+	// start() timings, in nanoseconds
+	private long mColdStarts = 0;
+	private long mColdNanos = 0;
+	private long mWarmStarts = 0;
+	private long mWarmNanos = 0;
+	private long mWarmMaxNanos = 0;
 	private int mReverb = MIDISynth.REVERB_HALL;
 	private int mChorus = -1;
 	private int mSoundLib = MIDISynth.SNDLIB_WT;
-
-	public SynthEngine(Activity activity) {
-		readSettings(activity);
+	private final long[] mRenderLatency = new long[LatencyMonitor.BUCKETS];
+	private final long[] mTotalLatency = new long[LatencyMonitor.BUCKETS];
+	// messages may come from the UI and from MIDI input threads
+	private final byte[] mMsg3 = new byte[3];
+	private final byte[] mMsg2 = new byte[2];
+
+	public SynthEngine(Context context) {
+		readSettings(context);
 	}
 
-	private void readSettings(Activity activity) {
-		try {
-			SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(activity);
-			String defaultReverb = activity.getResources().getString(R.string.default_reverb);
-			String defaultChorus = activity.getResources().getString(R.string.default_chorus);
-			String defaultSoundLib = "1";
-			mReverb = Integer.parseInt(sharedPrefs.getString("reverb", defaultReverb));
-			mChorus = Integer.parseInt(sharedPrefs.getString("chorus", defaultChorus));
-			mSoundLib = Integer.parseInt(sharedPrefs.getString("sound_engine", defaultSoundLib));
-		} catch (Exception ex) {
-			Log.e("SynthEngine", "Initialization", ex);
-		}
+	private void readSettings(Context context) {
+		Settings settings = Settings.get(context);
+		mReverb = settings.reverb;
+		mChorus = settings.chorus;
+		mSoundLib = settings.soundLib;
 	}
 
-	public void start(Activity activity) {
-		readSettings(activity);
+	public synchronized void start(Context context) {
+		readSettings(context);
+		if (synth != null && mOpenSoundLib != mSoundLib) {
+			Log.d("SynthEngine", "sound library changed");
+			close();
+		}
+		long begin = System.nanoTime();
+		boolean warm = synth != null;
+		TraceRing.begin(TraceRing.SYNTH_START, warm ? 1 : 0);
 		try {
 			if (synth == null) {
 				synth = new MIDISynth(mSoundLib);
+				mOpenSoundLib = mSoundLib;
 			}
 			synth.start();
 			// synth.initLibrary(mSoundLib); Do not use!
 			// apply settings: reverb type and chorus type
-			synth.initReverb(mReverb);
-			synth.initChorus(mChorus);
-			if (mReverb > -1) {
-				synth.reverbWet(25800);
+			if (mAppliedReverb != mReverb) {
+				synth.initReverb(mReverb);
+				if (mReverb > -1) {
+					synth.reverbWet(25800);
+				}
+				mAppliedReverb = mReverb;
 			}
-			if (mChorus > -1) {
-				synth.chorusLevel(0);
+			if (mAppliedChorus != mChorus) {
+				synth.initChorus(mChorus);
+				if (mChorus > -1) {
+					synth.chorusLevel(0);
+				}
+				mAppliedChorus = mChorus;
 			}
 		} catch (Exception ex) {
 			Log.e("SynthEngine", "Error:", ex);
+			return;
+		} finally {
+			TraceRing.end(TraceRing.SYNTH_START);
 		}
+		long nanos = System.nanoTime() - begin;
+		if (warm) {
+			mWarmStarts++;
+			mWarmNanos += nanos;
+			mWarmMaxNanos = Math.max(mWarmMaxNanos, nanos);
+		} else {
+			mColdStarts++;
+			mColdNanos += nanos;
+		}
+		Log.d("SynthEngine", (warm ? "resumed in " : "opened in ") + nanos / 1000 + " us");
 	}
 
-	public void stop() {
+	/**
+	 * Pauses the audio stream, silencing the voices first, and keeps
+	 * everything else for the next start().
+	 */
+	public synchronized void stop() {
 		if (synth != null) {
+			for (int ch = 0; ch < 16; ++ch) {
+				sendMidi(STATUS_CTLCHG | ch, CTL_ALL_SOUNDS_OFF, 0);
+			}
 			synth.stop();
-			synth.close();
-			synth = null;
 		}
 	}
 
-	protected void sendMidi(int m, int n, int v) {
+	/**
+	 * Frees the native synth if stopped; the next start() opens it again.
+	 */
+	@Override
+	public synchronized void release() {
+		if (synth != null && !synth.isRunning()) {
+			Log.d("SynthEngine", "release");
+			close();
+		}
+	}
+
+	private void close() {
+		synth.stop();
+		synth.close();
+		synth = null;
+		mAppliedReverb = Integer.MIN_VALUE;
+		mAppliedChorus = Integer.MIN_VALUE;
+	}
+
+	protected synchronized void sendMidi(int m, int n, int v) {
+		if (synth != null) {
+			mMsg3[0] = (byte) m;
+			mMsg3[1] = (byte) n;
+			mMsg3[2] = (byte) v;
+			synth.write(mMsg3, LatencyMonitor.currentOrigin());
+		}
+	}
+
+	protected synchronized void sendMidi(int m, int n) {
 		if (synth != null) {
-			byte msg[] = new byte[3];
-			msg[0] = (byte) m;
-			msg[1] = (byte) n;
-			msg[2] = (byte) v;
-			synth.write(msg);
+			mMsg2[0] = (byte) m;
+			mMsg2[1] = (byte) n;
+			synth.write(mMsg2, LatencyMonitor.currentOrigin());
 		}
 	}
 
-	protected void sendMidi(int m, int n) {
+	@Override
+	public synchronized void collectStats() {
 		if (synth != null) {
-			byte msg[] = new byte[2];
-			msg[0] = (byte) m;
-			msg[1] = (byte) n;
-			synth.write(msg);
+			synth.drainLatency(mRenderLatency, mTotalLatency);
+			LatencyMonitor.merge(LatencyMonitor.STAGE_RENDER, mRenderLatency);
+			LatencyMonitor.merge(LatencyMonitor.STAGE_TOTAL, mTotalLatency);
+		}
+	}
+
+	@Override
+	public synchronized String statsReport() {
+		if (mColdStarts == 0) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder("Synthesizer\n");
+		sb.append(String.format(Locale.US, "opened %d times, average %.1fms\n",
+				mColdStarts, mColdNanos / 1e6 / mColdStarts));
+		if (mWarmStarts > 0) {
+			sb.append(String.format(Locale.US, "resumed %d times, average %.2fms, max %.2fms\n",
+					mWarmStarts, mWarmNanos / 1e6 / mWarmStarts, mWarmMaxNanos / 1e6));
 		}
+		return sb.toString();
 	}
 
 	@Override
@@ -100,7 +195,7 @@ public class SynthEngine implements MidiEngine {
 	}
 
 	@Override
-	public void controller(int channel, int ctl, int num) {
+	public synchronized void controller(int channel, int ctl, int num) {
 		switch (ctl) {
 			case CTL_REVERB:
 				if (synth != null)
@@ -9,49 +9,148 @@ import static android.content.pm.PackageManager.FEATURE_MIDI;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.content.Context;
 import android.media.midi.MidiDevice;
 import android.media.midi.MidiDeviceInfo;
 import android.media.midi.MidiDeviceStatus;
 import android.media.midi.MidiInputPort;
 import android.media.midi.MidiManager;
+import android.media.midi.MidiOutputPort;
+import android.media.midi.MidiReceiver;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.Process;
+import android.preference.PreferenceManager;
+import android.util.SparseArray;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.SubMenu;
+import android.widget.Toast;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Locale;
 import java.util.Objects;
-import java.util.Queue;
-
-public class SystemMidiEngine implements MidiEngine, MidiManager.OnDeviceOpenedListener {
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sends MIDI to the system MIDI ports.
+ *
+ * Several destination ports may be selected at once. Every message is
+ * fanned out to all of them, each one having its own lock-free
+ * {@link MidiRing} and writer thread, so a slow or disconnected port never
+ * delays the others. Hot-plug callbacks run on a separate control thread,
+ * and only menu updates and dialogs go back to the UI thread.
+ *
+ * One device output port may be opened as MIDI input. Its data is parsed on
+ * the receiving thread without allocating, and delivered to the
+ * {@link MidiEngine.InputListener}.
+ *
+ * The chosen ports are remembered by {@link MidiPortMemory}, and reopened in
+ * the background as soon as the system reports them again, after a
+ * disconnection or an app restart.
+ *
+ * Devices are described once, on the control thread, when first reported.
+ * Hot-plug callbacks then add or remove just that device's menu items, so
+ * many virtual devices do not make the menus rebuild or the device
+ * properties be read again.
+ *
+ * Since Android 13, devices using Universal MIDI Packets are listed too.
+ * Those negotiating MIDI 2.0 get 64 bit channel voice messages, keeping the
+ * 16 bit velocities and 32 bit controller, pressure and bender values given
+ * to the high resolution methods.
+ */
+public class SystemMidiEngine implements MidiEngine {
     private static final String TAG = "SystemMidiEngine";
 
+    // for all the ports together; each port keeps its own for statsReport()
+    private static final Metrics.Counter SENT = Metrics.counter("midi out sent");
+    private static final Metrics.Counter DROPPED = Metrics.counter("midi out dropped");
+    private static final Metrics.Counter QUEUED = Metrics.counter("midi out queued opening");
+    private static final Metrics.Counter COALESCED = Metrics.counter("midi out coalesced opening");
+    private static final Metrics.Counter DROPPED_NOTES = Metrics.counter("midi out dropped notes opening");
+    private static final Metrics.Counter OVERFLOWS = Metrics.counter("midi out overflows opening");
+    private static final Metrics.Counter ERRORS = Metrics.counter("midi out errors");
+    private static final Metrics.Gauge PORTS = Metrics.gauge("midi out ports");
+    private static final Metrics.Histogram DRAIN_NANOS = Metrics.histogram("midi out drain ns");
+
+    private final Context mContext;
+    /** shows the dialogs; owned by the UI thread, null when not visible */
     private Activity mActivity;
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper());
 
     private ConnectionListener mConnectionListener;
 
     private MidiManager mMidiManager;
 
     private final MidiDeviceCallback mMidiDeviceCallback = new MidiDeviceCallback();
+    private final MidiDeviceCallback mUmpDeviceCallback = new MidiDeviceCallback();
 
     private static final int PORT_MENU_GROUP_ID = 1;
+    private static final int INPUT_MENU_GROUP_ID = 2;
+    private static final int QUEUE_SIZE = 1024;
+    private static final int PENDING_SIZE = 256;
 
     private SubMenu mMidiPortsSubMenu;
     private MenuItem mMidiPortsDisconnectMenuItem;
 
-    private HashMap<MenuItem, MidiInputPortInfo> mMenuItemToMidiPortMap = new HashMap<>();
+    private SubMenu mMidiInputsSubMenu;
+    private MenuItem mMidiInputsDisconnectMenuItem;
+
+    // owned by the UI thread
+    /** devices shown in the menus, by device id */
+    private final SparseArray<DeviceEntry> mMenuDevices = new SparseArray<>();
+    /** ports of both menus, by menu item id */
+    private final SparseArray<MidiPortInfo> mMenuPorts = new SparseArray<>();
+    private int mNextItemId = 2;
+
+    /** devices known to the control thread, by device id */
+    private final SparseArray<DeviceEntry> mDevices = new SparseArray<>();
 
-    private class MidiInputPortInfo {
+    /**
+     * A device port: an input port when used as output, and vice versa.
+     */
+    private class MidiPortInfo {
         private MidiDeviceInfo mDeviceInfo;
         private int mPortNumber;
+        private String mDisplayName;
+        private final String mIdentity;
+        private final int mMode;
+        private final int mType;
 
-        public MidiInputPortInfo(MidiDeviceInfo mDeviceInfo, int mPortNumber) {
+        public MidiPortInfo(MidiDeviceInfo mDeviceInfo, MidiDeviceInfo.PortInfo portInfo) {
             this.mDeviceInfo = mDeviceInfo;
-            this.mPortNumber = mPortNumber;
+            this.mPortNumber = portInfo.getPortNumber();
+            this.mType = portInfo.getType();
+            this.mMode = umpMode(mDeviceInfo);
+            this.mDisplayName = portDisplayName(mDeviceInfo, portInfo, mMode);
+            this.mIdentity = MidiPortMemory.identity(mDeviceInfo, portInfo.getType(), mPortNumber);
+        }
+
+        /**
+         * @return true for a device input port, used as output
+         */
+        public boolean isOutput() {
+            return mType == MidiDeviceInfo.PortInfo.TYPE_INPUT;
+        }
+
+        /**
+         * @return one of the UmpEncoder modes
+         */
+        public int getMode() {
+            return mMode;
+        }
+
+        public String getIdentity() {
+            return mIdentity;
         }
 
         public MidiDeviceInfo getDeviceInfo() {
@@ -70,10 +169,18 @@ public class SystemMidiEngine implements MidiEngine, MidiManager.OnDeviceOpenedL
             this.mPortNumber = mPortNumber;
         }
 
+        public String getDisplayName() {
+            return mDisplayName;
+        }
+
+        public void setDisplayName(String mDisplayName) {
+            this.mDisplayName = mDisplayName;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (o == null || getClass() != o.getClass()) return false;
-            MidiInputPortInfo that = (MidiInputPortInfo) o;
+            MidiPortInfo that = (MidiPortInfo) o;
             return mPortNumber == that.mPortNumber && Objects.equals(mDeviceInfo, that.mDeviceInfo);
         }
 
@@ -83,33 +190,473 @@ public class SystemMidiEngine implements MidiEngine, MidiManager.OnDeviceOpenedL
         }
     }
 
-    private MidiInputPortInfo mUseMidiPortInfo;
+    /**
+     * A device and its usable ports, described once when first reported.
+     */
+    private class DeviceEntry {
+        private final MidiDeviceInfo mDeviceInfo;
+        private final MidiPortInfo[] mPorts;
+        /** owned by the UI thread, null when not in the menus */
+        private MenuItem[] mItems;
+
+        /**
+         * Runs on the control thread.
+         */
+        DeviceEntry(MidiDeviceInfo deviceInfo) {
+            mDeviceInfo = deviceInfo;
+            // the input parser only understands MIDI 1.0 byte streams
+            boolean bytes = umpMode(deviceInfo) == UmpEncoder.MODE_BYTES;
+            ArrayList<MidiPortInfo> ports = new ArrayList<>();
+            for (MidiDeviceInfo.PortInfo portInfo : deviceInfo.getPorts()) {
+                if (bytes || portInfo.getType() == MidiDeviceInfo.PortInfo.TYPE_INPUT) {
+                    ports.add(new MidiPortInfo(deviceInfo, portInfo));
+                }
+            }
+            mPorts = ports.toArray(new MidiPortInfo[0]);
+        }
+    }
 
-    private MidiDevice mMidiDevice;
-    private MidiInputPort mMidiInputPort;
+    /**
+     * One destination port, with its own queue and writer thread.
+     */
+    private class OutputPort implements MidiManager.OnDeviceOpenedListener {
+        private final MidiPortInfo mInfo;
+        private final HandlerThread mThread;
+        private final Handler mHandler;
+        private final MidiRing mQueue = new MidiRing(QUEUE_SIZE);
+        private final AtomicBoolean mDrainPosted = new AtomicBoolean(false);
+        private final AtomicInteger mBatched = new AtomicInteger(0);
+        private final Runnable mDrainTask = this::drain;
+        private volatile boolean mClosed = false;
+
+        // owned by the writer thread
+        private MidiDevice mDevice;
+        private MidiInputPort mPort;
+        private boolean mOpening = false;
+        private final PendingMidiQueue mPending = new PendingMidiQueue(PENDING_SIZE);
+        private final long[] mReplay = new long[PENDING_SIZE];
+        private final byte[] mTxBuffer = new byte[QUEUE_SIZE];
+        private final UmpEncoder mEncoder;
+
+        // statistics, readable from any thread
+        private volatile long mPostNanos = 0;
+        private long mOpenNanos = 0;
+        private volatile long mOpenMillis = -1;
+        private final AtomicLong mSent = new AtomicLong(0);
+        private final AtomicLong mDropped = new AtomicLong(0);
+        private final AtomicLong mErrors = new AtomicLong(0);
+        // what the pending queue did while opening
+        private final AtomicLong mQueued = new AtomicLong(0);
+        private final AtomicLong mCoalesced = new AtomicLong(0);
+        private final AtomicLong mDroppedNotes = new AtomicLong(0);
+        private final AtomicLong mOverflows = new AtomicLong(0);
+        // pending queue counts already added to the above; writer thread only
+        private long mCountedQueued = 0;
+        private long mCountedCoalesced = 0;
+        private long mCountedDroppedNotes = 0;
+        private long mCountedOverflows = 0;
+        /** time from queuing a message to having written it, in LatencyMonitor buckets */
+        private final AtomicLongArray mLatency = new AtomicLongArray(LatencyMonitor.BUCKETS);
+
+        OutputPort(MidiPortInfo info) {
+            mInfo = info;
+            mEncoder = new UmpEncoder(info.getMode());
+            mThread = new HandlerThread("MidiOut " + info.getPortNumber(), Process.THREAD_PRIORITY_AUDIO);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+        }
 
-    private boolean mMidiDevicePending = false;
-    private Queue<byte[]> mMidiDataQueue = new ArrayDeque<>();
+        /**
+         * May be called from any thread.
+         */
+        void send(long message) {
+            if (!mQueue.offer(message)) {
+                mDropped.incrementAndGet();
+                DROPPED.increment();
+                return;
+            }
+            // long batches are written in parts, so that the queue never fills
+            if (mBatchDepth.get() == 0 || mBatched.incrementAndGet() % (QUEUE_SIZE / 2) == 0) {
+                flush();
+            }
+        }
 
-    private SystemMidiEngine(Activity activity, ConnectionListener connectionListener, MidiManager midiManager) {
-        mActivity = activity;
+        /**
+         * Makes the writer thread send what is queued. May be called from
+         * any thread.
+         */
+        void flush() {
+            if (!mDrainPosted.getAndSet(true)) {
+                mPostNanos = System.nanoTime();
+                mHandler.post(mDrainTask);
+            }
+        }
+
+        void open() {
+            mHandler.post(() -> {
+                mOpenNanos = System.nanoTime();
+                try {
+                    mMidiManager.openDevice(mInfo.getDeviceInfo(), this, mHandler);
+                } catch (IllegalArgumentException e) {
+                    portFailed(this, R.string.dialog_midi_device_error_title,
+                            R.string.dialog_midi_device_error_message);
+                    return;
+                }
+                mOpening = true;
+            });
+        }
+
+        /**
+         * Pending messages are written before the device is closed.
+         */
+        void close() {
+            mClosed = true;
+            mHandler.post(this::closeDevice);
+            mThread.quitSafely();
+        }
+
+        @Override
+        public void onDeviceOpened(MidiDevice midiDevice) {
+            if (midiDevice == null) {
+                mOpening = false;
+                portFailed(this, R.string.dialog_midi_device_error_title,
+                        R.string.dialog_midi_device_error_message);
+                return;
+            }
+            if (mClosed || !mOpening) {
+                try {
+                    midiDevice.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error when closing MidiDevice", e);
+                }
+                return;
+            }
+            mOpening = false;
+            mDevice = midiDevice;
+            mPort = midiDevice.openInputPort(mInfo.getPortNumber());
+            if (mPort == null) {
+                Log.e(TAG, "Failed to open MIDI port");
+                closeDevice();
+                portFailed(this, R.string.dialog_midi_port_error_title, R.string.dialog_midi_port_error_message);
+                return;
+            }
+            mOpenMillis = (System.nanoTime() - mOpenNanos) / 1000000;
+            Log.d(TAG, "opened " + mInfo.getDisplayName() + " in " + mOpenMillis + " ms");
+
+            // for this open only
+            long coalesced = mPending.coalescedCount() - mCountedCoalesced;
+            long droppedNotes = mPending.droppedNoteCount() - mCountedDroppedNotes;
+            countPending();
+            if (!mPending.isEmpty()) {
+                int count = mPending.drainTo(mReplay);
+                int length = 0;
+                for (int i = 0; i < count; ++i) {
+                    length = putMessage(mReplay[i], length);
+                }
+                if (length > 0) {
+                    write(length);
+                }
+                mSent.addAndGet(count);
+                SENT.add(count);
+                TraceRing.event(TraceRing.QUEUE_REPLAY, count, coalesced, droppedNotes);
+            }
+            drain();
+        }
+
+        private void closeDevice() {
+            if (mPort != null) {
+                MidiInputPort midiInputPort = mPort;
+                mPort = null;
+                try {
+                    midiInputPort.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error when closing MidiInputPort", e);
+                }
+            }
+
+            if (mDevice != null) {
+                MidiDevice midiDevice = mDevice;
+                mDevice = null;
+                try {
+                    midiDevice.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error when closing MidiDevice", e);
+                }
+            }
+
+            mOpening = false;
+            countPending();
+            int discarded = mPending.size();
+            if (discarded > 0) {
+                mDropped.addAndGet(discarded);
+                DROPPED.add(discarded);
+            }
+            mPending.clear();
+            mEncoder.reset();
+        }
+
+        /**
+         * Adds what the pending queue has queued, coalesced and dropped since
+         * last called to the port stats and the metrics.
+         */
+        private void countPending() {
+            long queued = mPending.queuedCount() - mCountedQueued;
+            long coalesced = mPending.coalescedCount() - mCountedCoalesced;
+            long droppedNotes = mPending.droppedNoteCount() - mCountedDroppedNotes;
+            long overflows = mPending.overflowCount() - mCountedOverflows;
+            mCountedQueued += queued;
+            mCountedCoalesced += coalesced;
+            mCountedDroppedNotes += droppedNotes;
+            mCountedOverflows += overflows;
+            mQueued.addAndGet(queued);
+            mCoalesced.addAndGet(coalesced);
+            mDroppedNotes.addAndGet(droppedNotes);
+            mOverflows.addAndGet(overflows);
+            COALESCED.add(coalesced);
+            DROPPED_NOTES.add(droppedNotes);
+            OVERFLOWS.add(overflows);
+        }
+
+        private void write(int length) {
+            try {
+                mPort.send(mTxBuffer, 0, length);
+            } catch (IOException e) {
+                mErrors.incrementAndGet();
+                ERRORS.increment();
+                Log.e(TAG, "Error sending to MidiInputPort", e);
+            }
+        }
+
+        /**
+         * Appends a message to mTxBuffer, as bytes or packets depending on
+         * the device, writing the buffer first if full.
+         *
+         * @return the new buffer length
+         */
+        private int putMessage(long message, int length) {
+            if (length + mEncoder.size(message) > mTxBuffer.length) {
+                write(length);
+                length = 0;
+            }
+            return mEncoder.encode(message, mTxBuffer, length);
+        }
+
+        /**
+         * Sends everything queued, packing as many messages as fit in the
+         * buffer into each write. While the device is opening, messages go
+         * to the coalescing pending queue instead; once it has failed or been
+         * closed, they are counted as dropped.
+         */
+        private void drain() {
+            long posted = mPostNanos;
+            mDrainPosted.set(false);
+            int length = 0;
+            int count = 0;
+            int dropped = 0;
+            long message;
+            while ((message = mQueue.poll()) != MidiRing.EMPTY) {
+                if (mPort != null) {
+                    length = putMessage(message, length);
+                    count++;
+                } else if (mOpening) {
+                    mPending.add(message);
+                    QUEUED.increment();
+                } else {
+                    // failed or closed
+                    dropped++;
+                }
+            }
+            if (dropped > 0) {
+                mDropped.addAndGet(dropped);
+                DROPPED.add(dropped);
+            }
+            if (length > 0) {
+                write(length);
+                TraceRing.event(TraceRing.PORT_WRITE, length, count, 0);
+            }
+            if (count > 0) {
+                long nanos = System.nanoTime() - posted;
+                mSent.addAndGet(count);
+                mLatency.incrementAndGet(LatencyMonitor.bucketOf(nanos));
+                SENT.add(count);
+                DRAIN_NANOS.record(nanos);
+            }
+        }
+
+        void appendStats(StringBuilder sb) {
+            sb.append(String.format(Locale.US, "\n[%s]\n  open=%dms sent=%d dropped=%d errors=%d p50<%dus p99<%dus\n",
+                    mInfo.getDisplayName(), mOpenMillis, mSent.get(), mDropped.get(), mErrors.get(),
+                    LatencyMonitor.percentile(mLatency, .5), LatencyMonitor.percentile(mLatency, .99)));
+            sb.append(String.format(Locale.US, "  opening: queued=%d coalesced=%d dropped notes=%d overflows=%d\n",
+                    mQueued.get(), mCoalesced.get(), mDroppedNotes.get(), mOverflows.get()));
+        }
+    }
+
+    /**
+     * The device output port used as MIDI input. Opened on the control
+     * thread; data arrives on the port's own receiving thread.
+     */
+    private class InputSource extends MidiReceiver implements MidiManager.OnDeviceOpenedListener {
+        private final MidiPortInfo mInfo;
+        private final MidiStreamParser mParser;
+        private volatile boolean mClosed = false;
+
+        // owned by the control thread
+        private MidiDevice mDevice;
+        private MidiOutputPort mPort;
+
+        InputSource(MidiPortInfo info) {
+            mInfo = info;
+            mParser = new MidiStreamParser(new MidiEngine.InputListener() {
+                @Override
+                public void onMidiMessage(int status, int data1, int data2) {
+                    MidiEngine.InputListener listener = mInputListener;
+                    if (listener != null) {
+                        listener.onMidiMessage(status, data1, data2);
+                    }
+                }
+            });
+        }
+
+        void open() {
+            try {
+                mMidiManager.openDevice(mInfo.getDeviceInfo(), this, mIoHandler);
+            } catch (IllegalArgumentException e) {
+                inputFailed(this, R.string.dialog_midi_device_error_message);
+            }
+        }
+
+        @Override
+        public void onDeviceOpened(MidiDevice midiDevice) {
+            if (midiDevice == null) {
+                inputFailed(this, R.string.dialog_midi_device_error_message);
+                return;
+            }
+            mDevice = midiDevice;
+            if (mClosed) {
+                close();
+                return;
+            }
+            mPort = midiDevice.openOutputPort(mInfo.getPortNumber());
+            if (mPort == null) {
+                Log.e(TAG, "Failed to open MIDI output port");
+                inputFailed(this, R.string.dialog_midi_input_error_message);
+                return;
+            }
+            mPort.connect(this);
+        }
+
+        @Override
+        public void onSend(byte[] msg, int offset, int count, long timestamp) {
+            mParser.parse(msg, offset, count);
+        }
+
+        /**
+         * Runs on the control thread.
+         */
+        void close() {
+            mClosed = true;
+            if (mPort != null) {
+                MidiOutputPort midiOutputPort = mPort;
+                mPort = null;
+                midiOutputPort.disconnect(this);
+                try {
+                    midiOutputPort.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error when closing MidiOutputPort", e);
+                }
+            }
+            if (mDevice != null) {
+                MidiDevice midiDevice = mDevice;
+                mDevice = null;
+                try {
+                    midiDevice.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error when closing MidiDevice", e);
+                }
+            }
+        }
+    }
+
+    /** the chosen ports, even when not plugged in */
+    private final MidiPortMemory mMemory;
+
+    private volatile MidiEngine.InputListener mInputListener = null;
+    /** owned by the control thread */
+    private InputSource mInput = null;
+
+    /** open ports, replaced as a whole on changes */
+    private volatile OutputPort[] mOutputs = new OutputPort[0];
+
+    /**
+     * The control thread lives as long as the engine, so that everything
+     * done on it between start and stop stays in order.
+     */
+    private final HandlerThread mIoThread;
+    private final Handler mIoHandler;
+    private volatile boolean mStarted = false;
+    /** while positive, queued messages wait for the end of the batch */
+    private final AtomicInteger mBatchDepth = new AtomicInteger(0);
+
+    private SystemMidiEngine(Context context, ConnectionListener connectionListener, MidiManager midiManager) {
+        mContext = context;
         mConnectionListener = connectionListener;
         mMidiManager = midiManager;
+        mMemory = new MidiPortMemory(PreferenceManager.getDefaultSharedPreferences(context));
+        mIoThread = new HandlerThread("SystemMidiIO", Process.THREAD_PRIORITY_AUDIO);
+        mIoThread.start();
+        mIoHandler = new Handler(mIoThread.getLooper());
     }
 
-    public static SystemMidiEngine create(Activity activity, ConnectionListener connectionListener) {
-        if (!activity.getPackageManager().hasSystemFeature(FEATURE_MIDI)) {
+    public static SystemMidiEngine create(Context context, ConnectionListener connectionListener) {
+        if (!context.getPackageManager().hasSystemFeature(FEATURE_MIDI)) {
             Log.e(TAG, "System does not support MIDI feature.");
             return null;
         }
 
-        MidiManager midiManager = (MidiManager) activity.getSystemService(MIDI_SERVICE);
+        MidiManager midiManager = (MidiManager) context.getSystemService(MIDI_SERVICE);
         if (midiManager == null) {
             Log.e(TAG, "MidiManager is null");
             return null;
         }
 
-        return new SystemMidiEngine(activity, connectionListener, midiManager);
+        return new SystemMidiEngine(context, connectionListener, midiManager);
+    }
+
+    /**
+     * The menus belong to the activity: a new one gets them built again by
+     * configureOptionsMenu.
+     */
+    @Override
+    public void attach(Activity activity) {
+        if (activity != mActivity) {
+            mMidiPortsSubMenu = null;
+            mMidiInputsSubMenu = null;
+            mMidiPortsDisconnectMenuItem = null;
+            mMidiInputsDisconnectMenuItem = null;
+            for (int i = 0; i < mMenuDevices.size(); ++i) {
+                mMenuDevices.valueAt(i).mItems = null;
+            }
+            mMenuPorts.clear();
+        }
+        mActivity = activity;
+    }
+
+    /**
+     * Runs on the UI thread: a dialog on the activity, or a toast if the
+     * user is elsewhere.
+     */
+    private void showError(int title, int message) {
+        if (mActivity == null) {
+            Toast.makeText(mContext, message, Toast.LENGTH_LONG).show();
+            return;
+        }
+        new AlertDialog.Builder(mActivity)
+                .setTitle(title)
+                .setMessage(message)
+                .setPositiveButton(android.R.string.ok, null)
+                .create()
+                .show();
     }
 
     @Override
@@ -117,42 +664,94 @@ public class SystemMidiEngine implements MidiEngine, MidiManager.OnDeviceOpenedL
         mMidiPortsSubMenu = menu.addSubMenu(Menu.NONE, Menu.NONE, 90, R.string.action_midi_port);
         mMidiPortsSubMenu.getItem().setShowAsAction(MenuItem.SHOW_AS_ACTION_IF_ROOM);
 
+        mMidiInputsSubMenu = menu.addSubMenu(Menu.NONE, Menu.NONE, 91, R.string.action_midi_input);
+        mMidiInputsSubMenu.getItem().setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER);
+
         populateMidiPortList();
     }
 
+    /**
+     * Adds the items of all known devices to newly created menus.
+     */
     private void populateMidiPortList() {
         if (mMidiPortsSubMenu == null) {
             return;
         }
-        mMidiPortsSubMenu.clear();
-        mMenuItemToMidiPortMap.clear();
+        mMenuPorts.clear();
 
         mMidiPortsDisconnectMenuItem = mMidiPortsSubMenu.add(PORT_MENU_GROUP_ID, 1, Menu.NONE, R.string.action_midi_port_disconnected);
         mMidiPortsDisconnectMenuItem.setCheckable(true);
-        if (mUseMidiPortInfo == null) {
-            mMidiPortsDisconnectMenuItem.setChecked(true);
+        mMidiInputsDisconnectMenuItem = mMidiInputsSubMenu.add(INPUT_MENU_GROUP_ID, 1, Menu.NONE, R.string.action_midi_port_disconnected);
+        mMidiInputsDisconnectMenuItem.setCheckable(true);
+
+        for (int i = 0; i < mMenuDevices.size(); ++i) {
+            addMenuItems(mMenuDevices.valueAt(i));
         }
+        updatePortChecks();
+    }
 
-        for (MidiDeviceInfo device : mMidiManager.getDevices()) {
-            addMidiDeviceToPortList(device);
+    /**
+     * Runs on the UI thread.
+     */
+    private void addMidiDeviceToPortList(DeviceEntry entry) {
+        mMenuDevices.put(entry.mDeviceInfo.getId(), entry);
+        if (mMidiPortsSubMenu != null) {
+            addMenuItems(entry);
         }
+    }
 
-        mMidiPortsSubMenu.setGroupCheckable(PORT_MENU_GROUP_ID, true, true);
+    private void addMenuItems(DeviceEntry entry) {
+        entry.mItems = new MenuItem[entry.mPorts.length];
+        for (int i = 0; i < entry.mPorts.length; ++i) {
+            MidiPortInfo port = entry.mPorts[i];
+            int id = mNextItemId++;
+            MenuItem item;
+            if (port.isOutput()) {
+                item = mMidiPortsSubMenu.add(PORT_MENU_GROUP_ID, id, Menu.NONE, port.getDisplayName());
+                item.setCheckable(true);
+                item.setChecked(mMemory.isOutput(port.getIdentity()));
+            } else {
+                item = mMidiInputsSubMenu.add(INPUT_MENU_GROUP_ID, id, Menu.NONE, port.getDisplayName());
+                item.setCheckable(true);
+                item.setChecked(port.getIdentity().equals(mMemory.getInput()));
+            }
+            mMenuPorts.put(id, port);
+            entry.mItems[i] = item;
+        }
+        mMidiPortsSubMenu.setGroupCheckable(PORT_MENU_GROUP_ID, true, false);
+        mMidiInputsSubMenu.setGroupCheckable(INPUT_MENU_GROUP_ID, true, true);
     }
 
-    private void addMidiDeviceToPortList(MidiDeviceInfo deviceInfo) {
-        if (deviceInfo.getInputPortCount() < 1) {
-            return;
+    /**
+     * Devices using the UMP transport report the protocol they negotiated.
+     * MIDI-CI negotiation is not done here, so those leaving it to the host
+     * get MIDI 1.0 packets.
+     */
+    private static int umpMode(MidiDeviceInfo deviceInfo) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.TIRAMISU) {
+            return UmpEncoder.MODE_BYTES;
+        }
+        switch (deviceInfo.getDefaultProtocol()) {
+            case MidiDeviceInfo.PROTOCOL_UNKNOWN:
+                return UmpEncoder.MODE_BYTES;
+            case MidiDeviceInfo.PROTOCOL_UMP_MIDI_2_0:
+            case MidiDeviceInfo.PROTOCOL_UMP_MIDI_2_0_AND_JRTS:
+                return UmpEncoder.MODE_MIDI2;
+            default:
+                return UmpEncoder.MODE_MIDI1;
         }
+    }
 
-        for (MidiDeviceInfo.PortInfo port : deviceInfo.getPorts()) {
-            if (port.getType() == MidiDeviceInfo.PortInfo.TYPE_INPUT) {
-                addMidiDevicePortToPortList(deviceInfo, port);
-            }
+    private Collection<MidiDeviceInfo> getDevices() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.TIRAMISU) {
+            return Arrays.asList(mMidiManager.getDevices());
         }
+        Collection<MidiDeviceInfo> devices = new ArrayList<>(Arrays.asList(mMidiManager.getDevices()));
+        devices.addAll(mMidiManager.getDevicesForTransport(MidiManager.TRANSPORT_UNIVERSAL_MIDI_PACKETS));
+        return devices;
     }
 
-    private void addMidiDevicePortToPortList(MidiDeviceInfo deviceInfo, MidiDeviceInfo.PortInfo portInfo) {
+    private static String portDisplayName(MidiDeviceInfo deviceInfo, MidiDeviceInfo.PortInfo portInfo, int mode) {
         Bundle bundle = deviceInfo.getProperties();
         StringBuilder sb = new StringBuilder();
         String name = bundle.getString(MidiDeviceInfo.PROPERTY_NAME);
@@ -176,174 +775,407 @@ public class SystemMidiEngine implements MidiEngine, MidiManager.OnDeviceOpenedL
             sb.append(portInfo.getName());
         }
         sb.append(']');
-        String displayText = sb.toString();
-
-        MenuItem newItem = mMidiPortsSubMenu.add(PORT_MENU_GROUP_ID, mMenuItemToMidiPortMap.size() + 2, Menu.NONE, displayText);
-        MidiInputPortInfo port = new MidiInputPortInfo(deviceInfo, portInfo.getPortNumber());
-        mMenuItemToMidiPortMap.put(newItem, port);
+        if (mode == UmpEncoder.MODE_MIDI2) {
+            sb.append(" MIDI 2.0");
+        } else if (mode == UmpEncoder.MODE_MIDI1) {
+            sb.append(" UMP");
+        }
+        return sb.toString();
+    }
 
-        newItem.setCheckable(true);
-        if (port.equals(mUseMidiPortInfo)) {
-            newItem.setChecked(true);
+    /**
+     * Runs on the UI thread.
+     */
+    private void removeMidiDeviceFromPortList(int deviceId) {
+        DeviceEntry entry = mMenuDevices.get(deviceId);
+        if (entry == null) {
+            return;
+        }
+        mMenuDevices.remove(deviceId);
+        if (entry.mItems != null) {
+            for (int i = 0; i < entry.mPorts.length; ++i) {
+                int id = entry.mItems[i].getItemId();
+                if (entry.mPorts[i].isOutput()) {
+                    mMidiPortsSubMenu.removeItem(id);
+                } else {
+                    mMidiInputsSubMenu.removeItem(id);
+                }
+                mMenuPorts.remove(id);
+            }
+            entry.mItems = null;
         }
     }
 
-    private void removeMidiDeviceFromPortList(MidiDeviceInfo deviceInfo) {
-        mMenuItemToMidiPortMap.entrySet().removeIf(entry -> {
-            if (entry.getValue().getDeviceInfo().equals(deviceInfo)) {
-                mMidiPortsSubMenu.removeItem(entry.getKey().getItemId());
-                return true;
+    private void updatePortChecks() {
+        String input = mMemory.getInput();
+        for (int i = 0; i < mMenuDevices.size(); ++i) {
+            DeviceEntry entry = mMenuDevices.valueAt(i);
+            if (entry.mItems == null) {
+                continue;
             }
-            return false;
-        });
+            for (int j = 0; j < entry.mPorts.length; ++j) {
+                MidiPortInfo port = entry.mPorts[j];
+                entry.mItems[j].setChecked(port.isOutput() ? mMemory.isOutput(port.getIdentity())
+                        : port.getIdentity().equals(input));
+            }
+        }
+        if (mMidiPortsDisconnectMenuItem != null) {
+            mMidiPortsDisconnectMenuItem.setChecked(!mMemory.hasOutputs());
+        }
+        if (mMidiInputsDisconnectMenuItem != null) {
+            mMidiInputsDisconnectMenuItem.setChecked(input == null);
+        }
     }
 
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         if (item == mMidiPortsDisconnectMenuItem) {
-            item.setChecked(true);
-            closeMidiPort();
-            mUseMidiPortInfo = null;
+            mMemory.clearOutputs();
+            mIoHandler.post(this::closeOutputs);
+            updatePortChecks();
             return true;
         }
 
-        MidiInputPortInfo port = mMenuItemToMidiPortMap.getOrDefault(item, null);
-        if (port != null) {
-            mMidiPortsDisconnectMenuItem.setChecked(true);
-            closeMidiPort();
-            mUseMidiPortInfo = port;
-            openMidiPort();
-            item.setChecked(true);
-            if (mConnectionListener != null) {
-                mConnectionListener.onMidiConnected();
+        MidiPortInfo port = findMenuPort(item);
+        if (port != null && port.isOutput()) {
+            if (mMemory.isOutput(port.getIdentity())) {
+                mMemory.removeOutput(port.getIdentity());
+                mIoHandler.post(() -> {
+                    OutputPort output = findOutput(port.getIdentity());
+                    if (output != null) {
+                        removeOutput(output);
+                        output.close();
+                    }
+                });
+            } else {
+                mMemory.addOutput(port.getIdentity());
+                mIoHandler.post(() -> {
+                    if (connectOutput(port)) {
+                        notifyConnected();
+                    }
+                });
             }
+            updatePortChecks();
+            return true;
+        }
+
+        if (item == mMidiInputsDisconnectMenuItem) {
+            mMemory.setInput(null);
+            mIoHandler.post(this::closeInput);
+            updatePortChecks();
+            return true;
+        }
+
+        if (port != null) {
+            mMemory.setInput(port.getIdentity());
+            mIoHandler.post(() -> openInput(port));
+            updatePortChecks();
             return true;
         }
         return false;
     }
 
-    @Override
-    public void start(Activity activity) {
-        populateMidiPortList();
-        mMidiManager.registerDeviceCallback(mMidiDeviceCallback, new Handler(Looper.getMainLooper()));
+    /**
+     * @return the port of one of our items, told from the activity's own
+     *         items which may reuse their ids, or null
+     */
+    private MidiPortInfo findMenuPort(MenuItem item) {
+        MidiPortInfo port = mMenuPorts.get(item.getItemId());
+        if (port == null) {
+            return null;
+        }
+        DeviceEntry entry = mMenuDevices.get(port.getDeviceInfo().getId());
+        if (entry == null || entry.mItems == null) {
+            return null;
+        }
+        for (int i = 0; i < entry.mPorts.length; ++i) {
+            if (entry.mPorts[i] == port) {
+                return entry.mItems[i] == item ? port : null;
+            }
+        }
+        return null;
+    }
 
-        openMidiPort();
+    /**
+     * Runs on the control thread: describes a newly reported device and
+     * adds it to the menus.
+     *
+     * @return null if already known
+     */
+    private DeviceEntry deviceAdded(MidiDeviceInfo device) {
+        if (mDevices.get(device.getId()) != null) {
+            return null;
+        }
+        DeviceEntry entry = new DeviceEntry(device);
+        mDevices.put(device.getId(), entry);
+        mUiHandler.post(() -> addMidiDeviceToPortList(entry));
+        return entry;
     }
 
-    private void openMidiPort() {
-        if (mUseMidiPortInfo != null) {
-            try {
-                mMidiManager.openDevice(mUseMidiPortInfo.getDeviceInfo(), this, new Handler(Looper.getMainLooper()));
-            } catch (IllegalArgumentException e) {
-                mUseMidiPortInfo = null;
-                if (mMidiPortsDisconnectMenuItem != null) {
-                    mMidiPortsDisconnectMenuItem.setChecked(true);
-                }
+    /**
+     * Runs on the control thread.
+     *
+     * @return false if it was not known
+     */
+    private boolean deviceRemoved(MidiDeviceInfo device) {
+        int id = device.getId();
+        if (mDevices.get(id) == null) {
+            return false;
+        }
+        mDevices.remove(id);
+        mUiHandler.post(() -> removeMidiDeviceFromPortList(id));
+        return true;
+    }
 
-                new AlertDialog.Builder(mActivity)
-                        .setTitle(R.string.dialog_midi_device_error_title)
-                        .setMessage(R.string.dialog_midi_device_error_message)
-                        .setPositiveButton(android.R.string.ok, null)
-                        .create()
-                        .show();
-                return;
+    /**
+     * Runs on the control thread: catches up with the devices plugged or
+     * unplugged while stopped, and reopens the remembered ports.
+     */
+    private void refreshDevices() {
+        Collection<MidiDeviceInfo> devices = getDevices();
+        SparseArray<MidiDeviceInfo> present = new SparseArray<>(devices.size());
+        for (MidiDeviceInfo device : devices) {
+            present.put(device.getId(), device);
+        }
+        for (int i = mDevices.size() - 1; i >= 0; --i) {
+            if (present.get(mDevices.keyAt(i)) == null) {
+                deviceRemoved(mDevices.valueAt(i).mDeviceInfo);
+            }
+        }
+        for (MidiDeviceInfo device : devices) {
+            deviceAdded(device);
+            reconnect(mDevices.get(device.getId()));
+        }
+    }
+
+    /**
+     * Runs on the control thread: opens the remembered ports of a device
+     * that are not open yet.
+     */
+    private void reconnect(DeviceEntry entry) {
+        boolean connected = false;
+        for (MidiPortInfo port : entry.mPorts) {
+            if (port.isOutput()) {
+                if (mMemory.isOutput(port.getIdentity())) {
+                    connected |= connectOutput(port);
+                }
+            } else if (mInput == null && port.getIdentity().equals(mMemory.getInput())) {
+                openInput(port);
             }
-            mMidiDevicePending = true;
+        }
+        if (connected) {
+            notifyConnected();
+        }
+    }
+
+    /**
+     * The listener resends the controller state, which reaches the new ports
+     * while they are still opening and is written in one go once open.
+     */
+    private void notifyConnected() {
+        if (mConnectionListener != null) {
+            mUiHandler.post(() -> mConnectionListener.onMidiConnected(this));
         }
     }
 
     @Override
-    public void onDeviceOpened(MidiDevice midiDevice) {
-        mMidiDevicePending = false;
-        mMidiDevice = midiDevice;
-        mMidiInputPort = midiDevice.openInputPort(mUseMidiPortInfo.getPortNumber());
-        if (mMidiInputPort == null) {
-            Log.e(TAG, "Failed to open MIDI port");
-            mUseMidiPortInfo = null;
-            closeMidiPort();
-            if (mMidiPortsDisconnectMenuItem != null) {
-                mMidiPortsDisconnectMenuItem.setChecked(true);
-            }
-
-            new AlertDialog.Builder(mActivity)
-                    .setTitle(R.string.dialog_midi_port_error_title)
-                    .setMessage(R.string.dialog_midi_port_error_message)
-                    .setPositiveButton(android.R.string.ok, null)
-                    .create()
-                    .show();
+    public void setInputListener(MidiEngine.InputListener listener) {
+        mInputListener = listener;
+    }
+
+    /**
+     * Runs on the control thread.
+     */
+    private void openInput(MidiPortInfo port) {
+        if (!mStarted) {
+            return;
+        }
+        closeInput();
+        mInput = new InputSource(port);
+        mInput.open();
+    }
+
+    /**
+     * Runs on the control thread.
+     */
+    private void closeInput() {
+        if (mInput != null) {
+            mInput.close();
+            mInput = null;
+        }
+    }
+
+    /**
+     * Runs on the control thread: closes the input, then deselects it and
+     * tells the user on the UI thread.
+     */
+    private void inputFailed(InputSource input, int message) {
+        input.close();
+        if (mInput != input) {
             return;
         }
+        mInput = null;
+        if (input.mInfo.getIdentity().equals(mMemory.getInput())) {
+            mMemory.setInput(null);
+        }
+        mUiHandler.post(() -> {
+            updatePortChecks();
+            showError(R.string.dialog_midi_device_error_title, message);
+        });
+    }
 
-        byte[] data;
-        while ((data = mMidiDataQueue.poll()) != null) {
-            Log.d(TAG, "replaying queued packet");
-            sendMidi(data);
+    @Override
+    public void start(Context context) {
+        mStarted = true;
+        mMidiManager.registerDeviceCallback(mMidiDeviceCallback, mIoHandler);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            mMidiManager.registerDeviceCallback(MidiManager.TRANSPORT_UNIVERSAL_MIDI_PACKETS,
+                    mIoHandler::post, mUmpDeviceCallback);
         }
+        mIoHandler.post(this::refreshDevices);
     }
 
     @Override
     public void stop() {
-        closeMidiPort();
-
         mMidiManager.unregisterDeviceCallback(mMidiDeviceCallback);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            mMidiManager.unregisterDeviceCallback(mUmpDeviceCallback);
+        }
+        mStarted = false;
+        mIoHandler.post(() -> {
+            closeInput();
+            closeOutputs();
+        });
     }
 
-    private void closeMidiPort() {
-        if (mMidiInputPort != null) {
-            MidiInputPort midiInputPort = mMidiInputPort;
-            mMidiInputPort = null;
-            try {
-                midiInputPort.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Error when closing MidiInputPort", e);
-            }
+    /**
+     * Ends the control thread once the ports are closed; the engine cannot
+     * be started again.
+     */
+    @Override
+    public void release() {
+        mIoThread.quitSafely();
+    }
+
+    /**
+     * Runs on the control thread.
+     *
+     * @return true if the port was not already open
+     */
+    private boolean connectOutput(MidiPortInfo port) {
+        if (!mStarted || findOutput(port.getIdentity()) != null) {
+            return false;
         }
+        OutputPort output = new OutputPort(port);
+        addOutput(output);
+        output.open();
+        return true;
+    }
 
-        if (mMidiDevice != null) {
-            MidiDevice midiDevice = mMidiDevice;
-            mMidiDevice = null;
-            try {
-                midiDevice.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Error when closing MidiDevice", e);
+    private synchronized void addOutput(OutputPort output) {
+        OutputPort[] outputs = Arrays.copyOf(mOutputs, mOutputs.length + 1);
+        outputs[outputs.length - 1] = output;
+        mOutputs = outputs;
+        PORTS.set(outputs.length);
+    }
+
+    /**
+     * @return false if it was already removed
+     */
+    private synchronized boolean removeOutput(OutputPort output) {
+        OutputPort[] outputs = mOutputs;
+        for (int i = 0; i < outputs.length; ++i) {
+            if (outputs[i] == output) {
+                OutputPort[] result = new OutputPort[outputs.length - 1];
+                System.arraycopy(outputs, 0, result, 0, i);
+                System.arraycopy(outputs, i + 1, result, i, outputs.length - i - 1);
+                mOutputs = result;
+                PORTS.set(result.length);
+                return true;
             }
         }
-
-        mMidiDevicePending = false;
-        mMidiDataQueue.clear();
+        return false;
     }
 
-    private void sendMidi(byte[] data) {
-        if (mMidiInputPort == null) {
-            if (mMidiDevicePending) {
-                mMidiDataQueue.add(data);
-                Log.d(TAG, "queued packet");
-            } else {
-                Log.d(TAG, "discarded packet");
+    private OutputPort findOutput(String identity) {
+        for (OutputPort output : mOutputs) {
+            if (output.mInfo.getIdentity().equals(identity)) {
+                return output;
             }
-            return;
         }
+        return null;
+    }
+
+    private void closeOutputs() {
+        OutputPort[] outputs;
+        synchronized (this) {
+            outputs = mOutputs;
+            mOutputs = new OutputPort[0];
+            PORTS.set(0);
+        }
+        for (OutputPort output : outputs) {
+            output.close();
+        }
+    }
 
-        try {
-            mMidiInputPort.send(data, 0, data.length);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    /**
+     * Closes a port that failed to open, then forgets it and tells the user
+     * on the UI thread. May be called from any thread.
+     */
+    private void portFailed(OutputPort output, int title, int message) {
+        if (!removeOutput(output)) {
+            return;
         }
+        output.close();
+        mMemory.removeOutput(output.mInfo.getIdentity());
+        mUiHandler.post(() -> {
+            updatePortChecks();
+            showError(title, message);
+        });
     }
 
+    /**
+     * May be called from any thread.
+     */
     protected void sendMidi(int m, int n, int v) {
-        byte msg[] = new byte[3];
-        msg[0] = (byte) m;
-        msg[1] = (byte) n;
-        msg[2] = (byte) v;
-        sendMidi(msg);
+        sendMessage(MidiRing.pack(m, n, v));
+    }
+
+    private void sendMessage(long message) {
+        for (OutputPort output : mOutputs) {
+            output.send(message);
+        }
     }
 
     protected void sendMidi(int m, int n) {
-        byte msg[] = new byte[2];
-        msg[0] = (byte) m;
-        msg[1] = (byte) n;
-        sendMidi(msg);
+        sendMidi(m, n, 0);
+    }
+
+    @Override
+    public void beginBatch() {
+        mBatchDepth.incrementAndGet();
+    }
+
+    @Override
+    public void endBatch() {
+        if (mBatchDepth.decrementAndGet() == 0) {
+            for (OutputPort output : mOutputs) {
+                output.flush();
+            }
+        }
+    }
+
+    @Override
+    public String statsReport() {
+        OutputPort[] outputs = mOutputs;
+        if (outputs.length == 0) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder("MIDI output ports\n");
+        for (OutputPort output : outputs) {
+            output.appendStats(sb);
+        }
+        return sb.toString();
     }
 
     @Override
@@ -384,6 +1216,37 @@ public class SystemMidiEngine implements MidiEngine, MidiManager.OnDeviceOpenedL
         sendMidi(STATUS_NOTEOFF | channel, note, vel);
     }
 
+    @Override
+    public boolean hasHiResOutput() {
+        for (OutputPort output : mOutputs) {
+            if (output.mInfo.getMode() == UmpEncoder.MODE_MIDI2) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void pitchWheelHiRes(int channel, long value) {
+        int num = UmpEncoder.scaleDown(value, 32, 14);
+        sendMessage(MidiRing.packHiRes(STATUS_BENDER | channel, num % 0x80, num / 0x80, value));
+    }
+
+    @Override
+    public void channelPressureHiRes(int channel, long value) {
+        sendMessage(MidiRing.packHiRes(STATUS_CHANAFT | channel, UmpEncoder.scaleDown(value, 32, 7), 0, value));
+    }
+
+    @Override
+    public void controllerHiRes(int channel, int ctl, long value) {
+        sendMessage(MidiRing.packHiRes(STATUS_CTLCHG | channel, ctl, UmpEncoder.scaleDown(value, 32, 7), value));
+    }
+
+    @Override
+    public void noteOnHiRes(int channel, int note, int velocity) {
+        sendMessage(MidiRing.packHiRes(STATUS_NOTEON | channel, note, UmpEncoder.velocity7(velocity), velocity));
+    }
+
     @Override
     public void panic() {
         for (int ch = 0; ch < 16; ++ch) {
@@ -398,31 +1261,37 @@ public class SystemMidiEngine implements MidiEngine, MidiManager.OnDeviceOpenedL
         }
     }
 
+    /**
+     * Called on the control thread; menu changes are posted to the UI thread.
+     */
     private class MidiDeviceCallback extends MidiManager.DeviceCallback {
         @Override
         public void onDeviceAdded(MidiDeviceInfo device) {
-            addMidiDeviceToPortList(device);
-            mMidiPortsSubMenu.setGroupCheckable(PORT_MENU_GROUP_ID, true, true);
+            DeviceEntry entry = deviceAdded(device);
+            if (entry != null) {
+                reconnect(entry);
+            }
             Log.d(TAG, "device added");
         }
 
         @Override
         public void onDeviceRemoved(MidiDeviceInfo device) {
-            removeMidiDeviceFromPortList(device);
-            if (mUseMidiPortInfo != null && device.equals(mUseMidiPortInfo.getDeviceInfo())) {
-                closeMidiPort();
-                mUseMidiPortInfo = null;
-                if (mMidiPortsDisconnectMenuItem != null) {
-                    mMidiPortsDisconnectMenuItem.setChecked(true);
+            deviceRemoved(device);
+            // remembered ports are reopened when the device comes back
+            boolean lost = false;
+            for (OutputPort output : mOutputs) {
+                if (device.equals(output.mInfo.getDeviceInfo()) && removeOutput(output)) {
+                    output.close();
+                    lost = true;
                 }
-
-                new AlertDialog.Builder(mActivity)
-                        .setTitle(R.string.dialog_midi_device_error_title)
-                        .setMessage(R.string.dialog_midi_device_error_message)
-                        .setPositiveButton(android.R.string.ok, null)
-                        .create()
-                        .show();
-                return;
+            }
+            if (mInput != null && device.equals(mInput.mInfo.getDeviceInfo())) {
+                closeInput();
+                lost = true;
+            }
+            if (lost) {
+                mUiHandler.post(() -> Toast.makeText(mContext,
+                        R.string.dialog_midi_device_error_message, Toast.LENGTH_SHORT).show());
             }
             Log.d(TAG, "device removed");
         }
@@ -0,0 +1,263 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.view.Display;
+import android.view.Surface;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Turns the device tilt into pitch bend, velocity and controller values.
+ *
+ * Sensor events arrive on a thread of their own, at a higher rate than the
+ * UI one. A 1€ filter smooths them, and the values go straight to the
+ * engine through a {@link ControllerGate}. The seekbars only get the latest
+ * values, at most once per UI_INTERVAL_MS, through {@link Listener}.
+ */
+public class TiltSensor implements SensorEventListener {
+	private static final int SAMPLING_PERIOD_US = 10000;
+	private static final long UI_INTERVAL_MS = 33;
+	/** smallest tilt change sent, as a fraction of the range; above the sensor noise */
+	private static final double DEADBAND = 1.0 / 2048;
+	private static final float BENDER_RANGE = 10f;
+	private static final long MAX_VALUE = 0xFFFFFFFFL;
+
+	public interface Listener {
+		/**
+		 * Called on the sensor thread.
+		 *
+		 * @param velocity 16 bit velocity
+		 */
+		public void onTiltVelocity(int velocity);
+
+		/**
+		 * Called on the UI thread, throttled, with the values for the
+		 * enabled bars only; the others are negative.
+		 */
+		public void onTiltDisplay(int bender, int velocity, int control);
+	}
+
+	private final SensorManager mSensorManager;
+	private final Sensor mSensor;
+	private final Display mDisplay;
+	private final Listener mListener;
+	private final HandlerThread mThread;
+	private final Handler mHandler;
+	private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+
+	// set from the UI thread
+	private volatile MidiEngine mEngine;
+	private volatile int mChannel = 0;
+	private volatile int mController = MidiEngine.CTL_MODULATION;
+	private volatile boolean mBender = false;
+	private volatile boolean mVelocity = false;
+	private volatile boolean mControl = false;
+	private volatile int mRotation = Surface.ROTATION_0;
+
+	// owned by the sensor thread
+	private final OneEuroFilter mFilterX;
+	private final OneEuroFilter mFilterY;
+	private final ControllerGate mGate = new ControllerGate();
+
+	// latest values for the seekbars
+	private volatile int mShownBender;
+	private volatile int mShownVelocity;
+	private volatile int mShownControl;
+	private final AtomicBoolean mDisplayPosted = new AtomicBoolean(false);
+	private volatile long mDisplayMillis = 0;
+	private final Runnable mDisplayTask = new Runnable() {
+		@Override
+		public void run() {
+			mDisplayPosted.set(false);
+			mDisplayMillis = SystemClock.uptimeMillis();
+			mRotation = mDisplay.getRotation();
+			mListener.onTiltDisplay(mShownBender, mShownVelocity, mShownControl);
+		}
+	};
+
+	/**
+	 * @return null if the device has neither a gravity sensor nor an
+	 *         accelerometer
+	 */
+	public static TiltSensor create(SensorManager sensorManager, Display display, Listener listener) {
+		Sensor sensor = sensorManager.getDefaultSensor(Sensor.TYPE_GRAVITY);
+		if (sensor == null) {
+			sensor = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+		}
+		if (sensor == null) {
+			return null;
+		}
+		Log.d("TiltSensor", "sensor: " + sensor.getName());
+		return new TiltSensor(sensorManager, sensor, display, listener);
+	}
+
+	private TiltSensor(SensorManager sensorManager, Sensor sensor, Display display, Listener listener) {
+		mSensorManager = sensorManager;
+		mSensor = sensor;
+		mDisplay = display;
+		mListener = listener;
+		// the accelerometer needs more smoothing to leave just gravity, about
+		// what the former fixed 0.8 smoothing factor gave at the UI rate
+		double minCutoff = sensor.getType() == Sensor.TYPE_GRAVITY ? 1.5 : 0.6;
+		mFilterX = new OneEuroFilter(minCutoff, 0.3, 1.0);
+		mFilterY = new OneEuroFilter(minCutoff, 0.3, 1.0);
+		mRotation = display.getRotation();
+		mGate.setDeadband(DEADBAND);
+		mThread = new HandlerThread("TiltSensor", Process.THREAD_PRIORITY_DISPLAY);
+		mThread.start();
+		mHandler = new Handler(mThread.getLooper());
+	}
+
+	public void start() {
+		mRotation = mDisplay.getRotation();
+		mHandler.post(() -> {
+			mFilterX.reset();
+			mFilterY.reset();
+		});
+		mSensorManager.registerListener(this, mSensor, SAMPLING_PERIOD_US, mHandler);
+	}
+
+	public void stop() {
+		mSensorManager.unregisterListener(this);
+	}
+
+	/**
+	 * Stops the sensor thread, for good.
+	 */
+	public void release() {
+		stop();
+		mThread.quitSafely();
+	}
+
+	public void setEngine(MidiEngine engine) {
+		mEngine = engine;
+	}
+
+	public void setChannel(int channel) {
+		mChannel = channel;
+	}
+
+	public void setController(int controller) {
+		mController = controller;
+	}
+
+	public void setBenderEnabled(boolean enabled) {
+		mBender = enabled;
+	}
+
+	public void setVelocityEnabled(boolean enabled) {
+		mVelocity = enabled;
+	}
+
+	public void setControlEnabled(boolean enabled) {
+		mControl = enabled;
+	}
+
+	public void setMaxRate(int hz) {
+		mHandler.post(() -> mGate.setMaxRate(hz));
+	}
+
+	/**
+	 * The value was changed by other means: the next tilt value is sent
+	 * anyway.
+	 *
+	 * @param key controller number or {@link ControllerGate#BENDER}
+	 */
+	public void forget(int channel, int key) {
+		mHandler.post(() -> mGate.forget(channel, key));
+	}
+
+	public String gateStats() {
+		return mGate.stats();
+	}
+
+	@Override
+	public void onAccuracyChanged(Sensor sensor, int accuracy) {
+	}
+
+	@Override
+	public void onSensorChanged(SensorEvent event) {
+		boolean bender = mBender;
+		boolean velocity = mVelocity;
+		boolean control = mControl;
+		if (!(bender || velocity || control)) {
+			return;
+		}
+		float x = (float) mFilterX.filter(event.values[0], event.timestamp);
+		float y = (float) mFilterY.filter(event.values[1], event.timestamp);
+
+		float sensorf = 0;
+		switch (mRotation) {
+			case Surface.ROTATION_0:
+				sensorf = x;
+				break;
+			case Surface.ROTATION_90:
+				sensorf = -y;
+				break;
+			case Surface.ROTATION_180:
+				sensorf = -x;
+				break;
+			case Surface.ROTATION_270:
+				sensorf = y;
+				break;
+		}
+
+		MidiEngine engine = mEngine;
+		int channel = mChannel;
+		boolean hiRes = engine != null && engine.hasHiResOutput();
+		float tilt = sensorf / SensorManager.GRAVITY_EARTH;
+		int shownBender = -1;
+		int shownVelocity = -1;
+		int shownControl = -1;
+
+		if (bender) {
+			long bend = value(sensorf / BENDER_RANGE, MAX_VALUE);
+			if (engine != null && mGate.pass(channel, ControllerGate.BENDER, bend, hiRes ? 32 : 14, event.timestamp)) {
+				engine.pitchWheelHiRes(channel, bend);
+			}
+			shownBender = UmpEncoder.scaleDown(bend, 32, 14);
+		}
+
+		if (velocity) {
+			int vel = (int) value(tilt, 0xFFFF);
+			mListener.onTiltVelocity(vel);
+			shownVelocity = UmpEncoder.velocity7(vel);
+		}
+
+		if (control) {
+			int ctl = mController;
+			long ctlValue = value(tilt, MAX_VALUE);
+			if (engine != null && mGate.pass(channel, ctl, ctlValue, hiRes ? 32 : 7, event.timestamp)) {
+				engine.controllerHiRes(channel, ctl, ctlValue);
+			}
+			shownControl = UmpEncoder.scaleDown(ctlValue, 32, 7);
+		}
+
+		mShownBender = shownBender;
+		mShownVelocity = shownVelocity;
+		mShownControl = shownControl;
+		if (!mDisplayPosted.getAndSet(true)) {
+			long delay = mDisplayMillis + UI_INTERVAL_MS - SystemClock.uptimeMillis();
+			mUiHandler.postDelayed(mDisplayTask, Math.max(delay, 0));
+		}
+	}
+
+	/**
+	 * Maps f, from -1 to 1, onto 0 to max.
+	 */
+	private static long value(float f, long max) {
+		double v = (f + 1.0) * 0.5 * max;
+		return v < 0 ? 0 : v > max ? max : (long) v;
+	}
+}
@@ -0,0 +1,179 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A flight recorder: the last CAPACITY events, each an event id, up to three
+ * primitive arguments, the thread and a nanosecond timestamp, kept in
+ * preallocated arrays. Recording claims a slot with one atomic increment
+ * and never allocates or locks; while disabled it is a volatile read.
+ *
+ * The events are dumped in the Chrome trace event format, which
+ * ui.perfetto.dev and chrome://tracing open. Events recorded during the
+ * dump may show up half written.
+ *
+ * Not to be confused with android.os.Trace, which goes to the system
+ * tracer and takes strings.
+ */
+public final class TraceRing {
+	/** instant events */
+	public static final int NOTE_ON = 0;
+	public static final int NOTE_OFF = 1;
+	public static final int CONTROLLER = 2;
+	public static final int PROGRAM = 3;
+	public static final int PANIC = 4;
+	public static final int QUEUE_REPLAY = 5;
+	public static final int PORT_WRITE = 6;
+	public static final int ENGINE_SWITCH = 7;
+	public static final int STATE_RESYNC = 8;
+	public static final int PACKET_SENT = 9;
+	/** durations, with begin() and end() */
+	public static final int SYNTH_START = 10;
+	public static final int KEYBOARD_DRAW = 11;
+
+	private static final String[] NAMES = {
+			"noteOn", "noteOff", "controller", "program", "panic", "queueReplay",
+			"portWrite", "engineSwitch", "stateResync", "packetSent",
+			"synthStart", "keyboardDraw" };
+	/** null for the arguments not used */
+	private static final String[][] ARG_NAMES = {
+			{ "channel", "note", "velocity" }, { "channel", "note", "velocity" },
+			{ "channel", "controller", "value" }, { "channel", "program", null },
+			{ null, null, null }, { "messages", "coalesced", "dropped notes" },
+			{ "bytes", "messages", null }, { "mode", "messages", null },
+			{ "messages", null, null }, { "bytes", null, null },
+			{ "warm", null, null }, { null, null, null } };
+
+	/** a trace only holds this process */
+	private static final int PID = 1;
+	private static final char PHASE_INSTANT = 'i';
+	private static final char PHASE_BEGIN = 'B';
+	private static final char PHASE_END = 'E';
+
+	public static final int CAPACITY = 1 << 14;
+	private static final int MASK = CAPACITY - 1;
+
+	private static final AtomicLong sNext = new AtomicLong(0);
+	private static final long[] sNanos = new long[CAPACITY];
+	private static final long[] sArg0 = new long[CAPACITY];
+	private static final long[] sArg1 = new long[CAPACITY];
+	private static final long[] sArg2 = new long[CAPACITY];
+	private static final int[] sEvents = new int[CAPACITY];
+	private static final int[] sThreads = new int[CAPACITY];
+	private static final char[] sPhases = new char[CAPACITY];
+	private static volatile boolean sEnabled = false;
+
+	private TraceRing() {
+	}
+
+	public static void setEnabled(boolean enabled) {
+		sEnabled = enabled;
+	}
+
+	public static boolean isEnabled() {
+		return sEnabled;
+	}
+
+	public static void event(int event, long arg0, long arg1, long arg2) {
+		if (sEnabled) {
+			record(PHASE_INSTANT, event, arg0, arg1, arg2);
+		}
+	}
+
+	public static void begin(int event, long arg0) {
+		if (sEnabled) {
+			record(PHASE_BEGIN, event, arg0, 0, 0);
+		}
+	}
+
+	/**
+	 * Ends the last duration begun by the same thread.
+	 */
+	public static void end(int event) {
+		if (sEnabled) {
+			record(PHASE_END, event, 0, 0, 0);
+		}
+	}
+
+	private static void record(char phase, int event, long arg0, long arg1, long arg2) {
+		int slot = (int) (sNext.getAndIncrement() & MASK);
+		sNanos[slot] = System.nanoTime();
+		sEvents[slot] = event;
+		sPhases[slot] = phase;
+		sArg0[slot] = arg0;
+		sArg1[slot] = arg1;
+		sArg2[slot] = arg2;
+		// Thread ids, unlike the kernel ones, cost no system call
+		sThreads[slot] = (int) Thread.currentThread().getId();
+	}
+
+	public static void clear() {
+		sNext.set(0);
+	}
+
+	/**
+	 * @return number of events recorded, including those overwritten
+	 */
+	public static long count() {
+		return sNext.get();
+	}
+
+	/**
+	 * Writes the events kept, oldest first, as a Chrome trace JSON array.
+	 *
+	 * @return number of events written
+	 */
+	public static int dump(Writer out) throws IOException {
+		long end = sNext.get();
+		long begin = Math.max(0, end - CAPACITY);
+		StringBuilder sb = new StringBuilder(160);
+		out.write("[\n");
+		int written = 0;
+		for (long i = begin; i < end; ++i) {
+			int slot = (int) (i & MASK);
+			int event = sEvents[slot];
+			if (event < 0 || event >= NAMES.length) {
+				continue;
+			}
+			sb.setLength(0);
+			if (written > 0) {
+				sb.append(",\n");
+			}
+			long nanos = sNanos[slot];
+			sb.append("{\"name\":\"").append(NAMES[event])
+					.append("\",\"cat\":\"vmpk\",\"ph\":\"").append(sPhases[slot])
+					.append("\",\"ts\":").append(nanos / 1000).append('.')
+					.append(String.format(Locale.US, "%03d", nanos % 1000))
+					.append(",\"pid\":").append(PID)
+					.append(",\"tid\":").append(sThreads[slot]);
+			if (sPhases[slot] == PHASE_INSTANT) {
+				sb.append(",\"s\":\"t\"");
+			}
+			if (sPhases[slot] != PHASE_END) {
+				String[] names = ARG_NAMES[event];
+				sb.append(",\"args\":{");
+				appendArg(sb, names[0], sArg0[slot], true);
+				appendArg(sb, names[1], sArg1[slot], names[0] == null);
+				appendArg(sb, names[2], sArg2[slot], names[0] == null && names[1] == null);
+				sb.append('}');
+			}
+			sb.append('}');
+			out.append(sb);
+			written++;
+		}
+		out.write("\n]\n");
+		return written;
+	}
+
+	private static void appendArg(StringBuilder sb, String name, long value, boolean first) {
+		if (name != null) {
+			sb.append(first ? "\"" : ",\"").append(name).append("\":").append(value);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+/**
+ * Passes everything to another engine, keeping the controller, program,
+ * bender and pressure values sent in a {@link ChannelStateTable}, and
+ * recording the notes, programs and controllers in the {@link TraceRing}.
+ * May be used from any thread, as long as the target engine can.
+ */
+public class TrackingEngine extends ForwardingEngine {
+	private final ChannelStateTable mState;
+
+	public TrackingEngine(MidiEngine target, ChannelStateTable state) {
+		super(target);
+		mState = state;
+	}
+
+	public ChannelStateTable getState() {
+		return mState;
+	}
+
+	/**
+	 * Sends the state to a target assumed to be in the General MIDI power on
+	 * state, as after starting or connecting it: only what differs.
+	 *
+	 * @return number of messages sent
+	 */
+	public int resync() {
+		MidiEngine target = getTarget();
+		return target == null ? 0 : mState.resync(target, new ChannelStateTable());
+	}
+
+	@Override
+	public void pitchWheel(int channel, int num) {
+		mState.setBender(channel, UmpEncoder.scaleUp(num, 14, 32));
+		super.pitchWheel(channel, num);
+	}
+
+	@Override
+	public void channelPressure(int channel, int num) {
+		mState.setPressure(channel, UmpEncoder.scaleUp(num, 7, 32));
+		super.channelPressure(channel, num);
+	}
+
+	@Override
+	public void noteOn(int channel, int note, int vel) {
+		TraceRing.event(TraceRing.NOTE_ON, channel, note, vel);
+		super.noteOn(channel, note, vel);
+	}
+
+	@Override
+	public void noteOnHiRes(int channel, int note, int velocity) {
+		TraceRing.event(TraceRing.NOTE_ON, channel, note, velocity);
+		super.noteOnHiRes(channel, note, velocity);
+	}
+
+	@Override
+	public void noteOff(int channel, int note, int vel) {
+		TraceRing.event(TraceRing.NOTE_OFF, channel, note, vel);
+		super.noteOff(channel, note, vel);
+	}
+
+	@Override
+	public void programChange(int channel, int num) {
+		TraceRing.event(TraceRing.PROGRAM, channel, num, 0);
+		mState.setProgram(channel, num);
+		super.programChange(channel, num);
+	}
+
+	@Override
+	public void controller(int channel, int ctl, int num) {
+		TraceRing.event(TraceRing.CONTROLLER, channel, ctl, num);
+		mState.setController(channel, ctl, UmpEncoder.scaleUp(num, 7, 32));
+		if (ctl == CTL_RESET_ALL_CTL) {
+			mState.resetControllers(channel);
+		}
+		super.controller(channel, ctl, num);
+	}
+
+	@Override
+	public void pitchWheelHiRes(int channel, long value) {
+		mState.setBender(channel, value);
+		super.pitchWheelHiRes(channel, value);
+	}
+
+	@Override
+	public void channelPressureHiRes(int channel, long value) {
+		mState.setPressure(channel, value);
+		super.channelPressureHiRes(channel, value);
+	}
+
+	@Override
+	public void controllerHiRes(int channel, int ctl, long value) {
+		TraceRing.event(TraceRing.CONTROLLER, channel, ctl, value);
+		mState.setController(channel, ctl, value);
+		super.controllerHiRes(channel, ctl, value);
+	}
+
+	@Override
+	public void panic() {
+		TraceRing.event(TraceRing.PANIC, 0, 0, 0);
+		super.panic();
+	}
+
+	@Override
+	public void reset() {
+		for (int channel = 0; channel < ChannelStateTable.CHANNELS; ++channel) {
+			mState.resetControllers(channel);
+		}
+		super.reset();
+	}
+}
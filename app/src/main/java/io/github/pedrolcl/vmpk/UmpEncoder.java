@@ -0,0 +1,201 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+/**
+ * Translates the messages of a {@link MidiRing} into Universal MIDI Packets,
+ * for devices using the UMP transport. Words are written big endian, the
+ * byte order of the Android MIDI API, always on group 0.
+ *
+ * In MIDI 2.0 mode, channel voice messages become 64 bit packets carrying
+ * the high resolution values when present, or the MIDI 1.0 values scaled up
+ * as the MIDI 2.0 specification says. Bank select controllers are held back
+ * and sent within the next program change, as MIDI 2.0 expects.
+ *
+ * Not thread safe: each writer thread has its own encoder.
+ */
+public final class UmpEncoder {
+	/** no UMP: plain MIDI 1.0 bytes */
+	public static final int MODE_BYTES = 0;
+	/** UMP with MIDI 1.0 channel voice messages */
+	public static final int MODE_MIDI1 = 1;
+	/** UMP with MIDI 2.0 channel voice messages */
+	public static final int MODE_MIDI2 = 2;
+
+	private static final int MT_SYSTEM = 0x1;
+	private static final int MT_MIDI1 = 0x2;
+	private static final int MT_MIDI2 = 0x4;
+
+	private static final int CTL_BANK_MSB = 0;
+	private static final int CTL_BANK_LSB = 32;
+
+	private final int mMode;
+	private final int[] mWords = new int[2];
+	private final int[] mBankMsb = new int[16];
+	private final int[] mBankLsb = new int[16];
+	private int mBankValid = 0;
+
+	public UmpEncoder(int mode) {
+		mMode = mode;
+	}
+
+	public int getMode() {
+		return mMode;
+	}
+
+	/**
+	 * Min-center-max scaling from the MIDI 2.0 specification: 0, the center
+	 * and the maximum of the source range map to the same points of the
+	 * destination range.
+	 */
+	public static long scaleUp(long value, int srcBits, int dstBits) {
+		int scaleBits = dstBits - srcBits;
+		long shifted = value << scaleBits;
+		long center = 1L << (srcBits - 1);
+		if (value <= center) {
+			return shifted;
+		}
+		int repeatBits = srcBits - 1;
+		long repeat = value & ((1L << repeatBits) - 1);
+		if (scaleBits > repeatBits) {
+			repeat <<= scaleBits - repeatBits;
+		} else {
+			repeat >>= repeatBits - scaleBits;
+		}
+		while (repeat != 0) {
+			shifted |= repeat;
+			repeat >>= repeatBits;
+		}
+		return shifted;
+	}
+
+	public static int scaleDown(long value, int srcBits, int dstBits) {
+		return (int) (value >>> (srcBits - dstBits));
+	}
+
+	/**
+	 * @return a MIDI 1.0 velocity for a 16 bit one, never turning a note on
+	 *         into a note off
+	 */
+	public static int velocity7(int velocity16) {
+		int velocity = velocity16 >>> 9;
+		return velocity == 0 && velocity16 != 0 ? 1 : velocity;
+	}
+
+	/**
+	 * @return bytes taken by the message once encoded
+	 */
+	public int size(long message) {
+		if (mMode == MODE_BYTES) {
+			return MidiRing.length(MidiRing.status(message));
+		}
+		return mMode == MODE_MIDI2 && MidiRing.status(message) < 0xF0 ? 8 : 4;
+	}
+
+	/**
+	 * Encodes a message into buffer, which must have room for {@link #size(long)}
+	 * bytes from offset.
+	 *
+	 * @return the new offset; unchanged if the message was held back
+	 */
+	public int encode(long message, byte[] buffer, int offset) {
+		if (mMode == MODE_BYTES) {
+			int size = MidiRing.length(MidiRing.status(message));
+			buffer[offset++] = (byte) MidiRing.status(message);
+			if (size > 1) {
+				buffer[offset++] = (byte) MidiRing.data1(message);
+			}
+			if (size > 2) {
+				buffer[offset++] = (byte) MidiRing.data2(message);
+			}
+			return offset;
+		}
+		int count = encode(message);
+		for (int i = 0; i < count; ++i) {
+			int word = mWords[i];
+			buffer[offset++] = (byte) (word >>> 24);
+			buffer[offset++] = (byte) (word >>> 16);
+			buffer[offset++] = (byte) (word >>> 8);
+			buffer[offset++] = (byte) word;
+		}
+		return offset;
+	}
+
+	/**
+	 * UMP modes only.
+	 *
+	 * @return number of words written into mWords
+	 */
+	private int encode(long message) {
+		int status = MidiRing.status(message);
+		int data1 = MidiRing.data1(message);
+		int data2 = MidiRing.data2(message);
+		if (status >= 0xF0) {
+			mWords[0] = MT_SYSTEM << 28 | status << 16 | data1 << 8 | data2;
+			return 1;
+		}
+		if (mMode == MODE_MIDI1) {
+			mWords[0] = MT_MIDI1 << 28 | status << 16 | data1 << 8 | data2;
+			return 1;
+		}
+		boolean hiRes = MidiRing.isHiRes(message);
+		int channel = status & 0x0F;
+		int index = 0;
+		long value;
+		switch (status & 0xF0) {
+			case MidiEngine.STATUS_NOTEON:
+				if (!hiRes && data2 == 0) {
+					// a MIDI 2.0 note on with velocity 0 is not a note off
+					status = MidiEngine.STATUS_NOTEOFF | channel;
+				}
+				// fall through
+			case MidiEngine.STATUS_NOTEOFF:
+				index = data1 << 8;
+				value = (hiRes ? MidiRing.value(message) : scaleUp(data2, 7, 16)) << 16;
+				break;
+			case MidiEngine.STATUS_POLYAFT:
+				index = data1 << 8;
+				value = hiRes ? MidiRing.value(message) : scaleUp(data2, 7, 32);
+				break;
+			case MidiEngine.STATUS_CTLCHG:
+				if (data1 == CTL_BANK_MSB) {
+					mBankMsb[channel] = data2;
+					mBankValid |= 1 << channel;
+					return 0;
+				}
+				if (data1 == CTL_BANK_LSB) {
+					mBankLsb[channel] = data2;
+					mBankValid |= 1 << channel;
+					return 0;
+				}
+				index = data1 << 8;
+				value = hiRes ? MidiRing.value(message) : scaleUp(data2, 7, 32);
+				break;
+			case MidiEngine.STATUS_PROGRAM:
+				value = (long) data1 << 24;
+				if ((mBankValid & 1 << channel) != 0) {
+					index = 1; // bank valid option flag
+					value |= mBankMsb[channel] << 8 | mBankLsb[channel];
+					mBankValid &= ~(1 << channel);
+				}
+				break;
+			case MidiEngine.STATUS_CHANAFT:
+				value = hiRes ? MidiRing.value(message) : scaleUp(data1, 7, 32);
+				break;
+			default: // STATUS_BENDER
+				value = hiRes ? MidiRing.value(message) : scaleUp(data1 | data2 << 7, 14, 32);
+				break;
+		}
+		mWords[0] = MT_MIDI2 << 28 | status << 16 | index;
+		mWords[1] = (int) value;
+		return 2;
+	}
+
+	/**
+	 * Forgets the bank select controllers held back, when the device closes.
+	 */
+	public void reset() {
+		mBankValid = 0;
+	}
+}
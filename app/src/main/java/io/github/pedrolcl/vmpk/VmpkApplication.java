@@ -0,0 +1,20 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk;
+
+import android.app.Application;
+
+/**
+ * Starts reading the settings, the saved state and the presets while the
+ * first activity is being created.
+ */
+public class VmpkApplication extends Application {
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		Settings.preload(this);
+		PerformanceState.preload(this);
+		PresetStore.preload(this);
+	}
+}
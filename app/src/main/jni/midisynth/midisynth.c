@@ -18,7 +18,9 @@
  */
 
 #include <jni.h>
+#include <stdint.h>
 #include <stdlib.h>
+#include <time.h>
 #include <android/log.h>
 #include <eas.h>
 #include <eas_reverb.h>
@@ -30,13 +32,44 @@
 #define LOGW(...) \
   __android_log_print(ANDROID_LOG_WARN, "midisynth", __VA_ARGS__)
 
+// Must match LatencyMonitor.BUCKETS
+#define LATENCY_BUCKETS 20
+// pendingWrite while a writer is storing the origin
+#define PENDING_CLAIMED (-1)
+
 struct LibraryContext {
   int sampleRate, bufferSize, channels;
   EAS_DATA_HANDLE easData;
   EAS_HANDLE easHandle;
   OPENSL_STREAM *os;
+  // oldest write not yet rendered, and the touch time behind it (CLOCK_MONOTONIC ns);
+  // 0 when free, PENDING_CLAIMED while being written
+  int64_t pendingWrite;
+  int64_t pendingOrigin;
+  uint32_t renderLatency[LATENCY_BUCKETS];
+  uint32_t totalLatency[LATENCY_BUCKETS];
 };
 
+static int64_t now_nanos(void)
+{
+  struct timespec t;
+  clock_gettime(CLOCK_MONOTONIC, &t);
+  return (int64_t) t.tv_sec * 1000000000LL + t.tv_nsec;
+}
+
+static void latency_add(uint32_t *hist, int64_t nanos)
+{
+  int64_t us = nanos / 1000;
+  int b = 0;
+  if (us > 0) {
+    b = 64 - __builtin_clzll((unsigned long long) us);
+    if (b >= LATENCY_BUCKETS) {
+      b = LATENCY_BUCKETS - 1;
+    }
+  }
+  __atomic_fetch_add(&hist[b], 1, __ATOMIC_RELAXED);
+}
+
 // Audio processing callback
 static void process(void *context, int sample_rate, int buffer_frames,
 					int input_channels, const short *input_buffer,
@@ -53,6 +86,17 @@ static void process(void *context, int sample_rate, int buffer_frames,
 		if (eas_res != EAS_SUCCESS) {
 			//LOGW("EAS_Render error: %ld", eas_res);
 		}
+		// only this callback takes the slot back, once the stamp is published
+		int64_t written = __atomic_load_n(&lc->pendingWrite, __ATOMIC_ACQUIRE);
+		if (written > 0) {
+			int64_t origin = __atomic_load_n(&lc->pendingOrigin, __ATOMIC_RELAXED);
+			__atomic_store_n(&lc->pendingWrite, 0, __ATOMIC_RELEASE);
+			int64_t now = now_nanos();
+			latency_add(lc->renderLatency, now - written);
+			if (origin != 0) {
+				latency_add(lc->totalLatency, now - origin);
+			}
+		}
     }
 }
 
@@ -92,7 +136,7 @@ JNIEXPORT jobject JNICALL Java_io_github_pedrolcl_vmpk_MIDISynth_open(JNIEnv *en
 	return NULL;
   }
 
-  struct LibraryContext *lc = malloc(sizeof(struct LibraryContext));
+  struct LibraryContext *lc = calloc(1, sizeof(struct LibraryContext));
   if (lc) {
     lc->os = opensl_open(easConfig->sampleRate, 0, easConfig->numChannels, easConfig->mixBufferSize, process, lc);
     if (!lc->os) {
@@ -150,7 +194,7 @@ JNIEXPORT jboolean JNICALL Java_io_github_pedrolcl_vmpk_MIDISynth_isRunning(JNIE
   return opensl_is_running(lc->os);
 }
 
-JNIEXPORT jboolean JNICALL Java_io_github_pedrolcl_vmpk_MIDISynth_write(JNIEnv *env, jclass clazz, jobject ctx, jbyteArray ba)
+JNIEXPORT jboolean JNICALL Java_io_github_pedrolcl_vmpk_MIDISynth_write(JNIEnv *env, jclass clazz, jobject ctx, jbyteArray ba, jlong origin)
 {
     EAS_RESULT eas_res = EAS_ERROR_ALREADY_STOPPED;
     EAS_I32 count;
@@ -168,6 +212,13 @@ JNIEXPORT jboolean JNICALL Java_io_github_pedrolcl_vmpk_MIDISynth_write(JNIEnv *
 		count = (*env)->GetArrayLength(env, ba);
 		eas_res = EAS_WriteMIDIStream(lc->easData, lc->easHandle, buffer, count);
 		(*env)->ReleaseByteArrayElements(env, ba, (jbyte  *)buffer, 0);
+		// claim the slot, then publish the origin along with the stamp
+		int64_t expected = 0;
+		if (__atomic_compare_exchange_n(&lc->pendingWrite, &expected, PENDING_CLAIMED,
+				0, __ATOMIC_ACQUIRE, __ATOMIC_RELAXED)) {
+			__atomic_store_n(&lc->pendingOrigin, (int64_t) origin, __ATOMIC_RELAXED);
+			__atomic_store_n(&lc->pendingWrite, now_nanos(), __ATOMIC_RELEASE);
+		}
     }
 	if (eas_res != EAS_SUCCESS) {
 		//LOGW("EAS_WriteMIDIStream error: %ld", eas_res);
@@ -175,6 +226,27 @@ JNIEXPORT jboolean JNICALL Java_io_github_pedrolcl_vmpk_MIDISynth_write(JNIEnv *
 	return (eas_res == EAS_SUCCESS) ? JNI_TRUE : JNI_FALSE;
 }
 
+static void latency_drain(JNIEnv *env, uint32_t *hist, jlongArray out)
+{
+  if (out == NULL || (*env)->GetArrayLength(env, out) < LATENCY_BUCKETS) {
+    return;
+  }
+  jlong counts[LATENCY_BUCKETS];
+  for (int b = 0; b < LATENCY_BUCKETS; ++b) {
+    counts[b] = __atomic_exchange_n(&hist[b], 0, __ATOMIC_RELAXED);
+  }
+  (*env)->SetLongArrayRegion(env, out, 0, LATENCY_BUCKETS, counts);
+}
+
+JNIEXPORT void JNICALL Java_io_github_pedrolcl_vmpk_MIDISynth_drainLatency(JNIEnv *env, jclass clazz, jobject ctx, jlongArray render, jlongArray total)
+{
+  struct LibraryContext *lc = (struct LibraryContext *) (*env)->GetDirectBufferAddress(env, ctx);
+  if (lc != NULL) {
+    latency_drain(env, lc->renderLatency, render);
+    latency_drain(env, lc->totalLatency, total);
+  }
+}
+
 JNIEXPORT void JNICALL Java_io_github_pedrolcl_vmpk_MIDISynth_initReverb(JNIEnv *env, jclass clazz, jobject ctx, jint reverb_type)
 {
   EAS_RESULT eas_res;
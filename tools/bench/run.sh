@@ -0,0 +1,28 @@
+#!/bin/sh
+# SPDX-License-Identifier: GPL-3.0-or-later
+#
+# Runs a JVM microbenchmark against the app sources, outside of the Gradle
+# build. The Android classes come from an android-all jar (as published for
+# Robolectric), which must match compileSdk closely enough.
+#
+#   tools/bench/run.sh path/to/android-all.jar LayoutBench
+#   tools/bench/run.sh path/to/android-all.jar MidiParserBench
+#   tools/bench/run.sh path/to/android-all.jar ReplayCheck [min events/s] [max bytes/event]
+#
+# Arguments after the class name are passed on to it.
+
+if [ $# -lt 2 ]; then
+	echo "usage: $0 android-all.jar BenchmarkClass [args...]" >&2
+	exit 1
+fi
+ANDROID_ALL=$1
+BENCH=$2
+shift 2
+ROOT=$(cd "$(dirname "$0")/../.." && pwd)
+OUT=$(mktemp -d)
+trap 'rm -rf "$OUT"' EXIT
+
+javac -encoding UTF-8 -nowarn -d "$OUT" -cp "$ANDROID_ALL" \
+	-sourcepath "$ROOT/app/src/main/java:$ROOT/tools/bench/src" \
+	"$ROOT/tools/bench/src/io/github/pedrolcl/vmpk/bench/$BENCH.java" || exit 1
+java -cp "$OUT:$ANDROID_ALL" "io.github.pedrolcl.vmpk.bench.$BENCH" "$@"
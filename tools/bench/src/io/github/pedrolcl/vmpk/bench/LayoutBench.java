@@ -0,0 +1,84 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk.bench;
+
+import com.sun.management.ThreadMXBean;
+
+import io.github.pedrolcl.vmpk.KeyLayout;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+/**
+ * Startup and relayout of two 88 key keyboards, with the {@link KeyLayout}
+ * used by PianoKeyboard. Startup builds the label tables and the three
+ * pooled banks of each keyboard, then lays them out once; a relayout is a
+ * new octave on both. Copying the results into the key objects, which
+ * need Android graphics, is left out.
+ */
+public class LayoutBench {
+	private static final int KEYS = 88;
+	private static final int FIRST = 21;
+	private static final int BANKS = 3;
+	private static final int STARTUPS = 20000;
+	private static final int RELAYOUTS = 200000;
+	private static final float KEY_WIDTH = 20f;
+	private static final float KEY_HEIGHT = 80f;
+	private static final String[] NAMES = { "C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B" };
+	private static final String[] PERCUSSION = new String[61];
+
+	static {
+		for (int i = 0; i < PERCUSSION.length; ++i) {
+			PERCUSSION[i] = "Percussion " + i;
+		}
+	}
+
+	/** keeps the results alive */
+	static Object sSink;
+
+	private final KeyLayout[] mLayouts = new KeyLayout[2];
+	private final KeyLayout.Keys[][] mBanks = new KeyLayout.Keys[2][BANKS];
+
+	void startup() {
+		for (int k = 0; k < 2; ++k) {
+			mLayouts[k] = new KeyLayout(NAMES, PERCUSSION);
+			for (int b = 0; b < BANKS; ++b) {
+				mBanks[k][b] = new KeyLayout.Keys();
+			}
+			mLayouts[k].layout(mBanks[k][0], FIRST, FIRST + KEYS, 2, 4 - 3 * k, KEY_WIDTH, KEY_HEIGHT, false);
+		}
+		sSink = mBanks;
+	}
+
+	void relayout(int n) {
+		for (int k = 0; k < 2; ++k) {
+			mLayouts[k].layout(mBanks[k][n % BANKS], FIRST, FIRST + KEYS, 2, n % 5 - 3 * k, KEY_WIDTH,
+					KEY_HEIGHT, false);
+		}
+	}
+
+	public static void main(String[] args) {
+		LayoutBench bench = new LayoutBench();
+		ThreadMXBean mx = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long id = Thread.currentThread().getId();
+		for (int round = 0; round < 3; ++round) {
+			long b0 = mx.getThreadAllocatedBytes(id);
+			long t0 = System.nanoTime();
+			for (int i = 0; i < STARTUPS; ++i) {
+				bench.startup();
+			}
+			long t1 = System.nanoTime();
+			long b1 = mx.getThreadAllocatedBytes(id);
+			for (int i = 0; i < RELAYOUTS; ++i) {
+				bench.relayout(i);
+			}
+			long t2 = System.nanoTime();
+			long b2 = mx.getThreadAllocatedBytes(id);
+			System.out.printf(Locale.US,
+					"round %d: startup %.2f us, %d B; relayout %.2f us, %d B; both keyboards%n", round,
+					(t1 - t0) / 1e3 / STARTUPS, (b1 - b0) / STARTUPS, (t2 - t1) / 1e3 / RELAYOUTS,
+					(b2 - b1) / RELAYOUTS);
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk.bench;
+
+import com.sun.management.ThreadMXBean;
+
+import io.github.pedrolcl.vmpk.MidiEngine;
+import io.github.pedrolcl.vmpk.MidiStreamParser;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Throughput and allocation of {@link MidiStreamParser} on a synthetic
+ * stream, fed in packets the size a MidiReceiver usually gets.
+ */
+public class MidiParserBench {
+	private static final int STREAM_BYTES = 1 << 20;
+	private static final int PACKET = 64;
+	private static final int PASSES = 50;
+	private static final int ROUNDS = 5;
+
+	private static long sMessages = 0;
+	private static long sChecksum = 0;
+
+	/**
+	 * A repeatable stream: notes on and off, often with running status,
+	 * controllers, bends and clocks.
+	 *
+	 * @return the number of bytes written
+	 */
+	static int generate(byte[] buffer, long seed) {
+		Random random = new Random(seed);
+		int n = 0;
+		int last = -1;
+		while (n < buffer.length - 3) {
+			int kind = random.nextInt(10);
+			if (kind < 6) {
+				int status = (kind < 3 ? MidiEngine.STATUS_NOTEON : MidiEngine.STATUS_NOTEOFF) | random.nextInt(16);
+				if (status != last || random.nextInt(4) == 0) {
+					buffer[n++] = (byte) status;
+					last = status;
+				}
+				buffer[n++] = (byte) random.nextInt(128);
+				buffer[n++] = (byte) random.nextInt(128);
+			} else if (kind < 8) {
+				last = MidiEngine.STATUS_CTLCHG | random.nextInt(16);
+				buffer[n++] = (byte) last;
+				buffer[n++] = (byte) random.nextInt(128);
+				buffer[n++] = (byte) random.nextInt(128);
+			} else if (kind < 9) {
+				// clock, does not cancel the running status
+				buffer[n++] = (byte) MidiStreamParser.STATUS_REALTIME;
+			} else {
+				last = MidiEngine.STATUS_BENDER;
+				buffer[n++] = (byte) last;
+				buffer[n++] = (byte) random.nextInt(128);
+				buffer[n++] = (byte) random.nextInt(128);
+			}
+		}
+		return n;
+	}
+
+	public static void main(String[] args) {
+		byte[] stream = new byte[STREAM_BYTES];
+		int length = generate(stream, 1);
+		MidiStreamParser parser = new MidiStreamParser(new MidiEngine.InputListener() {
+			@Override
+			public void onMidiMessage(int status, int data1, int data2) {
+				sMessages++;
+				sChecksum += status + data1 + data2;
+			}
+		});
+		ThreadMXBean mx = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long id = Thread.currentThread().getId();
+		for (int round = 0; round < ROUNDS; ++round) {
+			sMessages = 0;
+			long allocated = mx.getThreadAllocatedBytes(id);
+			long begin = System.nanoTime();
+			for (int pass = 0; pass < PASSES; ++pass) {
+				for (int offset = 0; offset < length; offset += PACKET) {
+					parser.parse(stream, offset, Math.min(PACKET, length - offset));
+				}
+			}
+			long nanos = System.nanoTime() - begin;
+			allocated = mx.getThreadAllocatedBytes(id) - allocated;
+			System.out.printf(Locale.US, "round %d: %.1f MB/s, %.1f M messages/s, %d B allocated%n", round,
+					(double) PASSES * length / nanos * 1e3, sMessages * 1e3 / nanos, allocated);
+		}
+		System.out.println("checksum " + sChecksum);
+	}
+}
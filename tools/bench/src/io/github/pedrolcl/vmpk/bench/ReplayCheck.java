@@ -0,0 +1,288 @@
+/* SPDX-License-Identifier: GPL-3.0-or-later */
+/* Copyright © 2013–2026 Pedro López-Cabanillas. */
+
+package io.github.pedrolcl.vmpk.bench;
+
+import android.content.Context;
+
+import com.sun.management.ThreadMXBean;
+
+import io.github.pedrolcl.vmpk.ChannelStateTable;
+import io.github.pedrolcl.vmpk.KeyLayout;
+import io.github.pedrolcl.vmpk.MidiEngine;
+import io.github.pedrolcl.vmpk.ReplayScript;
+import io.github.pedrolcl.vmpk.ReplaySink;
+import io.github.pedrolcl.vmpk.TrackingEngine;
+import io.github.pedrolcl.vmpk.UmpEncoder;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The pure Java half of the replay harness, with pass/fail thresholds: the
+ * built-in script must survive format() and parse(), and playing it
+ * through a {@link KeyLayout} and a {@link TrackingEngine} into a
+ * {@link ReplaySink} must leave no note hanging, the channel state
+ * as the script left it, and run fast enough without allocating. Touches
+ * follow the pressed-key rules of PianoKeyboard; its MotionEvents and its
+ * drawing need Android, and stay in the in-app replay.
+ *
+ * <pre>
+ * tools/bench/run.sh android-all.jar ReplayCheck [min events/s] [max bytes/event]
+ * </pre>
+ *
+ * Exits with status 1 when some check fails.
+ */
+public class ReplayCheck {
+	private static final int LOOPS = 20;
+	private static final int ROUNDS = 50;
+	private static final int KEYS = 88;
+	private static final int FIRST = 21;
+	private static final float WIDTH = 1040f;
+	private static final float HEIGHT = 80f;
+	private static final float TOP = 2f;
+	private static final int VELOCITY = 100;
+	private static final int MAX_POINTERS = 10;
+
+	/**
+	 * Counts the notes sounding on each channel, and the note offs without
+	 * a note on.
+	 */
+	static class NoteChecker implements MidiEngine {
+		final int[] mSounding = new int[ChannelStateTable.CHANNELS * 128];
+		int mUnmatched = 0;
+
+		int sounding() {
+			int n = 0;
+			for (int s : mSounding) {
+				n += s;
+			}
+			return n;
+		}
+
+		@Override
+		public void start(Context context) {
+		}
+
+		@Override
+		public void stop() {
+		}
+
+		@Override
+		public void pitchWheel(int channel, int num) {
+		}
+
+		@Override
+		public void channelPressure(int channel, int num) {
+		}
+
+		@Override
+		public void programChange(int channel, int num) {
+		}
+
+		@Override
+		public void controller(int channel, int ctl, int num) {
+		}
+
+		@Override
+		public void aftertouch(int channel, int note, int num) {
+		}
+
+		@Override
+		public void noteOn(int channel, int note, int vel) {
+			mSounding[channel * 128 + note]++;
+		}
+
+		@Override
+		public void noteOff(int channel, int note, int vel) {
+			if (mSounding[channel * 128 + note] > 0) {
+				mSounding[channel * 128 + note]--;
+			} else {
+				mUnmatched++;
+			}
+		}
+
+		@Override
+		public void panic() {
+			Arrays.fill(mSounding, 0);
+		}
+
+		@Override
+		public void reset() {
+		}
+	}
+
+	private final ReplayScript mScript;
+	private final KeyLayout.Keys mKeys = new KeyLayout.Keys();
+	private final NoteChecker mChecker = new NoteChecker();
+	private final ReplaySink mSink = new ReplaySink(mChecker);
+	private final ChannelStateTable mState = new ChannelStateTable();
+	private final TrackingEngine mEngine = new TrackingEngine(mSink, mState);
+	private final boolean[] mPressed = new boolean[128];
+	private final int[] mLast = new int[MAX_POINTERS];
+	private boolean mFailed = false;
+
+	ReplayCheck(ReplayScript script) {
+		mScript = script;
+		String[] names = { "C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B" };
+		float keyWidth = WIDTH / (int) Math.ceil(KEYS * 7d / 12d);
+		float keyHeight = Math.min(keyWidth * 4, HEIGHT);
+		new KeyLayout(names, new String[0]).layout(mKeys, FIRST, FIRST + KEYS, TOP, 0, keyWidth, keyHeight,
+				false);
+		Arrays.fill(mLast, -1);
+	}
+
+	/** Black keys first, as PianoKeyboard.getKeyForPos(). */
+	private int noteAt(float x, float y) {
+		for (int i = mKeys.count - 1; i >= 0; --i) {
+			if (x >= mKeys.left[i] && x < mKeys.right[i] && y >= mKeys.top[i] && y < mKeys.bottom[i]) {
+				return mKeys.note[i];
+			}
+		}
+		return -1;
+	}
+
+	private void keyOn(int note, int id) {
+		if (note >= 0 && !mPressed[note]) {
+			mEngine.noteOn(0, note, VELOCITY);
+			mPressed[note] = true;
+			mLast[id] = note;
+		}
+	}
+
+	private void keyOff(int note, int id) {
+		if (note >= 0 && mPressed[note]) {
+			mEngine.noteOff(0, note, VELOCITY);
+			mPressed[note] = false;
+			mLast[id] = -1;
+		}
+	}
+
+	void play() {
+		ReplayScript script = mScript;
+		for (int i = 0; i < script.size(); ++i) {
+			int target = script.target(i);
+			int note = script.isTouch(i) ? noteAt(script.arg1(i) * WIDTH, script.arg2(i) * HEIGHT) : -1;
+			switch (script.kind(i)) {
+			case ReplayScript.DOWN:
+				keyOn(note, target);
+				break;
+			case ReplayScript.MOVE: {
+				int last = mLast[target];
+				if (last >= 0 && mPressed[last] && note != last) {
+					keyOff(last, target);
+					keyOn(note, target);
+				}
+				break;
+			}
+			case ReplayScript.UP:
+				keyOff(note, target);
+				break;
+			case ReplayScript.CONTROLLER:
+				mEngine.controller(target, (int) script.arg1(i), (int) script.arg2(i));
+				break;
+			case ReplayScript.BENDER:
+				mEngine.pitchWheel(target, (int) script.arg1(i));
+				break;
+			case ReplayScript.PROGRAM:
+				mEngine.programChange(target, (int) script.arg1(i));
+				break;
+			}
+		}
+	}
+
+	private void check(boolean passed, String what, Object... args) {
+		System.out.println((passed ? "PASS " : "FAIL ") + String.format(Locale.US, what, args));
+		mFailed |= !passed;
+	}
+
+	private void checkRoundTrip() {
+		ReplayScript parsed;
+		try {
+			parsed = ReplayScript.parse(new StringReader(mScript.format()));
+		} catch (IOException ex) {
+			check(false, "round trip: %s", ex.getMessage());
+			return;
+		}
+		int differ = -1;
+		for (int i = 0; i < mScript.size() && differ < 0; ++i) {
+			if (i >= parsed.size() || parsed.millis(i) != mScript.millis(i)
+					|| parsed.kind(i) != mScript.kind(i) || parsed.target(i) != mScript.target(i)
+					|| Math.abs(parsed.arg1(i) - mScript.arg1(i)) > 1e-3
+					|| Math.abs(parsed.arg2(i) - mScript.arg2(i)) > 1e-3) {
+				differ = i;
+			}
+		}
+		check(differ < 0 && parsed.size() == mScript.size(), "round trip: %d of %d events, first difference %d",
+				parsed.size(), mScript.size(), differ);
+	}
+
+	private void checkState() {
+		int program = -1;
+		int bender = MidiEngine.BENDER_MID;
+		int modulation = 0;
+		for (int i = 0; i < mScript.size(); ++i) {
+			if (mScript.target(i) != 0) {
+				continue;
+			}
+			switch (mScript.kind(i)) {
+			case ReplayScript.PROGRAM:
+				program = (int) mScript.arg1(i);
+				break;
+			case ReplayScript.BENDER:
+				bender = (int) mScript.arg1(i);
+				break;
+			case ReplayScript.CONTROLLER:
+				if ((int) mScript.arg1(i) == MidiEngine.CTL_MODULATION) {
+					modulation = (int) mScript.arg2(i);
+				}
+				break;
+			}
+		}
+		check(mState.program(0) == program, "program: %d, script %d", mState.program(0), program);
+		check(mState.bender(0) == UmpEncoder.scaleUp(bender, 14, 32), "bender: %d, script %d",
+				mState.bender(0), UmpEncoder.scaleUp(bender, 14, 32));
+		check(mState.controller7(0, MidiEngine.CTL_MODULATION) == modulation, "modulation: %d, script %d",
+				mState.controller7(0, MidiEngine.CTL_MODULATION), modulation);
+	}
+
+	public static void main(String[] args) {
+		double minRate = args.length > 0 ? Double.parseDouble(args[0]) : 500000;
+		double maxBytes = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+		ReplayCheck replay = new ReplayCheck(ReplayScript.generate(LOOPS));
+		replay.checkRoundTrip();
+
+		replay.play();
+		NoteChecker checker = replay.mChecker;
+		replay.check(checker.sounding() == 0, "notes left sounding: %d", checker.sounding());
+		replay.check(checker.mUnmatched == 0, "note offs without a note on: %d", checker.mUnmatched);
+		replay.checkState();
+
+		// warm up, then measure
+		for (int r = 0; r < ROUNDS; ++r) {
+			replay.play();
+		}
+		ThreadMXBean mx = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long id = Thread.currentThread().getId();
+		long b0 = mx.getThreadAllocatedBytes(id);
+		long t0 = System.nanoTime();
+		for (int r = 0; r < ROUNDS; ++r) {
+			replay.play();
+		}
+		long t1 = System.nanoTime();
+		long b1 = mx.getThreadAllocatedBytes(id);
+		long events = (long) ROUNDS * replay.mScript.size();
+		double rate = events * 1e9 / (t1 - t0);
+		double bytes = (double) (b1 - b0) / events;
+		replay.check(rate >= minRate, "throughput: %.0f events/s, minimum %.0f (%d messages)", rate, minRate,
+				replay.mSink.messages());
+		replay.check(bytes <= maxBytes, "allocated: %.3f B/event, maximum %.3f", bytes, maxBytes);
+
+		if (replay.mFailed) {
+			System.exit(1);
+		}
+	}
+}